@@ -0,0 +1,43 @@
+package bookmarks;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixtures shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Boots the hateoas {@link Application} (embedded H2, random port).
+     */
+    static ConfigurableApplicationContext start(String... args) {
+        String[] arguments = new String[args.length + 1];
+        arguments[0] = "--server.port=0";
+        System.arraycopy(args, 0, arguments, 1, args.length);
+        return new SpringApplicationBuilder(Application.class)
+                .showBanner(false)
+                .run(arguments);
+    }
+
+    /**
+     * Detached bookmarks with ids, as they would come out of the repository.
+     */
+    static List<Bookmark> bookmarks(String username, int size) {
+        Account account = new Account(username, "password");
+        List<Bookmark> bookmarks = new ArrayList<>(size);
+        for (long id = 1; id <= size; id++) {
+            Bookmark bookmark = new Bookmark(account, "http://bookmark.com/" + id + "/" + username, "A description");
+            ReflectionTestUtils.setField(bookmark, "id", id);
+            bookmarks.add(bookmark);
+        }
+        return bookmarks;
+    }
+}
@@ -0,0 +1,64 @@
+package bookmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.hateoas.Link;
+import org.springframework.hateoas.ResourceSupport;
+import org.springframework.hateoas.Resources;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+
+/**
+ * Builds the {@code Resources<BookmarkResource>} for one list response, with
+ * {@link LinkTemplate}s and with the {@code linkTo(methodOn(...))} links they
+ * replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookmarkResourceBenchmark {
+
+    @Param({"1", "100", "1000"})
+    int size;
+
+    private List<Bookmark> bookmarks;
+
+    @Setup
+    public void setUp() {
+        // ServletUriComponentsBuilder reads the current request from this thread
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        this.bookmarks = BenchmarkData.bookmarks("jlong", this.size);
+    }
+
+    @Benchmark
+    public Resources<BookmarkResource> linkTemplates() {
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        return new Resources<>(this.bookmarks.stream()
+                .map(bookmark -> new BookmarkResource("jlong", new BookmarkView(bookmark), links))
+                .collect(Collectors.toList()));
+    }
+
+    // the way BookmarkResource built its links before LinkTemplate
+    @Benchmark
+    public Resources<ResourceSupport> linkToMethodOn() {
+        return new Resources<>(this.bookmarks.stream().map(bookmark -> {
+            String username = bookmark.getAccount().getUsername();
+            ResourceSupport resource = new ResourceSupport();
+            resource.add(new Link(bookmark.getUri(), "bookmark-uri"));
+            resource.add(linkTo(BookmarkRestController.class, username).withRel("bookmarks"));
+            resource.add(linkTo(methodOn(BookmarkRestController.class, username)
+                    .readBookmark(username, bookmark.getId(), null)).withSelfRel());
+            return resource;
+        }).collect(Collectors.toList()));
+    }
+}
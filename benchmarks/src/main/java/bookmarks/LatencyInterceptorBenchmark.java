@@ -0,0 +1,55 @@
+package bookmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.method.HandlerMethod;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the {@link LatencyInterceptor} adds to every request, with every core
+ * recording into the same timer. {@code withoutTimer} only creates the request
+ * the interceptor works on, and is the figure to subtract. The load test's
+ * {@code loadtest.metrics} switch shows the same cost against a whole request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class LatencyInterceptorBenchmark {
+
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+    private LatencyInterceptor latencyInterceptor;
+
+    private HandlerMethod handlerMethod;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.latencyInterceptor = new LatencyInterceptor(new LatencyMetrics());
+        this.handlerMethod = new HandlerMethod(new Controller(), Controller.class.getMethod("readBookmarks"));
+    }
+
+    @Benchmark
+    public MockHttpServletRequest withoutTimer() {
+        return new MockHttpServletRequest();
+    }
+
+    @Benchmark
+    public MockHttpServletRequest withTimer() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        this.latencyInterceptor.preHandle(request, this.response, this.handlerMethod);
+        this.latencyInterceptor.afterCompletion(request, this.response, this.handlerMethod, null);
+        return request;
+    }
+
+    public static class Controller {
+
+        public void readBookmarks() {
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package bookmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What the security variant's {@link RateLimiter} adds to a request, with
+ * every core asking at once. All threads share one key, the worst case for
+ * its compare-and-set. They can also each use a key of their own, or spread
+ * over many keys as real users do. At the high rate no request is refused,
+ * so every call writes its bucket. At the low rate nearly every call is
+ * refused and only reads it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    private static final int KEYS = 100000;
+
+    @Param({"1000000000", "100"})
+    double permitsPerSecond;
+
+    private RateLimiter rateLimiter;
+
+    private String[] keys;
+
+    @State(Scope.Thread)
+    public static class ThreadKey {
+
+        private static final AtomicInteger threads = new AtomicInteger();
+
+        String key;
+
+        @Setup
+        public void setUp() {
+            this.key = "thread" + threads.incrementAndGet();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        this.rateLimiter = new RateLimiter(this.permitsPerSecond, 20);
+        this.keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            this.keys[i] = "user" + i;
+        }
+    }
+
+    // the cost of picking a key alone, to subtract from manyKeys
+    @Benchmark
+    public String baseline() {
+        return this.keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+
+    @Benchmark
+    public long oneKey() {
+        return this.rateLimiter.tryAcquire("android-bookmarks");
+    }
+
+    @Benchmark
+    public long keyPerThread(ThreadKey threadKey) {
+        return this.rateLimiter.tryAcquire(threadKey.key);
+    }
+
+    @Benchmark
+    public long manyKeys() {
+        return this.rateLimiter.tryAcquire(this.keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
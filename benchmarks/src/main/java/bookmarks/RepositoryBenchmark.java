@@ -0,0 +1,95 @@
+package bookmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Repository reads against the embedded H2 database seeded with {@code rows}
+ * bookmarks, {@value #BOOKMARKS_PER_ACCOUNT} per account.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    static final int BOOKMARKS_PER_ACCOUNT = 100;
+
+    @Param({"1000", "100000", "1000000"})
+    int rows;
+
+    private ConfigurableApplicationContext context;
+
+    private AccountRepository accountRepository;
+
+    private BookmarkRepository bookmarkRepository;
+
+    private String[] usernames;
+
+    private long firstId;
+
+    @Setup
+    public void setUp() {
+        this.context = BenchmarkData.start();
+        this.accountRepository = this.context.getBean(AccountRepository.class);
+        this.bookmarkRepository = this.context.getBean(BookmarkRepository.class);
+        BookmarkImporter importer = this.context.getBean(BookmarkImporter.class);
+
+        List<Account> accounts = this.accountRepository.save(IntStream.range(0, Math.max(1, this.rows / BOOKMARKS_PER_ACCOUNT))
+                .mapToObj(i -> new Account("benchmark" + i, "password"))
+                .collect(Collectors.toList()));
+        for (Account account : accounts) {
+            importer.importBookmarks(account, IntStream.range(0, BOOKMARKS_PER_ACCOUNT)
+                    .mapToObj(i -> new Bookmark(account, "http://bookmark.com/" + i + "/" + account.getUsername(), "A description"))
+                    .collect(Collectors.toList()));
+        }
+        this.usernames = accounts.stream().map(Account::getUsername).toArray(String[]::new);
+        this.firstId = this.bookmarkRepository.findViewsByAccountUsernameAfter(
+                this.usernames[0], 0L, new PageRequest(0, 1)).get(0).getId();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.context.close();
+    }
+
+    private String username() {
+        return this.usernames[ThreadLocalRandom.current().nextInt(this.usernames.length)];
+    }
+
+    @Benchmark
+    public Optional<Account> findByUsername() {
+        return this.accountRepository.findByUsername(this.username());
+    }
+
+    @Benchmark
+    public Collection<Bookmark> findByAccountUsername() {
+        return this.bookmarkRepository.findByAccountUsername(this.username());
+    }
+
+    @Benchmark
+    public List<BookmarkView> findViewsByAccountUsername() {
+        return this.bookmarkRepository.findViewsByAccountUsername(this.username());
+    }
+
+    @Benchmark
+    public List<BookmarkView> findViewsByAccountUsernameAfter() {
+        return this.bookmarkRepository.findViewsByAccountUsernameAfter(this.username(), 0L, new PageRequest(0, 20));
+    }
+
+    @Benchmark
+    public BookmarkView findViewById() {
+        return this.bookmarkRepository.findViewById(this.firstId + ThreadLocalRandom.current().nextInt(this.rows));
+    }
+}
@@ -0,0 +1,57 @@
+package bookmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BookmarkIndex} lookups over a million indexed bookmarks, either spread
+ * over ten thousand accounts or all owned by one. Only the in-memory part of a
+ * search is measured; re-reading the matching rows is the repository's cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark {
+
+    private static final String[] WORDS = {"spring", "boot", "java", "rest", "hateoas", "security",
+            "oauth", "jpa", "hibernate", "jackson", "tomcat", "maven", "gradle", "docker", "cloud", "data"};
+
+    @Param({"100", "1000000"})
+    int bookmarksPerAccount;
+
+    private BookmarkIndex index;
+
+    @Setup
+    public void setUp() {
+        this.index = new BookmarkIndex(null, 10000, false);
+        int accounts = 1000000 / this.bookmarksPerAccount;
+        long id = 0;
+        for (int a = 0; a < accounts; a++) {
+            for (int b = 0; b < this.bookmarksPerAccount; b++) {
+                String first = WORDS[(int) (id % WORDS.length)];
+                String second = WORDS[(int) (id / WORDS.length % WORDS.length)];
+                this.index.add("user" + a, ++id, "http://" + first + ".io/" + second + "/" + id,
+                        "A description of " + first + " and " + second);
+            }
+        }
+    }
+
+    @Benchmark
+    public long[] singleWord() {
+        return this.index.find("user0", "hibernate", 100);
+    }
+
+    @Benchmark
+    public long[] twoWords() {
+        return this.index.find("user0", "spring jackson", 100);
+    }
+
+    @Benchmark
+    public long[] noMatch() {
+        return this.index.find("user0", "spring cobol", 100);
+    }
+}
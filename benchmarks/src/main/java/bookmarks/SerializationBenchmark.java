@@ -0,0 +1,73 @@
+package bookmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.hateoas.Resources;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Jackson serialization of the bodies the three applications return: plain
+ * {@link Bookmark} entities, {@link BookmarkView} projections and HAL
+ * {@code Resources<BookmarkResource>}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"10", "1000"})
+    int size;
+
+    private ConfigurableApplicationContext context;
+
+    private ObjectMapper objectMapper;
+
+    private ObjectMapper halObjectMapper;
+
+    private List<Bookmark> bookmarks;
+
+    private List<BookmarkView> bookmarkViews;
+
+    private Resources<BookmarkResource> resources;
+
+    @Setup
+    public void setUp() {
+        this.context = BenchmarkData.start();
+        this.objectMapper = new ObjectMapper();
+        this.halObjectMapper = this.context.getBean("_halObjectMapper", ObjectMapper.class);
+
+        this.bookmarks = BenchmarkData.bookmarks("jlong", this.size);
+        this.bookmarkViews = this.bookmarks.stream().map(BookmarkView::new).collect(Collectors.toList());
+        BookmarkLinks links = new BookmarkLinks("http://localhost:8080");
+        this.resources = new Resources<>(this.bookmarkViews.stream()
+                .map(view -> new BookmarkResource("jlong", view, links))
+                .collect(Collectors.toList()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.context.close();
+    }
+
+    @Benchmark
+    public byte[] bookmarks() throws Exception {
+        return this.objectMapper.writeValueAsBytes(this.bookmarks);
+    }
+
+    @Benchmark
+    public byte[] bookmarkViews() throws Exception {
+        return this.objectMapper.writeValueAsBytes(this.bookmarkViews);
+    }
+
+    @Benchmark
+    public byte[] halResources() throws Exception {
+        return this.halObjectMapper.writeValueAsBytes(this.resources);
+    }
+}
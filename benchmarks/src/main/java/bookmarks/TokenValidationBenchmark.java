@@ -0,0 +1,78 @@
+package bookmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.DefaultTokenServices;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.JwtTokenStore;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the security variant's resource server pays to turn a bearer token into
+ * an authentication: a token store lookup versus verifying a signed JWT.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenValidationBenchmark {
+
+    // enough live tokens that the store is not a trivially small map
+    @Param({"1", "10000"})
+    int tokens;
+
+    private DefaultTokenServices storeTokenServices;
+
+    private DefaultTokenServices jwtTokenServices;
+
+    private String storeToken;
+
+    private String jwtToken;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.storeTokenServices = new DefaultTokenServices();
+        this.storeTokenServices.setTokenStore(new InMemoryTokenStore());
+        this.storeTokenServices.afterPropertiesSet();
+
+        JwtAccessTokenConverter accessTokenConverter = new JwtAccessTokenConverter();
+        accessTokenConverter.setSigningKey("benchmark-signing-key");
+        accessTokenConverter.afterPropertiesSet();
+        this.jwtTokenServices = new DefaultTokenServices();
+        this.jwtTokenServices.setTokenStore(new JwtTokenStore(accessTokenConverter));
+        this.jwtTokenServices.setTokenEnhancer(accessTokenConverter);
+        this.jwtTokenServices.afterPropertiesSet();
+
+        for (int i = 0; i < this.tokens; i++) {
+            this.storeToken = this.storeTokenServices.createAccessToken(authentication("user" + i)).getValue();
+        }
+        this.jwtToken = this.jwtTokenServices.createAccessToken(authentication("user0")).getValue();
+    }
+
+    // what the password grant issues for android-bookmarks in OAuth2Configuration
+    private static OAuth2Authentication authentication(String username) {
+        OAuth2Request request = new OAuth2Request(Collections.<String, String>emptyMap(), "android-bookmarks",
+                AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("write"),
+                Collections.singleton("bookmarks"), null, null, null);
+        return new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken(
+                username, "N/A", AuthorityUtils.createAuthorityList("USER", "write")));
+    }
+
+    @Benchmark
+    public OAuth2Authentication tokenStore() {
+        return this.storeTokenServices.loadAuthentication(this.storeToken);
+    }
+
+    @Benchmark
+    public OAuth2Authentication jwt() {
+        return this.jwtTokenServices.loadAuthentication(this.jwtToken);
+    }
+}
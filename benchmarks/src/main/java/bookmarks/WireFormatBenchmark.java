@@ -0,0 +1,115 @@
+package bookmarks;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.hateoas.Resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Encoding and decoding one list response in each of the formats the
+ * applications offer. JSON and {@link SmileHttpMessageConverter Smile} carry
+ * the HAL {@code Resources<BookmarkResource>} the hypermedia variants return,
+ * written with their {@code _halObjectMapper} as the converters do.
+ * {@link BookmarkProtobufHttpMessageConverter Protobuf} has no place for
+ * links, so it carries the {@link BookmarkView}s the rest variant returns.
+ * The payload sizes are printed once per trial, since JMH only measures time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int size;
+
+    private ConfigurableApplicationContext context;
+
+    private ObjectMapper halObjectMapper;
+
+    private final SmileFactory smileFactory = new SmileFactory();
+
+    private List<BookmarkView> bookmarkViews;
+
+    private Resources<BookmarkResource> resources;
+
+    private byte[] jsonBytes;
+
+    private byte[] smileBytes;
+
+    private byte[] protobufBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.context = BenchmarkData.start();
+        this.halObjectMapper = this.context.getBean("_halObjectMapper", ObjectMapper.class);
+        this.bookmarkViews = BenchmarkData.bookmarks("jlong", this.size).stream()
+                .map(BookmarkView::new).collect(Collectors.toList());
+        BookmarkLinks links = new BookmarkLinks("http://localhost:8080");
+        this.resources = new Resources<>(this.bookmarkViews.stream()
+                .map(view -> new BookmarkResource("jlong", view, links))
+                .collect(Collectors.toList()));
+
+        this.jsonBytes = this.encodeJson();
+        this.smileBytes = this.encodeSmile();
+        this.protobufBytes = this.encodeProtobuf();
+        System.out.printf("%n%d bookmarks: hal json %d bytes, hal smile %d bytes (%d%%), protobuf %d bytes (%d%%)%n",
+                this.size, this.jsonBytes.length,
+                this.smileBytes.length, 100L * this.smileBytes.length / this.jsonBytes.length,
+                this.protobufBytes.length, 100L * this.protobufBytes.length / this.jsonBytes.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.context.close();
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws IOException {
+        return this.halObjectMapper.writeValueAsBytes(this.resources);
+    }
+
+    @Benchmark
+    public byte[] encodeSmile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(this.size * 128);
+        JsonGenerator generator = this.smileFactory.createGenerator(out);
+        this.halObjectMapper.writeValue(generator, this.resources);
+        generator.flush();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeProtobuf() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(this.size * 64);
+        BookmarkProtobufHttpMessageConverter.write(this.bookmarkViews, out);
+        return out.toByteArray();
+    }
+
+    // a client without the server's classes reads HAL as a tree
+    @Benchmark
+    public JsonNode decodeJson() throws IOException {
+        return this.halObjectMapper.readTree(this.jsonBytes);
+    }
+
+    @Benchmark
+    public JsonNode decodeSmile() throws IOException {
+        return this.halObjectMapper.readTree(this.smileFactory.createParser(this.smileBytes));
+    }
+
+    @Benchmark
+    public List<Bookmark> decodeProtobuf() throws IOException {
+        return BookmarkProtobufHttpMessageConverter.read(new ByteArrayInputStream(this.protobufBytes));
+    }
+}
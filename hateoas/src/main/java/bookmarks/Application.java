@@ -1,9 +1,18 @@
 package bookmarks;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.autoconfigure.MetricFilterAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.TraceWebFilterAutoConfiguration;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.MultipartAutoConfiguration;
+import org.springframework.boot.autoconfigure.websocket.WebSocketAutoConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -13,31 +22,47 @@ import org.springframework.hateoas.Resources;
 import org.springframework.hateoas.VndErrors;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
-
-import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
-import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+import java.util.stream.Stream;
 
 @Configuration
 @ComponentScan
-@EnableAutoConfiguration
+@EnableAutoConfiguration(exclude = {MetricFilterAutoConfiguration.class, TraceWebFilterAutoConfiguration.class,
+        MultipartAutoConfiguration.class, WebSocketAutoConfiguration.class})
 public class Application {
 
     @Bean
-    CommandLineRunner init(AccountRepository accountRepository, BookmarkRepository bookmarkRepository) {
-        return (evt) ->
-                Arrays.asList("jhoeller,dsyer,pwebb,ogierke,rwinch,mfisher,mpollack,jlong".split(","))
-                        .forEach(a -> {
-                            Account account = accountRepository.save(new Account(a, "password"));
-                            bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/1/" + a, "A description"));
-                            bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/2/" + a, "A description"));
-                        });
+    CommandLineRunner init(AccountRepository accountRepository, BookmarkRepository bookmarkRepository,
+                           @Value("${bookmarks.seed.enabled:true}") boolean seed) {
+        return (evt) -> {
+            if (!seed) {
+                return;
+            }
+            // two saves of many entities, so Hibernate batches the inserts
+            List<Account> accounts = accountRepository.save(
+                    Arrays.stream("jhoeller,dsyer,pwebb,ogierke,rwinch,mfisher,mpollack,jlong".split(","))
+                            .map(a -> new Account(a, "password"))
+                            .collect(Collectors.toList()));
+            bookmarkRepository.save(accounts.stream()
+                    .flatMap(account -> Stream.of(
+                            new Bookmark(account, "http://bookmark.com/1/" + account.getUsername(), "A description"),
+                            new Bookmark(account, "http://bookmark.com/2/" + account.getUsername(), "A description")))
+                    .collect(Collectors.toList()));
+        };
     }
 
     public static void main(String[] args) {
@@ -45,19 +70,47 @@ public class Application {
     }
 }
 
+class BookmarkLinks {
+
+    private static final LinkTemplate BOOKMARKS = LinkTemplate.forController(BookmarkRestController.class);
+
+    private static final LinkTemplate BOOKMARK = LinkTemplate.forMethod(BookmarkRestController.class, "readBookmark");
+
+    private final String baseUri;
+
+    BookmarkLinks(String baseUri) {
+        this.baseUri = baseUri;
+    }
+
+    static BookmarkLinks fromCurrentRequest() {
+        return new BookmarkLinks(ServletUriComponentsBuilder.fromCurrentServletMapping().build().toUriString());
+    }
+
+    String getBaseUri() {
+        return this.baseUri;
+    }
+
+    Link bookmarks(String username) {
+        return new Link(this.baseUri + BOOKMARKS.expand(username), "bookmarks");
+    }
+
+    Link bookmark(String username, Long bookmarkId) {
+        return new Link(this.baseUri + BOOKMARK.expand(username, bookmarkId));
+    }
+}
+
 class BookmarkResource extends ResourceSupport {
 
-    private final Bookmark bookmark;
+    private final BookmarkView bookmark;
 
-    public BookmarkResource(Bookmark bookmark) {
-        String username = bookmark.getAccount().getUsername();
+    public BookmarkResource(String username, BookmarkView bookmark, BookmarkLinks links) {
         this.bookmark = bookmark;
         this.add(new Link(bookmark.getUri(), "bookmark-uri"));
-        this.add(linkTo(BookmarkRestController.class, username).withRel("bookmarks"));
-        this.add(linkTo(methodOn(BookmarkRestController.class, username).readBookmark(username, bookmark.getId())).withSelfRel());
+        this.add(links.bookmarks(username));
+        this.add(links.bookmark(username, bookmark.getId()));
     }
 
-    public Bookmark getBookmark() {
+    public BookmarkView getBookmark() {
         return bookmark;
     }
 }
@@ -66,59 +119,265 @@ class BookmarkResource extends ResourceSupport {
 @RequestMapping("/{userId}/bookmarks")
 class BookmarkRestController {
 
+    private static final MediaType HAL_JSON = MediaType.valueOf("application/hal+json");
+
     private final BookmarkRepository bookmarkRepository;
 
-    private final AccountRepository accountRepository;
+    private final AccountCache accountCache;
+
+    private final BookmarkScroller bookmarkScroller;
+
+    private final BookmarkImporter bookmarkImporter;
+
+    private final ObjectMapper halObjectMapper;
+
+    private final AccountVersions accountVersions;
+
+    private final BookmarkIndex bookmarkIndex;
+
+    private final DatabaseExecutor databaseExecutor;
+
+    private final BookmarkWriteBehind bookmarkWriteBehind;
+
+    private final CompressedBodyCache compressedBodyCache;
+
+    private final BookmarkChangeFeed bookmarkChangeFeed;
+
+    private final LatencyMetrics.Timer linksTimer;
 
     @RequestMapping(method = RequestMethod.POST)
-    ResponseEntity<?> add(@PathVariable String userId, @RequestBody Bookmark input) {
+    DeferredResult<ResponseEntity<?>> add(@PathVariable String userId, @RequestBody Bookmark input) {
+
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        if (this.bookmarkWriteBehind.isEnabled()) {
+            // queued on the request thread only when the account needs no lookup
+            Optional<Account> cached = this.accountCache.findCached(userId);
+            if (cached.isPresent()) {
+                return DatabaseExecutor.completed(this.enqueue(cached.get(), input, links));
+            }
+            return this.databaseExecutor.submit(() -> this.enqueue(this.validateUser(userId), input, links));
+        }
+        return this.databaseExecutor.submit(() -> {
+            Account account = this.validateUser(userId);
+            Bookmark bookmark = bookmarkRepository.save(new Bookmark(account, input.uri, input.description));
 
-        this.validateUser(userId);
+            HttpHeaders httpHeaders = new HttpHeaders();
 
-        return accountRepository.findByUsername(userId)
-                .map(account -> {
-                            Bookmark bookmark = bookmarkRepository.save(new Bookmark(account, input.uri, input.description));
+            Link forOneBookmark = links.bookmark(userId, bookmark.getId());
+            httpHeaders.setLocation(URI.create(forOneBookmark.getHref()));
 
-                            HttpHeaders httpHeaders = new HttpHeaders();
+            return new ResponseEntity<>(null, httpHeaders, HttpStatus.CREATED);
+        });
+    }
+
+    private ResponseEntity<?> enqueue(Account account, Bookmark input, BookmarkLinks links) {
+        Bookmark bookmark = this.bookmarkWriteBehind.enqueue(new Bookmark(account, input.uri, input.description));
+
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setLocation(URI.create(links.bookmark(account.getUsername(), bookmark.getId()).getHref()));
+        return new ResponseEntity<>(null, httpHeaders, HttpStatus.ACCEPTED);
+    }
 
-                            Link forOneBookmark = new BookmarkResource(bookmark).getLink("self");
-                            httpHeaders.setLocation(URI.create(forOneBookmark.getHref()));
+    @RequestMapping(value = "/import", method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, BookmarkImporter.NDJSON_VALUE})
+    DeferredResult<ResponseEntity<?>> importBookmarks(@PathVariable String userId, InputStream body) throws IOException {
+        // read here, so that no database thread waits on the client sending the body
+        List<Bookmark> bookmarks;
+        try (MappingIterator<Bookmark> rows = BookmarkImporter.read(this.halObjectMapper, body)) {
+            bookmarks = rows.readAll();
+        }
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            int imported = this.bookmarkImporter.importBookmarks(this.validateUser(userId), bookmarks);
 
-                            return new ResponseEntity<>(null, httpHeaders, HttpStatus.CREATED);
-                        }
-                ).get();
+            HttpHeaders httpHeaders = new HttpHeaders();
+            httpHeaders.setLocation(URI.create(links.bookmarks(userId).getHref()));
+            return new ResponseEntity<>(Collections.singletonMap("imported", imported), httpHeaders, HttpStatus.CREATED);
+        });
     }
 
     @RequestMapping(value = "/{bookmarkId}", method = RequestMethod.GET)
-    BookmarkResource readBookmark(@PathVariable String userId, @PathVariable Long bookmarkId) {
-        this.validateUser(userId);
-        return new BookmarkResource(this.bookmarkRepository.findOne(bookmarkId));
+    DeferredResult<ResponseEntity<BookmarkResource>> readBookmark(@PathVariable String userId, @PathVariable Long bookmarkId,
+                                                                  @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setETag(this.accountVersions.etag(userId));
+        boolean notModified = AccountVersions.matches(ifNoneMatch, httpHeaders.getETag());
+        if (notModified && this.isCached(userId)) {
+            return DatabaseExecutor.completed(new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED));
+        }
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            if (notModified) {
+                return new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED);
+            }
+            BookmarkResource bookmarkResource = new BookmarkResource(userId,
+                    this.bookmarkRepository.findViewById(bookmarkId), links);
+            return new ResponseEntity<>(bookmarkResource, httpHeaders, HttpStatus.OK);
+        });
     }
 
 
     @RequestMapping(method = RequestMethod.GET)
-    Resources<BookmarkResource> readBookmarks(@PathVariable String userId) {
+    DeferredResult<ResponseEntity<?>> readBookmarks(@PathVariable String userId,
+                                                    @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                                    @RequestHeader(value = "Accept", required = false) String accept,
+                                                    @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding) {
 
-        this.validateUser(userId);
+        HttpHeaders httpHeaders = new HttpHeaders();
+        String etag = this.accountVersions.etag(userId);
+        boolean notModified = AccountVersions.matches(ifNoneMatch, etag);
 
-        List<BookmarkResource> bookmarkResourceList = bookmarkRepository.findByAccountUsername(userId)
-                .stream()
-                .map(BookmarkResource::new)
-                .collect(Collectors.toList());
-        return new Resources<BookmarkResource>(bookmarkResourceList);
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        String encoding = this.compressedBodyCache.negotiate(acceptEncoding);
+        boolean compressed = encoding != null && CompressedBodyCache.prefers(accept, HAL_JSON);
+        // a compressed body is a representation of its own, so it needs a tag of its own
+        httpHeaders.setETag(compressed ? AccountVersions.withCoding(etag, encoding) : etag);
+        httpHeaders.set("Vary", "Accept, Accept-Encoding");
+        if (this.isCached(userId)) {
+            if (notModified) {
+                return DatabaseExecutor.completed(new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED));
+            }
+            // the links embed the host the request came in on
+            ResponseEntity<?> cached = compressed
+                    ? this.compressedBodyCache.getIfPresent(userId, etag, links.getBaseUri(), encoding, httpHeaders) : null;
+            if (cached != null) {
+                return DatabaseExecutor.completed(cached);
+            }
+        }
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            if (notModified) {
+                return new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED);
+            }
+            if (compressed) {
+                return this.compressedBodyCache.compress(userId, etag, links.getBaseUri(), encoding, HAL_JSON, httpHeaders,
+                        out -> this.halObjectMapper.writeValue(out, new Resources<BookmarkResource>(this.toResources(userId,
+                                this.bookmarkRepository.findViewsByAccountUsername(userId), links))));
+            }
+            List<BookmarkView> bookmarks = bookmarkRepository.findViewsByAccountUsername(userId);
+            List<BookmarkResource> bookmarkResourceList = this.toResources(userId, bookmarks, links);
+            return new ResponseEntity<>(new Resources<BookmarkResource>(bookmarkResourceList), httpHeaders, HttpStatus.OK);
+        });
+    }
+
+    @RequestMapping(value = "/search", method = RequestMethod.GET)
+    DeferredResult<Resources<BookmarkResource>> searchBookmarks(@PathVariable String userId, @RequestParam String q,
+                                                                @RequestParam(defaultValue = "100") int limit) {
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            List<BookmarkView> bookmarks = this.bookmarkIndex.search(userId, q, limit);
+            List<BookmarkResource> bookmarkResourceList = this.toResources(userId, bookmarks, links);
+            return new Resources<BookmarkResource>(bookmarkResourceList);
+        });
+    }
+
+    @RequestMapping(method = RequestMethod.GET, params = "limit")
+    DeferredResult<Resources<BookmarkResource>> readBookmarkPage(@PathVariable String userId,
+                                                                 @RequestParam(required = false) Long after,
+                                                                 @RequestParam int limit) {
+        int pageSize = BookmarkScroller.pageSize(limit);
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        ServletUriComponentsBuilder current = ServletUriComponentsBuilder.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            List<BookmarkView> page = this.bookmarkScroller.page(userId, after, pageSize);
+            List<BookmarkResource> bookmarkResourceList = this.toResources(userId, page, links);
+            if (page.size() < pageSize) {
+                return new Resources<BookmarkResource>(bookmarkResourceList);
+            }
+            Link next = new Link(current
+                    .replaceQueryParam("after", page.get(page.size() - 1).getId())
+                    .build()
+                    .toUriString(), Link.REL_NEXT);
+            return new Resources<BookmarkResource>(bookmarkResourceList, next);
+        });
+    }
+
+    @RequestMapping(method = RequestMethod.GET, params = "stream")
+    DeferredResult<View> streamBookmarks(@PathVariable String userId) {
+        return this.afterLookup(userId, new StreamingView((request, response) -> {
+            response.setContentType("application/hal+json;charset=UTF-8");
+            BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+            try (JsonGenerator generator = this.halObjectMapper.getFactory().createGenerator(response.getOutputStream())) {
+                // a read that fails part way leaves the document open, so the client cannot take it for the whole list
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                generator.writeStartObject();
+                generator.writeObjectFieldStart("_embedded");
+                generator.writeArrayFieldStart("bookmarkResourceList");
+                this.bookmarkScroller.stream(userId, generator, bookmark -> new BookmarkResource(userId, bookmark, links));
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+        }));
+    }
+
+    @RequestMapping(value = "/changes", method = RequestMethod.GET)
+    DeferredResult<View> streamChanges(@PathVariable String userId,
+                                       @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        return this.afterLookup(userId, new StreamingView((request, response) ->
+                this.bookmarkChangeFeed.subscribe(userId, lastEventId, request, response)));
     }
 
     @Autowired
     BookmarkRestController(BookmarkRepository bookmarkRepository,
-                           AccountRepository accountRepository) {
+                           AccountCache accountCache,
+                           BookmarkScroller bookmarkScroller,
+                           BookmarkImporter bookmarkImporter,
+                           @Qualifier("_halObjectMapper") ObjectMapper halObjectMapper,
+                           AccountVersions accountVersions,
+                           BookmarkIndex bookmarkIndex,
+                           DatabaseExecutor databaseExecutor,
+                           BookmarkWriteBehind bookmarkWriteBehind,
+                           CompressedBodyCache compressedBodyCache,
+                           BookmarkChangeFeed bookmarkChangeFeed,
+                           LatencyMetrics latencyMetrics) {
         this.bookmarkRepository = bookmarkRepository;
-        this.accountRepository = accountRepository;
+        this.accountCache = accountCache;
+        this.bookmarkScroller = bookmarkScroller;
+        this.bookmarkImporter = bookmarkImporter;
+        this.halObjectMapper = halObjectMapper;
+        this.accountVersions = accountVersions;
+        this.bookmarkIndex = bookmarkIndex;
+        this.databaseExecutor = databaseExecutor;
+        this.bookmarkWriteBehind = bookmarkWriteBehind;
+        this.compressedBodyCache = compressedBodyCache;
+        this.bookmarkChangeFeed = bookmarkChangeFeed;
+        this.linksTimer = latencyMetrics.timer("links.toResources");
+    }
+
+    private List<BookmarkResource> toResources(String userId, List<BookmarkView> bookmarks, BookmarkLinks links) {
+        long start = System.nanoTime();
+        List<BookmarkResource> bookmarkResources = bookmarks.stream()
+                .map(bookmark -> new BookmarkResource(userId, bookmark, links))
+                .collect(Collectors.toList());
+        this.linksTimer.recordSince(start);
+        return bookmarkResources;
     }
 
-    private void validateUser(String userId) {
-        this.accountRepository.findByUsername(userId)
+    // a cache miss waits for the database, so handlers that use the executor call this on it
+    private Account validateUser(String userId) {
+        return this.accountCache.findByUsername(userId)
                 .orElseThrow(() -> new UserNotFoundException(userId));
     }
+
+    // views write on the container thread once dispatched back to it, so only the lookup goes to the executor
+    private DeferredResult<View> afterLookup(String userId, View view) {
+        if (this.isCached(userId)) {
+            return DatabaseExecutor.completed(view);
+        }
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            return view;
+        });
+    }
+
+    // a cached account can be answered from memory on the request thread
+    private boolean isCached(String userId) {
+        return this.accountCache.findCached(userId).isPresent();
+    }
 }
 
 @ControllerAdvice
@@ -130,6 +389,20 @@ class BookmarkControllerAdvice {
     VndErrors userNotFoundExceptionHandler(UserNotFoundException ex) {
         return new VndErrors("error", ex.getMessage());
     }
+
+    @ResponseBody
+    @ExceptionHandler(DatabaseBusyException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    VndErrors databaseBusyExceptionHandler(DatabaseBusyException ex) {
+        return new VndErrors("error", ex.getMessage());
+    }
+
+    @ResponseBody
+    @ExceptionHandler(InvalidBookmarkException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    VndErrors invalidBookmarkExceptionHandler(InvalidBookmarkException ex) {
+        return new VndErrors("error", ex.getMessage());
+    }
 }
 
 
@@ -1,5 +1,7 @@
 package bookmarks;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -14,6 +16,9 @@ import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
@@ -24,6 +29,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.hamcrest.Matchers.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -84,7 +90,7 @@ public class BookmarkRestControllerTest {
 
     @Test
     public void userNotFound() throws Exception {
-        mockMvc.perform(post("/george/bookmarks/")
+        performAsync(post("/george/bookmarks/")
                 .content(this.json(new Bookmark()))
                 .contentType(contentType))
                 .andExpect(status().isNotFound());
@@ -92,7 +98,7 @@ public class BookmarkRestControllerTest {
 
     @Test
     public void readSingleBookmark() throws Exception {
-        mockMvc.perform(get("/" + userName + "/bookmarks/"
+        performAsync(get("/" + userName + "/bookmarks/"
                 + this.bookmarkList.get(0).getId()))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
@@ -105,7 +111,7 @@ public class BookmarkRestControllerTest {
 
     @Test
     public void readBookmarks() throws Exception {
-        mockMvc.perform(get("/" + userName + "/bookmarks"))
+        performAsync(get("/" + userName + "/bookmarks"))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andExpect(jsonPath("$._embedded.bookmarkResourceList", hasSize(2)))
@@ -117,16 +123,70 @@ public class BookmarkRestControllerTest {
                 .andExpect(jsonPath("$._embedded.bookmarkResourceList[1].bookmark.description", is("A description")));
     }
 
+    @Test
+    public void smileCarriesTheSameHalDocument() throws Exception {
+        byte[] json = performAsync(get("/" + userName + "/bookmarks"))
+                .andReturn().getResponse().getContentAsByteArray();
+        byte[] smile = performAsync(get("/" + userName + "/bookmarks").accept(SmileHttpMessageConverter.SMILE))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(SmileHttpMessageConverter.SMILE))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        Assert.assertEquals(new ObjectMapper().readTree(json), new ObjectMapper(new SmileFactory()).readTree(smile));
+    }
+
+    @Test
+    public void readBookmarkPagesByKeyset() throws Exception {
+        Long first = this.bookmarkList.get(0).getId();
+        Long second = this.bookmarkList.get(1).getId();
+
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$._embedded.bookmarkResourceList", hasSize(1)))
+                .andExpect(jsonPath("$._embedded.bookmarkResourceList[0].bookmark.id", is(first.intValue())))
+                .andExpect(jsonPath("$._links.next.href", endsWith("after=" + first)));
+
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "1").param("after", first.toString()))
+                .andExpect(jsonPath("$._embedded.bookmarkResourceList[0].bookmark.id", is(second.intValue())))
+                .andExpect(jsonPath("$._links.next.href", endsWith("after=" + second)));
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "1").param("after", second.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$._links.next").doesNotExist());
+
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "3"))
+                .andExpect(jsonPath("$._embedded.bookmarkResourceList", hasSize(2)))
+                .andExpect(jsonPath("$._links.next").doesNotExist());
+    }
+
+    @Test
+    public void streamBookmarks() throws Exception {
+        performAsync(get("/" + userName + "/bookmarks").param("stream", ""))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/hal+json;charset=UTF-8"))
+                .andExpect(jsonPath("$._embedded.bookmarkResourceList", hasSize(2)))
+                .andExpect(jsonPath("$._embedded.bookmarkResourceList[0].bookmark.uri", is("http://bookmark.com/1/" + userName)))
+                .andExpect(jsonPath("$._embedded.bookmarkResourceList[1]._links.self.href", containsString("/" + userName + "/bookmarks/"
+                        + this.bookmarkList.get(1).getId())));
+    }
+
     @Test
     public void createBookmark() throws Exception {
         String bookmarkJson = json(new Bookmark(
                 this.account, "http://spring.io", "a bookmark to the best resource for Spring news and information"));
-        this.mockMvc.perform(post("/" + userName + "/bookmarks")
+        performAsync(post("/" + userName + "/bookmarks")
                 .contentType(contentType)
                 .content(bookmarkJson))
                 .andExpect(status().isCreated());
     }
 
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+
     protected String json(Object o) throws IOException {
         MockHttpOutputMessage mockHttpOutputMessage = new MockHttpOutputMessage();
         this.mappingJackson2HttpMessageConverter.write(
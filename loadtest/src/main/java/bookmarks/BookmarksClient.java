@@ -0,0 +1,80 @@
+package bookmarks;
+
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One simulated user of one application variant. Each client has its own
+ * {@link RestTemplate}, so its keep-alive connection is never shared.
+ */
+class BookmarksClient {
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    private final HttpHeaders headers = new HttpHeaders();
+
+    private final URI bookmarks;
+
+    private final String username;
+
+    private URI bookmark;
+
+    private int posted;
+
+    BookmarksClient(String variant, String baseUri, String username) {
+        this.username = username;
+        this.headers.setContentType(MediaType.APPLICATION_JSON);
+        if ("security".equals(variant)) {
+            this.bookmarks = URI.create(baseUri + "/bookmarks");
+            this.headers.set("Authorization", "Bearer " + this.accessToken(baseUri, username));
+        } else {
+            this.bookmarks = URI.create(baseUri + "/" + username + "/bookmarks");
+        }
+        // gives the single-bookmark reads something to read
+        this.post();
+    }
+
+    // the password grant that the security variant's OAuth2Configuration allows for android-bookmarks
+    private String accessToken(String baseUri, String username) {
+        HttpHeaders tokenHeaders = new HttpHeaders();
+        tokenHeaders.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        tokenHeaders.set("Authorization", "Basic " + Base64.getEncoder()
+                .encodeToString("android-bookmarks:123456".getBytes(StandardCharsets.UTF_8)));
+        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.add("grant_type", "password");
+        form.add("username", username);
+        form.add("password", "password");
+        form.add("scope", "write");
+        form.add("client_id", "android-bookmarks");
+        form.add("client_secret", "123456");
+        Map<?, ?> token = this.restTemplate.postForObject(
+                baseUri + "/oauth/token", new HttpEntity<>(form, tokenHeaders), Map.class);
+        return (String) token.get("access_token");
+    }
+
+    void list() {
+        this.restTemplate.exchange(this.bookmarks, HttpMethod.GET, new HttpEntity<>(this.headers), String.class);
+    }
+
+    void single() {
+        this.restTemplate.exchange(this.bookmark, HttpMethod.GET, new HttpEntity<>(this.headers), String.class);
+    }
+
+    void post() {
+        Map<String, String> bookmark = new HashMap<>();
+        bookmark.put("uri", "http://bookmark.com/load/" + this.username + "/" + (++this.posted));
+        bookmark.put("description", "A description");
+        this.bookmark = this.restTemplate.postForLocation(this.bookmarks, new HttpEntity<>(bookmark, this.headers));
+    }
+}
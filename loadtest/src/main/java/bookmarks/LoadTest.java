@@ -0,0 +1,196 @@
+package bookmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.ClassUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Boots whichever {@link Application} is on the classpath on a random port,
+ * drives it with {@code loadtest.clients} concurrent clients issuing a weighted
+ * mix of list reads, single reads and posts, and writes throughput and latency
+ * percentiles (in microseconds) as JSON to {@code loadtest.output}. Running
+ * it again with {@code -Dloadtest.metrics=false} switches off the request
+ * timers, so the two reports show what the timers cost at the same load.
+ *
+ * @author Josh Long
+ */
+public class LoadTest {
+
+    private static final String[] OPERATIONS = {"list", "single", "post"};
+
+    // the accounts every Application seeds on startup
+    private static final String[] USERS = "jhoeller,dsyer,pwebb,ogierke,rwinch,mfisher,mpollack,jlong".split(",");
+
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(1);
+
+    public static void main(String[] args) throws Exception {
+        String variant = variant();
+        int clients = Integer.getInteger("loadtest.clients", 16);
+        int warmupSeconds = Integer.getInteger("loadtest.warmup", 10);
+        int durationSeconds = Integer.getInteger("loadtest.duration", 30);
+        int[] mix = mix(System.getProperty("loadtest.mix", "70,20,10"));
+        boolean metrics = Boolean.parseBoolean(System.getProperty("loadtest.metrics", "true"));
+        File output = new File(System.getProperty("loadtest.output",
+                "target/loadtest-" + variant + (metrics ? "" : "-nometrics") + ".json"));
+
+        // the security variant would otherwise hold every user to its per-user rate limit
+        ConfigurableApplicationContext context = SpringApplication.run(Application.class, "--server.port=0",
+                "--bookmarks.metrics.enabled=" + metrics, "--bookmarks.rate-limit.enabled=false");
+        try {
+            int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+            String baseUri = "http://localhost:" + port;
+
+            List<BookmarksClient> bookmarksClients = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                bookmarksClients.add(new BookmarksClient(variant, baseUri, USERS[i % USERS.length]));
+            }
+
+            long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Result>> futures = new ArrayList<>();
+            for (BookmarksClient client : bookmarksClients) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return drive(client, mix, measureFrom, measureUntil);
+                }));
+            }
+            start.countDown();
+
+            Result total = new Result();
+            for (Future<Result> future : futures) {
+                total.add(future.get());
+            }
+            executor.shutdown();
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("variant", variant);
+            report.put("clients", clients);
+            report.put("warmupSeconds", warmupSeconds);
+            report.put("durationSeconds", durationSeconds);
+            report.put("mix", mix);
+            report.put("metrics", metrics);
+            Map<String, Object> operations = new LinkedHashMap<>();
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                operations.put(OPERATIONS[i], summary(total.latencies[i], total.errors[i], durationSeconds));
+            }
+            report.put("operations", operations);
+            Histogram all = new Histogram(HIGHEST_LATENCY, 3);
+            long errors = 0;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                all.add(total.latencies[i]);
+                errors += total.errors[i];
+            }
+            report.put("total", summary(all, errors, durationSeconds));
+
+            output.getAbsoluteFile().getParentFile().mkdirs();
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(output, report);
+            System.out.println("wrote " + output.getAbsolutePath());
+        } finally {
+            context.close();
+        }
+    }
+
+    private static Result drive(BookmarksClient client, int[] mix, long measureFrom, long measureUntil) {
+        Result result = new Result();
+        int weights = mix[0] + mix[1] + mix[2];
+        long now;
+        while ((now = System.nanoTime()) < measureUntil) {
+            int pick = ThreadLocalRandom.current().nextInt(weights);
+            int operation = pick < mix[0] ? 0 : pick < mix[0] + mix[1] ? 1 : 2;
+            boolean failed = false;
+            try {
+                switch (operation) {
+                    case 0:
+                        client.list();
+                        break;
+                    case 1:
+                        client.single();
+                        break;
+                    default:
+                        client.post();
+                }
+            } catch (RuntimeException e) {
+                failed = true;
+            }
+            if (now >= measureFrom) {
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - now);
+                result.latencies[operation].recordValue(Math.min(micros, HIGHEST_LATENCY));
+                if (failed) {
+                    result.errors[operation]++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Object> summary(Histogram histogram, long errors, int durationSeconds) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.getTotalCount());
+        summary.put("errors", errors);
+        summary.put("throughput", (double) histogram.getTotalCount() / durationSeconds);
+        summary.put("mean", histogram.getMean());
+        summary.put("p50", histogram.getValueAtPercentile(50));
+        summary.put("p99", histogram.getValueAtPercentile(99));
+        summary.put("p999", histogram.getValueAtPercentile(99.9));
+        summary.put("max", histogram.getMaxValue());
+        return summary;
+    }
+
+    private static String variant() {
+        ClassLoader classLoader = LoadTest.class.getClassLoader();
+        if (ClassUtils.isPresent("bookmarks.OAuth2Configuration", classLoader)) {
+            return "security";
+        }
+        return ClassUtils.isPresent("bookmarks.BookmarkResource", classLoader) ? "hateoas" : "rest";
+    }
+
+    private static int[] mix(String mix) {
+        String[] weights = mix.split(",");
+        if (weights.length != OPERATIONS.length) {
+            throw new IllegalArgumentException("loadtest.mix needs list,single,post weights, not '" + mix + "'");
+        }
+        int[] result = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            result[i] = Integer.parseInt(weights[i].trim());
+        }
+        return result;
+    }
+
+    private static class Result {
+
+        private final Histogram[] latencies = new Histogram[OPERATIONS.length];
+
+        private final long[] errors = new long[OPERATIONS.length];
+
+        Result() {
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                this.latencies[i] = new Histogram(HIGHEST_LATENCY, 3);
+            }
+        }
+
+        void add(Result other) {
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                this.latencies[i].add(other.latencies[i]);
+                this.errors[i] += other.errors[i];
+            }
+        }
+    }
+}
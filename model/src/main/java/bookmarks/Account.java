@@ -1,23 +1,43 @@
 package bookmarks;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
+import javax.persistence.Cacheable;
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 import java.util.HashSet;
 import java.util.Set;
 
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@EntityListeners(AccountChangeListener.class)
+// every request looks its account up by name, see QueryPlanTest
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_account_username", columnNames = "username"))
 public class Account {
 
     @OneToMany(mappedBy = "account")
     private Set<Bookmark> bookmarks = new HashSet<>();
 
+    // a pooled sequence rather than an identity column, so that account inserts batch like bookmark inserts
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "account_seq")
+    @GenericGenerator(name = "account_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator",
+            parameters = {
+                    @Parameter(name = "sequence_name", value = "account_seq"),
+                    @Parameter(name = "increment_size", value = "50"),
+                    @Parameter(name = "optimizer", value = "pooled")})
     private Long id;
 
     public Set<Bookmark> getBookmarks() {
@@ -37,7 +57,10 @@ public class Account {
     }
 
     @JsonIgnore
+    @Column(nullable = false)
     public String password;
+
+    @Column(nullable = false)
     public String username;
 
     public Account(String name, String password) {
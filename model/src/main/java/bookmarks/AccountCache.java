@@ -0,0 +1,66 @@
+package bookmarks;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sits in front of {@link AccountRepository#findByUsername(String)}. Cached
+ * accounts are detached, which is all the controllers need them for.
+ */
+@Component
+public class AccountCache implements DisposableBean {
+
+    private final AccountRepository accountRepository;
+
+    private final ExpiringCache<String, Account> accounts;
+
+    private final Consumer<String> listener = this::invalidate;
+
+    @Autowired
+    public AccountCache(AccountRepository accountRepository,
+                        @Value("${bookmarks.account-cache.max-size:10000}") int maxSize,
+                        @Value("${bookmarks.account-cache.ttl-seconds:300}") long ttlSeconds) {
+        this.accountRepository = accountRepository;
+        this.accounts = new ExpiringCache<>(maxSize, ttlSeconds, TimeUnit.SECONDS);
+        AccountChangeListener.register(this.listener);
+    }
+
+    public Optional<Account> findByUsername(String username) {
+        return Optional.ofNullable(this.accounts.get(username,
+                u -> this.accountRepository.findByUsername(u).orElse(null)));
+    }
+
+    /**
+     * The account if it is already cached, without going to the database.
+     */
+    public Optional<Account> findCached(String username) {
+        return Optional.ofNullable(this.accounts.peek(username));
+    }
+
+    public void invalidate(String username) {
+        this.accounts.invalidate(username);
+    }
+
+    public long getHits() {
+        return this.accounts.getHits();
+    }
+
+    public long getMisses() {
+        return this.accounts.getMisses();
+    }
+
+    public long getEvictions() {
+        return this.accounts.getEvictions();
+    }
+
+    @Override
+    public void destroy() {
+        AccountChangeListener.deregister(this.listener);
+    }
+}
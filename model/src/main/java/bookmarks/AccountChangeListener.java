@@ -0,0 +1,36 @@
+package bookmarks;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * JPA entity listener that tells interested caches which usernames changed,
+ * once the change has committed, see {@link AfterCommit}. Bulk JPQL statements
+ * such as {@code deleteAllInBatch()} bypass it. The registry is static, so
+ * every cache deregisters when its context closes.
+ */
+public class AccountChangeListener {
+
+    private static final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    public static void register(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    public static void deregister(Consumer<String> listener) {
+        listeners.remove(listener);
+    }
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    void accountChanged(Account account) {
+        AfterCommit.add(listeners, account.getUsername(),
+                usernames -> new LinkedHashSet<>(usernames).forEach(u -> listeners.forEach(l -> l.accept(u))));
+    }
+}
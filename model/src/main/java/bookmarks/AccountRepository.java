@@ -2,9 +2,26 @@ package bookmarks;
 
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.QueryHint;
+import java.util.List;
 import java.util.Optional;
 
+// queries run read-only, so the replicas profile can send them to a replica; writes are read-write here
+// or, like delete and flush, in SimpleJpaRepository
+@Transactional(readOnly = true)
 public interface AccountRepository extends JpaRepository<Account, Long> {
+
+    @Override
+    @Transactional
+    <S extends Account> S save(S entity);
+
+    @Override
+    @Transactional
+    <S extends Account> List<S> save(Iterable<S> entities);
+
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     Optional<Account> findByUsername(String username);
 }
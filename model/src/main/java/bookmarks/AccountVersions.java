@@ -0,0 +1,89 @@
+package bookmarks;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Counts the bookmark writes of every account so that its bookmarks can carry a
+ * strong ETag that is answered from memory. A version moves once its write
+ * commits, see {@link AfterCommit}, and never for a write that rolls back.
+ * Tags start with this instance's startup time, so they never repeat across
+ * restarts. Writes made by other nodes are not seen, so this is only correct
+ * when one node owns an account's writes.
+ */
+@Component
+public class AccountVersions implements DisposableBean {
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    private final BiConsumer<BookmarkChangeListener.Change, Bookmark> listener = (change, bookmark) ->
+            AfterCommit.add(this, bookmark.getAccount().getUsername(),
+                    usernames -> new LinkedHashSet<>(usernames).forEach(this::increment));
+
+    public AccountVersions() {
+        BookmarkChangeListener.register(this.listener);
+    }
+
+    public long increment(String username) {
+        return this.versions.computeIfAbsent(username, u -> new AtomicLong()).incrementAndGet();
+    }
+
+    public long version(String username) {
+        AtomicLong version = this.versions.get(username);
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * Read this before querying, so that a concurrent write can only make the
+     * tag older than the body, never newer.
+     */
+    public String etag(String username) {
+        return "\"" + this.epoch + "-" + this.version(username) + "\"";
+    }
+
+    /**
+     * The tag of the {@code coding} content-coded representation of the body
+     * tagged {@code etag}. Each coding needs a strong tag of its own.
+     */
+    public static String withCoding(String etag, String coding) {
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+
+    @Override
+    public void destroy() {
+        BookmarkChangeListener.deregister(this.listener);
+    }
+
+    /**
+     * Whether an {@code If-None-Match} header matches {@code etag} or one of
+     * its {@link #withCoding content-coded} tags.
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : StringUtils.commaDelimitedListToStringArray(ifNoneMatch)) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag) || isCoded(candidate, etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCoded(String candidate, String etag) {
+        return candidate.endsWith("\"") && candidate.startsWith(etag.substring(0, etag.length() - 1) + "-");
+    }
+}
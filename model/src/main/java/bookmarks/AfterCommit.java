@@ -0,0 +1,62 @@
+package bookmarks;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Holds back what a transaction changed until it commits. JPA calls entity
+ * listeners at flush time, so anything they update in memory would otherwise
+ * be visible before the rows are, and would stay changed after a rollback.
+ * <p>
+ * Each owner gets a single synchronization per transaction, which collects
+ * the items in the order they were added and hands them to the owner's
+ * action once, after the commit. A rollback drops them. Outside a
+ * transaction the action runs at once, which suits plain JDBC writers that
+ * report their rows after committing them.
+ */
+public final class AfterCommit<T> extends TransactionSynchronizationAdapter {
+
+    private final Object owner;
+
+    private final Consumer<List<T>> action;
+
+    private final List<T> items = new ArrayList<>();
+
+    private AfterCommit(Object owner, Consumer<List<T>> action) {
+        this.owner = owner;
+        this.action = action;
+    }
+
+    /**
+     * Adds {@code item} to {@code owner}'s batch for the current transaction.
+     * The {@code action} of the first call in a transaction is the one that runs.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void add(Object owner, T item, Consumer<List<T>> action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.accept(Collections.singletonList(item));
+            return;
+        }
+        // a handful of synchronizations at most, and a suspended transaction's are not listed
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof AfterCommit && ((AfterCommit<?>) synchronization).owner == owner) {
+                ((AfterCommit<T>) synchronization).items.add(item);
+                return;
+            }
+        }
+        AfterCommit<T> afterCommit = new AfterCommit<>(owner, action);
+        afterCommit.items.add(item);
+        TransactionSynchronizationManager.registerSynchronization(afterCommit);
+    }
+
+    @Override
+    public void afterCommit() {
+        this.action.accept(this.items);
+    }
+}
@@ -1,21 +1,46 @@
 package bookmarks;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
+import javax.persistence.Cacheable;
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Transient;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@EntityListeners(BookmarkChangeListener.class)
+// an account's bookmarks are read in id order and keyset paged by id, see QueryPlanTest
+@Table(indexes = @Index(name = "ix_bookmark_account_id", columnList = "account_id, id"))
 public class Bookmark {
 
+    public static final int MAX_DESCRIPTION_LENGTH = 255;
+
     @JsonIgnore
-    @ManyToOne
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "account_id", nullable = false)
     private Account account;
 
+    // a pooled sequence hands out ids 50 at a time and, unlike identity columns, lets Hibernate batch inserts
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "bookmark_seq")
+    @GenericGenerator(name = "bookmark_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator",
+            parameters = {
+                    @Parameter(name = "sequence_name", value = "bookmark_seq"),
+                    @Parameter(name = "increment_size", value = "50"),
+                    @Parameter(name = "optimizer", value = "pooled")})
     private Long id;
 
     Bookmark() { // jpa only
@@ -27,7 +52,17 @@ public class Bookmark {
         this.account = account;
     }
 
+    // the URI a new bookmark was given; loaded bookmarks read it from their url
+    @Transient
     public String uri;
+
+    // shared with every other bookmark of the same URI, see UrlIntegrator
+    @JsonIgnore
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "url_id", nullable = false)
+    private Url url;
+
+    @Column(length = MAX_DESCRIPTION_LENGTH)
     public String description;
 
     public Account getAccount() {
@@ -38,11 +73,36 @@ public class Bookmark {
         return id;
     }
 
+    // for ids allocated ahead of the insert, see BookmarkWriteBehind
+    void setId(Long id) {
+        this.id = id;
+    }
+
+    Url getUrl() {
+        return url;
+    }
+
+    void setUrl(Url url) {
+        this.url = url;
+    }
+
     public String getUri() {
-        return uri;
+        return uri != null ? uri : (url != null ? url.getUri() : null);
     }
 
     public String getDescription() {
         return description;
     }
+
+    /**
+     * Refuses a new bookmark that the insert would only refuse later, once
+     * the bookmark had been accepted or other rows written alongside it.
+     */
+    static void validate(Bookmark bookmark) {
+        Urls.checkUri(bookmark.uri);
+        if (bookmark.description != null && bookmark.description.length() > MAX_DESCRIPTION_LENGTH) {
+            throw new InvalidBookmarkException("a bookmark's description can be at most "
+                    + MAX_DESCRIPTION_LENGTH + " characters.");
+        }
+    }
 }
\ No newline at end of file
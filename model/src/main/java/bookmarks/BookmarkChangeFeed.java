@@ -0,0 +1,367 @@
+package bookmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Pushes each account's new bookmarks to its subscribers as server-sent
+ * events. Every bookmark becomes one {@code created} event, sent once its
+ * transaction commits. The event data is the bookmark's JSON.
+ * <p>
+ * A subscription is a servlet async request that stays open. No thread waits
+ * on an idle one. A few writer threads send events to subscribers, and each
+ * subscriber keeps its own queue so that its events stay in order. A
+ * subscriber that falls {@code max-pending} events behind is disconnected.
+ * So is one whose writer has been blocked in a single drain for longer than
+ * {@code write-timeout-millis}. Its async request is completed, so that no
+ * more events are queued for it, and the stuck write fails once the container
+ * closes the connection.
+ * Comment lines go out every {@code heartbeat-seconds} so that proxies keep
+ * idle streams open. Streams end after {@code timeout-minutes}, and the
+ * client reconnects. Idle connections are cheap on Tomcat's NIO connector,
+ * which Spring Boot uses by default.
+ * <p>
+ * A transaction's bookmarks are turned into event data when they are
+ * flushed, and published together after it commits. No entity is kept
+ * until then.
+ * <p>
+ * Event ids increase across all accounts. The last {@code buffer-size}
+ * events are kept in a ring buffer. A client that reconnects with a
+ * {@code Last-Event-ID} gets everything it missed for its account. If those
+ * events have already left the buffer, or the id is not one this server
+ * handed out, the client gets a {@code reset} event instead and should read
+ * the whole list again.
+ */
+@Component
+public class BookmarkChangeFeed implements DisposableBean {
+
+    public static final String EVENT_STREAM_VALUE = "text/event-stream";
+
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] RESET = "event: reset\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8);
+
+    // guarded by itself, together with nextId
+    private final Event[] ring;
+
+    private long nextId = 1;
+
+    private final ConcurrentMap<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    private final ObjectWriter objectWriter;
+
+    private final long timeoutMillis;
+
+    private final int maxPending;
+
+    private final long writeTimeoutNanos;
+
+    private final ExecutorService writers;
+
+    private final ScheduledExecutorService heartbeats;
+
+    // JPA calls back at flush time, before the commit; plain JDBC writers call after theirs
+    private final BiConsumer<BookmarkChangeListener.Change, Bookmark> listener = (change, bookmark) -> {
+        if (change == BookmarkChangeListener.Change.PERSISTED) {
+            AfterCommit.add(this, this.created(bookmark), created -> created.forEach(this::publish));
+        }
+    };
+
+    @Autowired
+    public BookmarkChangeFeed(@Value("${bookmarks.changes.buffer-size:10000}") int bufferSize,
+                              @Value("${bookmarks.changes.heartbeat-seconds:15}") long heartbeatSeconds,
+                              @Value("${bookmarks.changes.timeout-minutes:30}") long timeoutMinutes,
+                              @Value("${bookmarks.changes.writer-threads:2}") int writerThreads,
+                              @Value("${bookmarks.changes.max-pending:1000}") int maxPending,
+                              @Value("${bookmarks.changes.write-timeout-millis:10000}") long writeTimeoutMillis) {
+        // a plain mapper of its own keeps each event's data on one line, whatever the application configures
+        this.objectWriter = new ObjectMapper().writer();
+        this.ring = new Event[bufferSize];
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        this.maxPending = maxPending;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        this.writers = Executors.newFixedThreadPool(writerThreads, daemon("bookmarks-changes-writer"));
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(daemon("bookmarks-changes-heartbeat"));
+        this.heartbeats.scheduleAtFixedRate(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        long checkMillis = Math.max(1, writeTimeoutMillis / 2);
+        this.heartbeats.scheduleAtFixedRate(this::checkWrites, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        BookmarkChangeListener.register(this.listener);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private Created created(Bookmark bookmark) {
+        try {
+            return new Created(bookmark.getAccount().getUsername(),
+                    this.objectWriter.writeValueAsString(new BookmarkView(bookmark)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("could not write bookmark " + bookmark.getId(), e);
+        }
+    }
+
+    private void publish(Created created) {
+        String username = created.username;
+        synchronized (this.ring) {
+            long id = this.nextId++;
+            Event event = new Event(username,
+                    ("id: " + id + "\nevent: created\ndata: " + created.data + "\n\n").getBytes(StandardCharsets.UTF_8));
+            this.ring[(int) (id % this.ring.length)] = event;
+            // queued under the lock, so every subscriber sees ids in order
+            Set<Subscriber> subscribers = this.subscribers.get(username);
+            if (subscribers != null) {
+                subscribers.forEach(subscriber -> subscriber.send(event.frame));
+            }
+        }
+    }
+
+    /**
+     * Turns {@code request} into an event stream of {@code username}'s new
+     * bookmarks, starting after {@code lastEventId} if it is given.
+     */
+    public void subscribe(String username, String lastEventId,
+                          HttpServletRequest request, HttpServletResponse response) {
+        response.setContentType(EVENT_STREAM_VALUE + ";charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // nginx would otherwise hold events back until its buffer fills
+        response.setHeader("X-Accel-Buffering", "no");
+        AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(this.timeoutMillis);
+        Subscriber subscriber = new Subscriber(username, async);
+        async.addListener(subscriber);
+        // sent first so that the client sees the response open straight away
+        subscriber.send("retry: 5000\n\n".getBytes(StandardCharsets.UTF_8));
+
+        synchronized (this.ring) {
+            if (lastEventId != null) {
+                for (byte[] frame : this.missed(username, lastEventId)) {
+                    subscriber.send(frame);
+                }
+            }
+            this.subscribers.compute(username, (key, set) -> {
+                Set<Subscriber> subscribers = set != null ? set : ConcurrentHashMap.newKeySet();
+                subscribers.add(subscriber);
+                return subscribers;
+            });
+        }
+    }
+
+    // callers hold the ring lock
+    private List<byte[]> missed(String username, String lastEventId) {
+        List<byte[]> frames = new ArrayList<>();
+        long last;
+        try {
+            last = Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            last = -1;
+        }
+        long oldest = Math.max(1, this.nextId - this.ring.length);
+        if (last + 1 < oldest || last >= this.nextId) {
+            frames.add(RESET);
+            return frames;
+        }
+        for (long id = last + 1; id < this.nextId; id++) {
+            Event event = this.ring[(int) (id % this.ring.length)];
+            if (event.username.equals(username)) {
+                frames.add(event.frame);
+            }
+        }
+        return frames;
+    }
+
+    void heartbeat() {
+        this.subscribers.values().forEach(subscribers -> subscribers.forEach(subscriber -> subscriber.send(HEARTBEAT)));
+    }
+
+    // completes the streams whose writer has been stuck in one drain for too long
+    void checkWrites() {
+        long now = System.nanoTime();
+        this.subscribers.values().forEach(subscribers -> subscribers.forEach(subscriber -> {
+            long started = subscriber.drainStarted;
+            if (started != 0 && now - started > this.writeTimeoutNanos) {
+                subscriber.close();
+            }
+        }));
+    }
+
+    public int getSubscriberCount() {
+        return this.subscribers.values().stream().mapToInt(Set::size).sum();
+    }
+
+    @Override
+    public void destroy() {
+        BookmarkChangeListener.deregister(this.listener);
+        this.heartbeats.shutdownNow();
+        this.subscribers.values().forEach(subscribers -> subscribers.forEach(Subscriber::close));
+        this.writers.shutdown();
+    }
+
+    // what a created event needs, taken from the bookmark when it is flushed
+    private static final class Created {
+
+        final String username;
+
+        final String data;
+
+        Created(String username, String data) {
+            this.username = username;
+            this.data = data;
+        }
+    }
+
+    private static final class Event {
+
+        final String username;
+
+        final byte[] frame;
+
+        Event(String username, byte[] frame) {
+            this.username = username;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * One open stream. Frames are queued by any thread and written by at most
+     * one writer thread at a time.
+     */
+    private final class Subscriber implements AsyncListener {
+
+        private final String username;
+
+        private final AsyncContext async;
+
+        private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger pendingCount = new AtomicInteger();
+
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        // System.nanoTime() when the running drain began, 0 when none is running
+        volatile long drainStarted;
+
+        Subscriber(String username, AsyncContext async) {
+            this.username = username;
+            this.async = async;
+        }
+
+        void send(byte[] frame) {
+            if (this.closed.get()) {
+                return;
+            }
+            if (this.pendingCount.incrementAndGet() > maxPending) {
+                // too slow to keep up; it can reconnect and pick up from the ring buffer
+                this.close();
+                return;
+            }
+            this.pending.add(frame);
+            this.schedule();
+        }
+
+        private void schedule() {
+            if (this.draining.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    this.close();
+                }
+            }
+        }
+
+        private void drain() {
+            this.drainStarted = System.nanoTime();
+            try {
+                ServletOutputStream out = this.async.getResponse().getOutputStream();
+                for (byte[] frame; (frame = this.pending.poll()) != null; ) {
+                    this.pendingCount.decrementAndGet();
+                    out.write(frame);
+                }
+                out.flush();
+            } catch (IOException | IllegalStateException e) {
+                this.close();
+                return;
+            } finally {
+                this.drainStarted = 0;
+            }
+            this.draining.set(false);
+            if (!this.pending.isEmpty()) {
+                this.schedule();
+            }
+        }
+
+        void close() {
+            if (this.closed.compareAndSet(false, true)) {
+                this.remove();
+                try {
+                    this.async.complete();
+                } catch (IllegalStateException e) {
+                    // already completed by the container
+                }
+            }
+        }
+
+        private void remove() {
+            subscribers.computeIfPresent(this.username, (key, set) -> {
+                set.remove(this);
+                return set.isEmpty() ? null : set;
+            });
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            this.closed.set(true);
+            this.remove();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            this.close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            this.close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package bookmarks;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * JPA entity listener that tells in-memory views of the bookmark table which
+ * bookmarks were written. Bulk JPQL statements such as
+ * {@code deleteAllInBatch()} bypass it. The registry is static, so every view
+ * deregisters when its context closes.
+ */
+public class BookmarkChangeListener {
+
+    public enum Change {
+        PERSISTED, UPDATED, REMOVED
+    }
+
+    private static final List<BiConsumer<Change, Bookmark>> listeners = new CopyOnWriteArrayList<>();
+
+    public static void register(BiConsumer<Change, Bookmark> listener) {
+        listeners.add(listener);
+    }
+
+    public static void deregister(BiConsumer<Change, Bookmark> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * For writes that bypass JPA, such as plain JDBC batches.
+     */
+    public static void changed(Change change, Bookmark bookmark) {
+        listeners.forEach(l -> l.accept(change, bookmark));
+    }
+
+    @PostPersist
+    void bookmarkPersisted(Bookmark bookmark) {
+        changed(Change.PERSISTED, bookmark);
+    }
+
+    @PostUpdate
+    void bookmarkUpdated(Bookmark bookmark) {
+        changed(Change.UPDATED, bookmark);
+    }
+
+    @PostRemove
+    void bookmarkRemoved(Bookmark bookmark) {
+        changed(Change.REMOVED, bookmark);
+    }
+}
@@ -0,0 +1,85 @@
+package bookmarks;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Inserts large numbers of bookmarks in one transaction, flushing every
+ * {@code hibernate.jdbc.batch_size} rows so that Hibernate sends them as JDBC
+ * batches and the persistence context never grows past one batch. Each
+ * batch's URIs are stored with one {@link Urls#store} call before its rows
+ * are persisted.
+ */
+@Component
+public class BookmarkImporter {
+
+    public static final String NDJSON_VALUE = "application/x-ndjson";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:50}")
+    private int batchSize;
+
+    /**
+     * Reads either a JSON array of bookmarks or newline delimited bookmarks,
+     * one at a time, from {@code body}.
+     */
+    public static MappingIterator<Bookmark> read(ObjectMapper objectMapper, InputStream body) throws IOException {
+        JsonParser parser = objectMapper.getFactory().createParser(body);
+        if (parser.nextToken() == JsonToken.START_ARRAY) {
+            parser.nextToken();
+        }
+        return objectMapper.readValues(parser, Bookmark.class);
+    }
+
+    /**
+     * Checks every bookmark before the first is written, so that an import
+     * with an invalid row is refused whole instead of failing part way.
+     */
+    @Transactional
+    public int importBookmarks(Account account, List<Bookmark> bookmarks) {
+        bookmarks.forEach(Bookmark::validate);
+        int count = 0;
+        List<Bookmark> batch = new ArrayList<>(this.batchSize);
+        for (Bookmark input : bookmarks) {
+            batch.add(new Bookmark(account, input.uri, input.description));
+            if (batch.size() == this.batchSize) {
+                count += this.persist(batch);
+            }
+        }
+        count += this.persist(batch);
+        return count;
+    }
+
+    // stores the batch's URIs in one go, so that UrlIntegrator has nothing left to look up row by row
+    private int persist(List<Bookmark> batch) {
+        Session session = this.entityManager.unwrap(Session.class);
+        Map<String, Long> urls = session.doReturningWork(connection ->
+                Urls.store(connection, batch.stream().map(b -> b.uri).collect(Collectors.toList())));
+        for (Bookmark bookmark : batch) {
+            bookmark.setUrl(this.entityManager.getReference(Url.class, urls.get(bookmark.uri)));
+            this.entityManager.persist(bookmark);
+        }
+        this.entityManager.flush();
+        this.entityManager.clear();
+        int size = batch.size();
+        batch.clear();
+        return size;
+    }
+}
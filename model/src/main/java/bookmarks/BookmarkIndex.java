@@ -0,0 +1,358 @@
+package bookmarks;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Per-account inverted index over the words of each bookmark's URI and
+ * description. Posting lists are sorted {@code long[]} arrays of bookmark ids,
+ * so a query is a handful of hash lookups and an intersection of the shortest
+ * list against the others. It is loaded from the database once the context is
+ * refreshed and kept current through {@link BookmarkChangeListener}.
+ * <p>
+ * Changes reach the index once their transaction commits, see
+ * {@link AfterCommit}, so rolled back writes never do. Bulk deletes are never
+ * seen, so {@link #search(String, String, int)} re-reads the matching ids from
+ * the database and anything that is gone drops out there.
+ * <p>
+ * With {@code bookmarks.index.rebuild-in-background=true} the first load runs
+ * on its own thread so that it does not hold up startup. Searches wait for it
+ * to finish. Later rebuilds fill a new index to the side and swap it in once
+ * complete, so searches meanwhile keep using the old one.
+ */
+@Component
+public class BookmarkIndex implements ApplicationListener<ContextRefreshedEvent>, DisposableBean {
+
+    public static final int MAX_RESULTS = 1000;
+
+    private final BookmarkRepository bookmarkRepository;
+
+    private final int rebuildPageSize;
+
+    private final boolean rebuildInBackground;
+
+    private volatile CountDownLatch loading;
+
+    private volatile ConcurrentMap<String, AccountIndex> accounts = new ConcurrentHashMap<>();
+
+    // the index a rebuild is filling, if one is running
+    private volatile ConcurrentMap<String, AccountIndex> building;
+
+    private final AtomicBoolean loaded = new AtomicBoolean();
+
+    // copied at flush time, since the entity may have changed again by the commit
+    private final BiConsumer<BookmarkChangeListener.Change, Bookmark> listener = (change, bookmark) ->
+            AfterCommit.add(this, new Change(change, bookmark), changes -> changes.forEach(this::apply));
+
+    @Autowired
+    public BookmarkIndex(BookmarkRepository bookmarkRepository,
+                         @Value("${bookmarks.index.rebuild-page-size:10000}") int rebuildPageSize,
+                         @Value("${bookmarks.index.rebuild-in-background:false}") boolean rebuildInBackground) {
+        this.bookmarkRepository = bookmarkRepository;
+        this.rebuildPageSize = rebuildPageSize;
+        this.rebuildInBackground = rebuildInBackground;
+        BookmarkChangeListener.register(this.listener);
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (this.loaded.compareAndSet(false, true)) {
+            if (!this.rebuildInBackground) {
+                this.rebuild();
+                return;
+            }
+            CountDownLatch loading = new CountDownLatch(1);
+            this.loading = loading;
+            Thread thread = new Thread(() -> {
+                try {
+                    this.rebuild();
+                } finally {
+                    this.loading = null;
+                    loading.countDown();
+                }
+            }, "bookmark-index-rebuild");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        BookmarkChangeListener.deregister(this.listener);
+    }
+
+    /**
+     * Reloads every bookmark, one keyset page at a time, into a new index that
+     * replaces the current one once it is complete. Changes that commit during
+     * the reload go into both, and adding is idempotent, so they are not lost.
+     */
+    public synchronized void rebuild() {
+        ConcurrentMap<String, AccountIndex> next = new ConcurrentHashMap<>();
+        this.building = next;
+        try {
+            Long after = 0L;
+            List<Object[]> page;
+            do {
+                page = this.bookmarkRepository.findIndexRowsAfter(after, new PageRequest(0, this.rebuildPageSize));
+                for (Object[] row : page) {
+                    after = (Long) row[1];
+                    add(next, (String) row[0], after, terms((String) row[2], (String) row[3]));
+                }
+            } while (page.size() == this.rebuildPageSize);
+            this.accounts = next;
+        } finally {
+            this.building = null;
+        }
+    }
+
+    private void apply(Change change) {
+        switch (change.change) {
+            case PERSISTED:
+                this.add(change.username, change.id, change.uri, change.description);
+                break;
+            case UPDATED:
+                this.remove(change.username, change.id);
+                this.add(change.username, change.id, change.uri, change.description);
+                break;
+            case REMOVED:
+                this.remove(change.username, change.id);
+                break;
+        }
+    }
+
+    public void add(String username, Long id, String uri, String description) {
+        Set<String> terms = terms(uri, description);
+        this.change(accounts -> add(accounts, username, id, terms));
+    }
+
+    public void remove(String username, Long id) {
+        this.change(accounts -> {
+            AccountIndex index = accounts.get(username);
+            if (index != null) {
+                index.remove(id);
+            }
+        });
+    }
+
+    // the index being built is read first, so a change that races with the swap still reaches the new index
+    private void change(Consumer<ConcurrentMap<String, AccountIndex>> change) {
+        ConcurrentMap<String, AccountIndex> building = this.building;
+        if (building != null) {
+            change.accept(building);
+        }
+        ConcurrentMap<String, AccountIndex> accounts = this.accounts;
+        if (accounts != building) {
+            change.accept(accounts);
+        }
+    }
+
+    private static void add(ConcurrentMap<String, AccountIndex> accounts, String username, long id, Set<String> terms) {
+        accounts.computeIfAbsent(username, u -> new AccountIndex()).add(id, terms);
+    }
+
+    private static Set<String> terms(String uri, String description) {
+        Set<String> terms = new LinkedHashSet<>();
+        terms.addAll(tokenize(uri));
+        terms.addAll(tokenize(description));
+        return terms;
+    }
+
+    /**
+     * Ids of the bookmarks of {@code username} that contain every word of
+     * {@code query}, in ascending order.
+     */
+    public long[] find(String username, String query, int limit) {
+        CountDownLatch loading = this.loading;
+        if (loading != null) {
+            try {
+                loading.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new long[0];
+            }
+        }
+        AccountIndex index = this.accounts.get(username);
+        List<String> terms = tokenize(query);
+        if (index == null || terms.isEmpty()) {
+            return new long[0];
+        }
+        return index.find(terms, Math.min(Math.max(limit, 1), MAX_RESULTS));
+    }
+
+    public List<BookmarkView> search(String username, String query, int limit) {
+        long[] ids = this.find(username, query, limit);
+        if (ids.length == 0) {
+            return Collections.emptyList();
+        }
+        List<Long> boxed = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            boxed.add(id);
+        }
+        return this.bookmarkRepository.findViewsByIdIn(boxed);
+    }
+
+    /**
+     * Lower-cased runs of letters and digits, so URI hosts and path segments
+     * split on their dots, slashes and dashes. A leading URI scheme is skipped.
+     */
+    static List<String> tokenize(String text) {
+        if (text == null) {
+            return Collections.emptyList();
+        }
+        List<String> tokens = new ArrayList<>();
+        int scheme = text.indexOf("://");
+        int start = scheme > 0 && scheme < 16 ? scheme + 3 : 0;
+        StringBuilder token = new StringBuilder();
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static final class Change {
+
+        final BookmarkChangeListener.Change change;
+
+        final String username;
+
+        final Long id;
+
+        final String uri;
+
+        final String description;
+
+        Change(BookmarkChangeListener.Change change, Bookmark bookmark) {
+            this.change = change;
+            this.username = bookmark.getAccount().getUsername();
+            this.id = bookmark.getId();
+            this.uri = bookmark.getUri();
+            this.description = bookmark.getDescription();
+        }
+    }
+
+    private static class AccountIndex {
+
+        private final Map<String, Postings> postings = new HashMap<>();
+
+        // the terms each bookmark is listed under, so that removing it only visits those lists
+        private final Map<Long, String[]> terms = new HashMap<>();
+
+        synchronized void add(long id, Set<String> terms) {
+            for (String term : terms) {
+                this.postings.computeIfAbsent(term, t -> new Postings()).add(id);
+            }
+            String[] listed = this.terms.get(id);
+            if (listed == null) {
+                this.terms.put(id, terms.toArray(new String[terms.size()]));
+            } else if (!Arrays.asList(listed).containsAll(terms)) {
+                Set<String> union = new LinkedHashSet<>(Arrays.asList(listed));
+                union.addAll(terms);
+                this.terms.put(id, union.toArray(new String[union.size()]));
+            }
+        }
+
+        synchronized void remove(long id) {
+            String[] listed = this.terms.remove(id);
+            if (listed == null) {
+                return;
+            }
+            for (String term : listed) {
+                Postings postings = this.postings.get(term);
+                if (postings != null && postings.remove(id) && postings.size == 0) {
+                    this.postings.remove(term);
+                }
+            }
+        }
+
+        synchronized long[] find(List<String> terms, int limit) {
+            Postings[] lists = new Postings[terms.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = this.postings.get(terms.get(i));
+                if (lists[i] == null) {
+                    return new long[0];
+                }
+            }
+            Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+            long[] matches = new long[Math.min(limit, lists[0].size)];
+            int found = 0;
+            for (int i = 0; i < lists[0].size && found < matches.length; i++) {
+                long id = lists[0].ids[i];
+                boolean all = true;
+                for (int l = 1; l < lists.length && all; l++) {
+                    all = lists[l].contains(id);
+                }
+                if (all) {
+                    matches[found++] = id;
+                }
+            }
+            return Arrays.copyOf(matches, found);
+        }
+    }
+
+    private static class Postings {
+
+        private long[] ids = new long[4];
+
+        private int size;
+
+        void add(long id) {
+            // ids are mostly allocated in ascending order, so this is usually an append
+            int at = this.size == 0 || this.ids[this.size - 1] < id ? -(this.size + 1)
+                    : Arrays.binarySearch(this.ids, 0, this.size, id);
+            if (at >= 0) {
+                return;
+            }
+            at = -(at + 1);
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            System.arraycopy(this.ids, at, this.ids, at + 1, this.size - at);
+            this.ids[at] = id;
+            this.size++;
+        }
+
+        boolean remove(long id) {
+            int at = Arrays.binarySearch(this.ids, 0, this.size, id);
+            if (at < 0) {
+                return false;
+            }
+            System.arraycopy(this.ids, at + 1, this.ids, at, this.size - at - 1);
+            this.size--;
+            return true;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(this.ids, 0, this.size, id) >= 0;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package bookmarks;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bookmarks in the protocol buffers wire format, each one a length-prefixed
+ * message as {@code writeDelimitedTo} would write it:
+ * <pre>
+ * message Bookmark {
+ *     int64 id = 1;
+ *     string uri = 2;
+ *     string description = 3;
+ * }
+ * </pre>
+ * A single bookmark is one message and a collection is one message per
+ * element, back to back, so clients can decode as they read. Three fields
+ * do not justify a protobuf runtime on the server, and any protobuf library
+ * reads this with {@code parseDelimitedFrom}. The format has no place for
+ * links, so HAL resources are not offered in it.
+ * <p>
+ * Every length on the wire is checked against what is left of the body before
+ * anything is allocated for it. A request body may be no longer than its
+ * {@code Content-Length} or {@link #MAX_REQUEST_BYTES}, whichever is smaller.
+ */
+public class BookmarkProtobufHttpMessageConverter extends AbstractHttpMessageConverter<Object> {
+
+    public static final String PROTOBUF_VALUE = "application/x-protobuf";
+
+    public static final MediaType PROTOBUF = MediaType.valueOf(PROTOBUF_VALUE);
+
+    // a bookmark's columns add up to well under 1KB, which leaves room for fields this server skips
+    public static final int MAX_REQUEST_BYTES = 64 * 1024;
+
+    // (field number << 3) | wire type, where 0 is a varint and 2 is length-delimited
+    private static final int ID = 1 << 3;
+
+    private static final int URI = 2 << 3 | 2;
+
+    private static final int DESCRIPTION = 3 << 3 | 2;
+
+    public BookmarkProtobufHttpMessageConverter() {
+        super(PROTOBUF);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return Bookmark.class.isAssignableFrom(clazz) || BookmarkView.class.isAssignableFrom(clazz)
+                || Collection.class.isAssignableFrom(clazz);
+    }
+
+    // request bodies are single bookmarks
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return clazz == Bookmark.class && this.canRead(mediaType);
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) throws IOException {
+        long contentLength = inputMessage.getHeaders().getContentLength();
+        long limit = contentLength >= 0 ? Math.min(contentLength, MAX_REQUEST_BYTES) : MAX_REQUEST_BYTES;
+        List<Bookmark> bookmarks;
+        try {
+            bookmarks = read(inputMessage.getBody(), limit);
+        } catch (IOException e) {
+            // a body that ends early is the client's mistake, not the server's
+            throw new HttpMessageNotReadableException("Could not read protobuf bookmark: " + e.getMessage(), e);
+        }
+        if (bookmarks.size() != 1) {
+            throw new HttpMessageNotReadableException("Expected one bookmark but got " + bookmarks.size());
+        }
+        return bookmarks.get(0);
+    }
+
+    @Override
+    protected void writeInternal(Object body, HttpOutputMessage outputMessage) throws IOException {
+        OutputStream out = new BufferedOutputStream(outputMessage.getBody());
+        write(body, out);
+        out.flush();
+    }
+
+    /**
+     * Writes a {@link Bookmark}, a {@link BookmarkView} or a collection of
+     * either.
+     */
+    public static void write(Object body, OutputStream out) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream(128);
+        for (Object item : body instanceof Collection ? (Collection<?>) body : Collections.singleton(body)) {
+            message.reset();
+            if (item instanceof Bookmark) {
+                Bookmark bookmark = (Bookmark) item;
+                writeFields(message, bookmark.getId(), bookmark.getUri(), bookmark.getDescription());
+            } else if (item instanceof BookmarkView) {
+                BookmarkView view = (BookmarkView) item;
+                writeFields(message, view.getId(), view.getUri(), view.getDescription());
+            } else {
+                throw new HttpMessageNotWritableException("Cannot write "
+                        + (item == null ? "null" : item.getClass().getName()) + " as a protobuf bookmark");
+            }
+            writeVarint(out, message.size());
+            message.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads messages until the end of the stream, skipping unknown fields.
+     */
+    public static List<Bookmark> read(InputStream body) throws IOException {
+        return read(body, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads messages until the end of the stream, refusing the body once it
+     * claims more than {@code limit} bytes.
+     */
+    public static List<Bookmark> read(InputStream body, long limit) throws IOException {
+        InputStream in = new BufferedInputStream(body);
+        List<Bookmark> bookmarks = new ArrayList<>();
+        long remaining = limit;
+        for (long length = readVarint(in, true); length >= 0; length = readVarint(in, true)) {
+            // counting the prefix as one byte keeps empty messages from being free
+            remaining -= 1;
+            bookmarks.add(readFields(new ByteArrayInputStream(readBytes(in, length, remaining))));
+            remaining -= length;
+        }
+        return bookmarks;
+    }
+
+    private static void writeFields(OutputStream out, Long id, String uri, String description) throws IOException {
+        if (id != null) {
+            out.write(ID);
+            writeVarint(out, id);
+        }
+        writeString(out, URI, uri);
+        writeString(out, DESCRIPTION, description);
+    }
+
+    // the message is in memory already, so its fields can be no longer than what it has left
+    private static Bookmark readFields(ByteArrayInputStream in) throws IOException {
+        Bookmark bookmark = new Bookmark();
+        for (long tag = readVarint(in, true); tag >= 0; tag = readVarint(in, true)) {
+            if (tag == ID) {
+                bookmark.setId(readVarint(in, false));
+            } else if (tag == URI) {
+                bookmark.uri = new String(readBytes(in, readVarint(in, false), in.available()), StandardCharsets.UTF_8);
+            } else if (tag == DESCRIPTION) {
+                bookmark.description = new String(readBytes(in, readVarint(in, false), in.available()), StandardCharsets.UTF_8);
+            } else {
+                skip(in, (int) (tag & 7));
+            }
+        }
+        return bookmark;
+    }
+
+    private static void writeString(OutputStream out, int tag, String value) throws IOException {
+        if (value != null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.write(tag);
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    // -1 at a clean end of stream, if that is allowed here
+    private static long readVarint(InputStream in, boolean endAllowed) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0 && endAllowed) {
+                    return -1;
+                }
+                throw new EOFException("Truncated varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new HttpMessageNotReadableException("Malformed varint");
+    }
+
+    private static byte[] readBytes(InputStream in, long length, long limit) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new HttpMessageNotReadableException("Bad length " + length);
+        }
+        if (length > limit) {
+            throw new HttpMessageNotReadableException("Length " + length + " is more than the " + limit + " bytes left");
+        }
+        byte[] bytes = new byte[(int) length];
+        for (int read = 0; read < bytes.length; ) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated message");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    private static void skip(ByteArrayInputStream in, int wireType) throws IOException {
+        switch (wireType) {
+            case 0:
+                readVarint(in, false);
+                break;
+            case 1:
+                readBytes(in, 8, in.available());
+                break;
+            case 2:
+                readBytes(in, readVarint(in, false), in.available());
+                break;
+            case 5:
+                readBytes(in, 4, in.available());
+                break;
+            default:
+                throw new HttpMessageNotReadableException("Unsupported wire type " + wireType);
+        }
+    }
+}
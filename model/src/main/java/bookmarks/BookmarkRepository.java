@@ -1,10 +1,55 @@
 package bookmarks;
 
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.QueryHint;
 import java.util.Collection;
+import java.util.List;
 
+// queries run read-only, so the replicas profile can send them to a replica; writes are read-write here
+// or, like delete and flush, in SimpleJpaRepository
+@Transactional(readOnly = true)
 public interface BookmarkRepository extends JpaRepository<Bookmark, Long> {
+
+    @Override
+    @Transactional
+    <S extends Bookmark> S save(S entity);
+
+    @Override
+    @Transactional
+    <S extends Bookmark> List<S> save(Iterable<S> entities);
+
+    // the query cache hints only take effect under the l2cache profile
+    // spelled out because the derived query outer joins the account, which H2 can only plan as a bookmark table scan
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
+    @Query("select b from Bookmark b join fetch b.url where b.account.username = ?1")
     Collection<Bookmark> findByAccountUsername(String username);
+
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
+    @Query("select new bookmarks.BookmarkView(b.id, b.url.uri, b.description) from Bookmark b " +
+            "where b.account.username = ?1 order by b.id")
+    List<BookmarkView> findViewsByAccountUsername(String username);
+
+    // keyset pagination: pass the last id of the previous page, never an offset
+    @Query("select new bookmarks.BookmarkView(b.id, b.url.uri, b.description) from Bookmark b " +
+            "where b.account.username = ?1 and b.id > ?2 order by b.id")
+    List<BookmarkView> findViewsByAccountUsernameAfter(String username, Long after, Pageable pageable);
+
+    @Query("select new bookmarks.BookmarkView(b.id, b.url.uri, b.description) from Bookmark b where b.id = ?1")
+    BookmarkView findViewById(Long id);
+
+    @Query("select new bookmarks.BookmarkView(b.id, b.url.uri, b.description) from Bookmark b " +
+            "where b.id in ?1 order by b.id")
+    List<BookmarkView> findViewsByIdIn(Collection<Long> ids);
+
+    // rows of (username, id, uri, description), keyset paged over the whole table
+    // the username comes from a subquery so that H2 walks the bookmark primary key instead of scanning accounts
+    @Query("select (select a.username from Account a where a = b.account), b.id, b.url.uri, b.description " +
+            "from Bookmark b where b.id > ?1 order by b.id")
+    List<Object[]> findIndexRowsAfter(Long after, Pageable pageable);
 }
@@ -0,0 +1,71 @@
+package bookmarks;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Walks an account's bookmarks in id order, one keyset page of
+ * {@link BookmarkView}s at a time, so that callers never hold more than a page
+ * at once.
+ */
+@Component
+public class BookmarkScroller {
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private final BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    public BookmarkScroller(BookmarkRepository bookmarkRepository) {
+        this.bookmarkRepository = bookmarkRepository;
+    }
+
+    public static int pageSize(int limit) {
+        return Math.min(Math.max(limit, 1), MAX_PAGE_SIZE);
+    }
+
+    public List<BookmarkView> page(String username, Long after, int limit) {
+        return this.bookmarkRepository.findViewsByAccountUsernameAfter(
+                username, after == null ? 0L : after, new PageRequest(0, limit));
+    }
+
+    public void scroll(String username, int pageSize, Consumer<BookmarkView> consumer) {
+        Long after = 0L;
+        List<BookmarkView> page;
+        do {
+            page = this.page(username, after, pageSize);
+            page.forEach(consumer);
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == pageSize);
+    }
+
+    /**
+     * Writes each bookmark, converted by {@code mapper}, as the next value of an
+     * array the caller has already opened on {@code generator}.
+     */
+    public <T> void stream(String username, JsonGenerator generator, Function<BookmarkView, T> mapper) throws IOException {
+        try {
+            this.scroll(username, DEFAULT_PAGE_SIZE, bookmark -> {
+                try {
+                    generator.writeObject(mapper.apply(bookmark));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
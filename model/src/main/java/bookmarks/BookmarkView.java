@@ -0,0 +1,38 @@
+package bookmarks;
+
+/**
+ * A read-only copy of a {@link Bookmark}'s columns. Queries that select it with
+ * a constructor expression skip entity hydration, the persistence context
+ * snapshot and dirty checking, and never touch the owning {@link Account}.
+ * It serializes to the same JSON as {@link Bookmark}.
+ */
+public class BookmarkView {
+
+    private final Long id;
+
+    private final String uri;
+
+    private final String description;
+
+    public BookmarkView(Long id, String uri, String description) {
+        this.id = id;
+        this.uri = Urls.intern(uri);
+        this.description = description;
+    }
+
+    public BookmarkView(Bookmark bookmark) {
+        this(bookmark.getId(), bookmark.getUri(), bookmark.getDescription());
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
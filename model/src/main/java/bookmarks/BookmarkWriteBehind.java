@@ -0,0 +1,371 @@
+package bookmarks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Optional write-behind for single bookmark creation. With
+ * {@code bookmarks.write-behind.enabled=true}, {@link #enqueue(Bookmark)} gives
+ * the bookmark its id from the entity's own sequence generator and puts it on
+ * a bounded queue. The caller can answer {@code 202 Accepted} at once. A single
+ * flusher thread then inserts queued bookmarks as one JDBC batch per
+ * transaction, with one commit per batch. A batch is written when it reaches
+ * {@code batch-size} or when its first bookmark has waited {@code max-delay-millis}.
+ * <p>
+ * Durability: an accepted bookmark lives only in memory until its batch
+ * commits. A crash loses everything still queued. A bookmark the database
+ * would refuse, such as one whose URI is too long, is turned away by
+ * {@link #enqueue(Bookmark)} with an {@link InvalidBookmarkException}. A batch
+ * whose transaction fails anyway is retried {@code retries} times, waiting
+ * {@code retry-backoff-millis} and then twice as long each time. After that
+ * its rows are inserted one at a time, so that one bad row does not take the
+ * rest with it. Rows that still fail are logged, dropped and counted in
+ * {@link #getFailed()}. Until a batch commits, reads do not see it and ETags
+ * do not change. {@link BookmarkChangeListener} is told about the batch
+ * after the commit.
+ * <p>
+ * Backpressure: when the queue is full, {@link #enqueue(Bookmark)} throws
+ * {@link DatabaseBusyException}. On shutdown new bookmarks are refused, and
+ * the queue is drained for up to {@code shutdown-timeout-seconds} before
+ * the DataSource goes away. After that the flusher is interrupted and
+ * given a few seconds to give up its batch; anything left is lost and
+ * counted as failed, once.
+ */
+@Component
+public class BookmarkWriteBehind implements InitializingBean, DisposableBean {
+
+    private static final Log log = LogFactory.getLog(BookmarkWriteBehind.class);
+
+    private static final String INSERT = "insert into bookmark (id, account_id, url_id, description) values (?, ?, ?, ?)";
+
+    // how often the flusher looks up from the queue to check for drain() and shutdown
+    private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // how long an interrupted flusher gets to leave the batch it is writing
+    private static final long INTERRUPT_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final boolean enabled;
+
+    private final int batchSize;
+
+    private final long maxDelayNanos;
+
+    private final int retries;
+
+    private final long retryBackoffMillis;
+
+    private final long shutdownTimeoutSeconds;
+
+    private final BlockingQueue<Bookmark> queue;
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    // queued plus taken off the queue but not yet written
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final LongAdder flushed = new LongAdder();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final SessionFactoryImplementor sessionFactory;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private volatile boolean accepting;
+
+    private volatile boolean flushRequested;
+
+    private Thread flusher;
+
+    private ShardRoutingDataSource shards;
+
+    @Autowired
+    public BookmarkWriteBehind(EntityManagerFactory entityManagerFactory, DataSource dataSource,
+                               PlatformTransactionManager transactionManager,
+                               @Value("${bookmarks.write-behind.enabled:false}") boolean enabled,
+                               @Value("${bookmarks.write-behind.capacity:10000}") int capacity,
+                               @Value("${bookmarks.write-behind.batch-size:500}") int batchSize,
+                               @Value("${bookmarks.write-behind.max-delay-millis:50}") long maxDelayMillis,
+                               @Value("${bookmarks.write-behind.retries:3}") int retries,
+                               @Value("${bookmarks.write-behind.retry-backoff-millis:100}") long retryBackoffMillis,
+                               @Value("${bookmarks.write-behind.shutdown-timeout-seconds:30}") long shutdownTimeoutSeconds) {
+        this.sessionFactory = (SessionFactoryImplementor) entityManagerFactory.unwrap(SessionFactory.class);
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.retries = retries;
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+    }
+
+    @Autowired(required = false)
+    void setShards(ShardRoutingDataSource shards) {
+        this.shards = shards;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (this.enabled) {
+            this.accepting = true;
+            this.flusher = new Thread(this::run, "bookmarks-write-behind");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+    }
+
+    /**
+     * Checks that {@code bookmark} can be inserted, assigns it its id and
+     * queues it for insertion.
+     */
+    public Bookmark enqueue(Bookmark bookmark) {
+        Bookmark.validate(bookmark);
+        if (!this.accepting) {
+            throw new DatabaseBusyException();
+        }
+        bookmark.setId(this.allocateId());
+        this.pending.incrementAndGet();
+        if (!this.queue.offer(bookmark)) {
+            this.pending.decrementAndGet();
+            throw new DatabaseBusyException();
+        }
+        return bookmark;
+    }
+
+    // the pooled optimizer only reaches the sequence once per increment_size ids
+    private Long allocateId() {
+        IdentifierGenerator generator = this.sessionFactory.getIdentifierGenerator(Bookmark.class.getName());
+        StatelessSession session = this.sessionFactory.openStatelessSession();
+        try {
+            return (Long) generator.generate((SessionImplementor) session, null);
+        } finally {
+            session.close();
+        }
+    }
+
+    private void run() {
+        while (this.accepting || !this.queue.isEmpty()) {
+            try {
+                Bookmark first = this.queue.poll(SLICE_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<Bookmark> batch = new ArrayList<>(this.batchSize);
+                batch.add(first);
+                long deadline = System.nanoTime() + this.maxDelayNanos;
+                while (batch.size() < this.batchSize) {
+                    this.queue.drainTo(batch, this.batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= this.batchSize || remaining <= 0 || this.flushRequested || !this.accepting) {
+                        break;
+                    }
+                    Bookmark next = this.queue.poll(Math.min(remaining, SLICE_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                this.write(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes everything queued so far on the calling thread and returns once
+     * it has committed.
+     */
+    public void drain() throws InterruptedException {
+        this.flushRequested = true;
+        try {
+            List<Bookmark> batch = new ArrayList<>(this.batchSize);
+            while (this.queue.drainTo(batch, this.batchSize) > 0) {
+                this.write(batch);
+                batch = new ArrayList<>(this.batchSize);
+            }
+            // the flusher may still be gathering or writing a batch of its own
+            while (this.pending.get() > 0) {
+                Thread.sleep(1);
+            }
+        } finally {
+            this.flushRequested = false;
+        }
+    }
+
+    private void write(List<Bookmark> batch) {
+        this.flushLock.lock();
+        try {
+            // a transaction only spans one shard, so a batch commits once per shard it touches
+            Map<Integer, List<Bookmark>> byShard = new LinkedHashMap<>();
+            for (Bookmark bookmark : batch) {
+                Integer shard = this.shards == null ? null : this.shards.shardOf(bookmark.getAccount().getUsername());
+                byShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(bookmark);
+            }
+            List<Bookmark> written = new ArrayList<>(batch.size());
+            for (Map.Entry<Integer, List<Bookmark>> entry : byShard.entrySet()) {
+                List<Bookmark> rows = entry.getValue();
+                Integer previous = ShardContext.bind(entry.getKey());
+                try {
+                    List<Bookmark> inserted = this.insert(rows);
+                    if (!inserted.isEmpty()) {
+                        this.flushed.add(inserted.size());
+                        this.batches.increment();
+                        written.addAll(inserted);
+                    }
+                    this.failed.add(rows.size() - inserted.size());
+                } finally {
+                    ShardContext.restore(previous);
+                }
+            }
+            if (!written.isEmpty()) {
+                // plain JDBC bypasses Hibernate, so cached queries and in-memory views are updated by hand
+                this.sessionFactory.getCache().evictQueryRegions();
+                written.forEach(this::notifyPersisted);
+            }
+        } finally {
+            // even when this batch failed, or drain would wait for it forever
+            this.pending.addAndGet(-batch.size());
+            this.flushLock.unlock();
+        }
+    }
+
+    // the rows have committed, so a listener that fails must not take the flusher thread down with it
+    private void notifyPersisted(Bookmark bookmark) {
+        try {
+            BookmarkChangeListener.changed(BookmarkChangeListener.Change.PERSISTED, bookmark);
+        } catch (RuntimeException e) {
+            log.error("a listener failed on bookmark " + bookmark.getId() + " of " + bookmark.getAccount().getUsername(), e);
+        }
+    }
+
+    // returns the rows that were committed
+    private List<Bookmark> insert(List<Bookmark> rows) {
+        long backoffMillis = this.retryBackoffMillis;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                this.insertBatch(rows);
+                return rows;
+            } catch (RuntimeException e) {
+                log.warn("writing a batch of " + rows.size() + " bookmarks failed (attempt " + (attempt + 1) + ")", e);
+                if (attempt >= this.retries) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                // shutting down: whatever is left counts as failed
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            }
+            backoffMillis *= 2;
+        }
+        // find the rows that keep failing the batch and write the rest
+        List<Bookmark> inserted = new ArrayList<>(rows.size());
+        for (Bookmark row : rows) {
+            try {
+                this.insertBatch(Collections.singletonList(row));
+                inserted.add(row);
+            } catch (RuntimeException e) {
+                log.error("dropping bookmark " + row.getId() + " of " + row.getAccount().getUsername()
+                        + " for " + row.uri, e);
+            }
+        }
+        return inserted;
+    }
+
+    private void insertBatch(List<Bookmark> rows) {
+        this.transactionTemplate.execute(status -> {
+            Map<String, Long> urls = this.jdbcTemplate.execute((ConnectionCallback<Map<String, Long>>)
+                    connection -> Urls.store(connection, rows.stream().map(b -> b.uri).collect(Collectors.toList())));
+            return this.jdbcTemplate.batchUpdate(INSERT, rows, rows.size(), (ps, bookmark) -> {
+                ps.setLong(1, bookmark.getId());
+                ps.setLong(2, bookmark.getAccount().getId());
+                ps.setLong(3, urls.get(bookmark.uri));
+                ps.setString(4, bookmark.description);
+            });
+        });
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (this.flusher == null) {
+            return;
+        }
+        this.accepting = false;
+        this.flusher.join(TimeUnit.SECONDS.toMillis(this.shutdownTimeoutSeconds));
+        if (this.flusher.isAlive()) {
+            this.flusher.interrupt();
+            // an interrupted write counts its own batch as failed, so wait for it before counting the rest
+            this.flusher.join(INTERRUPT_GRACE_MILLIS);
+        }
+        if (this.flusher.isAlive()) {
+            // still in a statement: the batch it holds is its own to count, only the queue is left to us
+            log.warn("the write-behind flusher did not stop within " + INTERRUPT_GRACE_MILLIS + "ms of being interrupted");
+            this.failed.add(this.queue.drainTo(new ArrayList<>()));
+        } else {
+            // still queued, or gathered into a batch that the interrupt abandoned
+            this.failed.add(this.pending.get());
+            this.queue.clear();
+        }
+    }
+
+    /**
+     * Bookmarks accepted but not yet committed, whether still queued or in
+     * the batch being written.
+     */
+    public int getQueueDepth() {
+        return this.pending.get();
+    }
+
+    public long getFlushed() {
+        return this.flushed.sum();
+    }
+
+    public long getBatches() {
+        return this.batches.sum();
+    }
+
+    public long getFailed() {
+        return this.failed.sum();
+    }
+}
@@ -0,0 +1,51 @@
+package bookmarks;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * A response body that has already been serialized and compressed. It is
+ * written out byte for byte, whatever converter would otherwise have handled
+ * its content type.
+ */
+public final class CompressedBody {
+
+    private final byte[] bytes;
+
+    private final MediaType contentType;
+
+    private final String encoding;
+
+    public CompressedBody(byte[] bytes, MediaType contentType, String encoding) {
+        this.bytes = bytes;
+        this.contentType = contentType;
+        this.encoding = encoding;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public MediaType getContentType() {
+        return contentType;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * A {@code 200} with {@code headers} plus the content headers of this body.
+     */
+    public ResponseEntity<CompressedBody> toResponse(HttpHeaders headers) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.putAll(headers);
+        httpHeaders.setContentType(this.contentType);
+        httpHeaders.setContentLength(this.bytes.length);
+        httpHeaders.set("Content-Encoding", this.encoding);
+        httpHeaders.set("Vary", "Accept, Accept-Encoding");
+        return new ResponseEntity<>(this, httpHeaders, HttpStatus.OK);
+    }
+}
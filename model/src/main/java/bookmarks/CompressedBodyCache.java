@@ -0,0 +1,180 @@
+package bookmarks;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps compressed bookmark lists, so that reading an unchanged list again
+ * skips the query, the serialization and the compression. Entries are keyed
+ * by the account, its {@link AccountVersions} ETag, the content coding and
+ * anything else the body depends on, such as the base URI of its links. A
+ * write therefore makes older entries unreachable rather than stale, and the
+ * LRU policy drops them. Bodies larger than
+ * {@code bookmarks.compression.max-cached-bytes} are compressed but not kept,
+ * so the cache holds at most {@code cache-size} times that many bytes.
+ */
+@Component
+public class CompressedBodyCache {
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private final ExpiringCache<String, CompressedBody> cache;
+
+    private final int maxCachedBytes;
+
+    private final boolean enabled;
+
+    @Autowired
+    public CompressedBodyCache(@Value("${bookmarks.compression.enabled:true}") boolean enabled,
+                               @Value("${bookmarks.compression.cache-size:1000}") int cacheSize,
+                               @Value("${bookmarks.compression.cache-ttl-seconds:600}") long ttlSeconds,
+                               @Value("${bookmarks.compression.max-cached-bytes:262144}") int maxCachedBytes) {
+        this.cache = new ExpiringCache<>(cacheSize, ttlSeconds, TimeUnit.SECONDS);
+        this.maxCachedBytes = maxCachedBytes;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * The content coding for a list body, or {@code null} to send it as usual.
+     */
+    public String negotiate(String acceptEncoding) {
+        return this.enabled ? preferredEncoding(acceptEncoding) : null;
+    }
+
+    /**
+     * The content coding to answer {@code Accept-Encoding} with: {@code gzip}
+     * unless the client prefers {@code deflate}, or {@code null} for neither.
+     */
+    public static String preferredEncoding(String acceptEncoding) {
+        if (!StringUtils.hasText(acceptEncoding)) {
+            return null;
+        }
+        double gzip = -1, deflate = -1, any = -1;
+        for (String coding : StringUtils.commaDelimitedListToStringArray(acceptEncoding)) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            double quality = quality(parts);
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = Math.max(gzip, quality);
+            } else if (name.equals(DEFLATE)) {
+                deflate = Math.max(deflate, quality);
+            } else if (name.equals("*")) {
+                any = Math.max(any, quality);
+            }
+        }
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * Whether content negotiation for {@code accept} would settle on
+     * {@code mediaType}, or at least on a range that includes it.
+     */
+    public static boolean prefers(String accept, MediaType mediaType) {
+        if (!StringUtils.hasText(accept)) {
+            return true;
+        }
+        List<MediaType> accepted;
+        try {
+            accepted = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+        MediaType.sortBySpecificityAndQuality(accepted);
+        for (MediaType candidate : accepted) {
+            if (candidate.getQualityValue() > 0) {
+                return candidate.includes(mediaType);
+            }
+        }
+        return false;
+    }
+
+    public ResponseEntity<CompressedBody> getIfPresent(String username, String etag, String variant,
+                                                       String encoding, HttpHeaders headers) {
+        CompressedBody body = this.cache.getIfPresent(key(username, etag, variant, encoding));
+        return body == null ? null : body.toResponse(headers);
+    }
+
+    /**
+     * Serializes with {@code writer} into a compressed buffer and keeps the
+     * result if it is small enough.
+     */
+    public ResponseEntity<CompressedBody> compress(String username, String etag, String variant, String encoding,
+                                                   MediaType contentType, HttpHeaders headers,
+                                                   BodyWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        try (OutputStream out = GZIP.equals(encoding)
+                ? new GZIPOutputStream(bytes, 8192) : new DeflaterOutputStream(bytes)) {
+            writer.writeTo(out);
+        }
+        CompressedBody body = new CompressedBody(bytes.toByteArray(), contentType, encoding);
+        if (body.getBytes().length <= this.maxCachedBytes) {
+            this.cache.put(key(username, etag, variant, encoding), body);
+        }
+        return body.toResponse(headers);
+    }
+
+    public int size() {
+        return this.cache.size();
+    }
+
+    public long getHits() {
+        return this.cache.getHits();
+    }
+
+    public long getMisses() {
+        return this.cache.getMisses();
+    }
+
+    public long getEvictions() {
+        return this.cache.getEvictions();
+    }
+
+    private static String key(String username, String etag, String variant, String encoding) {
+        return username + '\n' + etag + '\n' + variant + '\n' + encoding;
+    }
+
+    private static double quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    public interface BodyWriter {
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,113 @@
+package bookmarks;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletContainer;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import java.io.IOException;
+
+/**
+ * Compresses responses in two ways:
+ * <ul>
+ * <li>Tomcat gzips any JSON, HAL or text response of at least
+ * {@code bookmarks.compression.min-size} bytes for clients that accept it.</li>
+ * <li>The bookmark list endpoints answer from a {@link CompressedBodyCache},
+ * with gzip or deflate. Tomcat leaves those bodies alone because they already
+ * carry a {@code Content-Encoding}.</li>
+ * </ul>
+ * {@code bookmarks.compression.enabled=false} turns both off.
+ */
+@Configuration
+class CompressionConfiguration {
+
+    @Bean
+    EmbeddedServletContainerCustomizer compressionCustomizer(
+            @Value("${bookmarks.compression.enabled:true}") boolean enabled,
+            @Value("${bookmarks.compression.min-size:2048}") int minSize,
+            @Value("${bookmarks.compression.mime-types:application/json,application/hal+json,text/html,text/plain}") String mimeTypes) {
+        return (ConfigurableEmbeddedServletContainer container) -> {
+            if (enabled && container instanceof TomcatEmbeddedServletContainerFactory) {
+                ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector -> {
+                    connector.setProperty("compression", "on");
+                    connector.setProperty("compressionMinSize", Integer.toString(minSize));
+                    connector.setProperty("compressableMimeType", mimeTypes);
+                });
+            }
+        };
+    }
+
+    @Bean
+    static BeanPostProcessor compressedBodyConverterPostProcessor() {
+        return new CompressedBodyConverterPostProcessor();
+    }
+
+    /**
+     * Puts the {@link CompressedBodyHttpMessageConverter} first, ahead of the
+     * Jackson converters that would otherwise serialize the body as a bean.
+     * This runs after initialization because Spring HATEOAS replaces the
+     * converter list before it. The return value handlers share the list, so
+     * the converter reaches them too.
+     */
+    static class CompressedBodyConverterPostProcessor implements BeanPostProcessor {
+
+        @Override
+        public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+            return bean;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+            if (bean instanceof RequestMappingHandlerAdapter) {
+                ((RequestMappingHandlerAdapter) bean).getMessageConverters().add(0, new CompressedBodyHttpMessageConverter());
+            }
+            return bean;
+        }
+    }
+
+    /**
+     * Writes a {@link CompressedBody} as it is. Its content headers are set on
+     * the response entity.
+     */
+    static class CompressedBodyHttpMessageConverter extends AbstractHttpMessageConverter<CompressedBody> {
+
+        CompressedBodyHttpMessageConverter() {
+            super(MediaType.ALL);
+        }
+
+        @Override
+        protected boolean supports(Class<?> clazz) {
+            return CompressedBody.class == clazz;
+        }
+
+        @Override
+        public boolean canRead(Class<?> clazz, MediaType mediaType) {
+            return false;
+        }
+
+        @Override
+        protected CompressedBody readInternal(Class<? extends CompressedBody> clazz, HttpInputMessage inputMessage) {
+            throw new HttpMessageNotReadableException("Compressed bodies are only written");
+        }
+
+        @Override
+        protected Long getContentLength(CompressedBody body, MediaType contentType) {
+            return (long) body.getBytes().length;
+        }
+
+        @Override
+        protected void writeInternal(CompressedBody body, HttpOutputMessage outputMessage) throws IOException {
+            outputMessage.getBody().write(body.getBytes());
+        }
+    }
+}
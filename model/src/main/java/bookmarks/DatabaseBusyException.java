@@ -0,0 +1,16 @@
+package bookmarks;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown on the request thread when {@link DatabaseExecutor} has no room for
+ * another task, so that the client is turned away at once.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class DatabaseBusyException extends RuntimeException {
+
+    public DatabaseBusyException() {
+        super("the database is busy, try again later.");
+    }
+}
@@ -0,0 +1,85 @@
+package bookmarks;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs repository work off the servlet container's request threads. The pool
+ * and its queue are both bounded, so when the database falls behind, new work
+ * is refused with a {@link DatabaseBusyException} instead of piling up.
+ * <p>
+ * Tasks run on pool threads, so anything that needs the current request
+ * (links, {@code ServletUriComponentsBuilder}, the principal) has to be
+ * captured before calling {@link #submit(Callable)}. With
+ * {@code bookmarks.async.enabled=false} tasks run inline on the caller's thread.
+ */
+@Component
+public class DatabaseExecutor implements DisposableBean {
+
+    private final boolean enabled;
+
+    private final ThreadPoolExecutor executor;
+
+    @Autowired
+    public DatabaseExecutor(@Value("${bookmarks.async.enabled:true}") boolean enabled,
+                            @Value("${bookmarks.async.threads:10}") int threads,
+                            @Value("${bookmarks.async.queue-capacity:100}") int queueCapacity) {
+        this.enabled = enabled;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("bookmarks-db-");
+        threadFactory.setDaemon(true);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static <T> DeferredResult<T> completed(T value) {
+        DeferredResult<T> result = new DeferredResult<>();
+        result.setResult(value);
+        return result;
+    }
+
+    public <T> DeferredResult<T> submit(Callable<T> task) {
+        DeferredResult<T> result = new DeferredResult<>();
+        if (!this.enabled) {
+            complete(result, task);
+            return result;
+        }
+        try {
+            this.executor.execute(() -> complete(result, task));
+        } catch (RejectedExecutionException e) {
+            throw new DatabaseBusyException();
+        }
+        return result;
+    }
+
+    private static <T> void complete(DeferredResult<T> result, Callable<T> task) {
+        try {
+            result.setResult(task.call());
+        } catch (Exception e) {
+            result.setErrorResult(e);
+        }
+    }
+
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.executor.shutdown();
+        this.executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
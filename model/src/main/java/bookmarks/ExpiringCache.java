@@ -0,0 +1,180 @@
+package bookmarks;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A small LRU cache whose entries also expire a fixed time after they were
+ * written. Lookups that load nothing ({@code null}) are not cached.
+ * <p>
+ * A value loaded by {@link #get} is only kept if its key was not invalidated
+ * while the load ran, since the load may have read what the invalidation was
+ * meant to remove. Keys share {@value #GENERATION_STRIPES} generation
+ * counters, so an invalidation can also keep an unrelated load from being
+ * cached, which only costs a later reload.
+ */
+public class ExpiringCache<K, V> {
+
+    private static final int GENERATION_STRIPES = 64;
+
+    private final int maxSize;
+
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    // guarded by entries, like the entries themselves
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    public ExpiringCache(int maxSize, long ttl, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                boolean full = size() > ExpiringCache.this.maxSize;
+                if (full) {
+                    evictions.increment();
+                }
+                return full;
+            }
+        };
+    }
+
+    public V get(K key, Function<K, V> loader) {
+        V value = this.getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        long generation;
+        synchronized (this.entries) {
+            generation = this.generations[stripe(key)];
+        }
+        value = loader.apply(key);
+        if (value != null) {
+            Entry<V> entry = new Entry<>(value, System.nanoTime());
+            synchronized (this.entries) {
+                if (this.generations[stripe(key)] == generation) {
+                    this.entries.put(key, entry);
+                }
+            }
+        }
+        return value;
+    }
+
+    public V getIfPresent(K key) {
+        long now = System.nanoTime();
+        synchronized (this.entries) {
+            Entry<V> entry = this.entries.get(key);
+            if (entry != null && now - entry.written < this.ttlNanos) {
+                this.hits.increment();
+                return entry.value;
+            }
+            if (entry != null) {
+                this.entries.remove(key);
+                this.evictions.increment();
+            }
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * Like {@link #getIfPresent}, but counts neither a hit nor a miss.
+     */
+    public V peek(K key) {
+        long now = System.nanoTime();
+        synchronized (this.entries) {
+            Entry<V> entry = this.entries.get(key);
+            return entry != null && now - entry.written < this.ttlNanos ? entry.value : null;
+        }
+    }
+
+    public void put(K key, V value) {
+        Entry<V> entry = new Entry<>(value, System.nanoTime());
+        synchronized (this.entries) {
+            this.entries.put(key, entry);
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (this.entries) {
+            this.entries.remove(key);
+            this.generations[stripe(key)]++;
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            for (int i = 0; i < GENERATION_STRIPES; i++) {
+                this.generations[i]++;
+            }
+        }
+    }
+
+    /**
+     * Drops every expired entry; {@link #get} only expires the entries it touches.
+     */
+    public void expire() {
+        long now = System.nanoTime();
+        synchronized (this.entries) {
+            for (Iterator<Entry<V>> it = this.entries.values().iterator(); it.hasNext(); ) {
+                if (now - it.next().written >= this.ttlNanos) {
+                    it.remove();
+                    this.evictions.increment();
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = this.getHits(), total = hits + this.getMisses();
+        return total == 0 ? 0d : (double) hits / total;
+    }
+
+    private static int stripe(Object key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long written;
+
+        Entry(V value, long written) {
+            this.value = value;
+            this.written = written;
+        }
+    }
+}
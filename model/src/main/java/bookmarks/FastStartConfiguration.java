@@ -0,0 +1,107 @@
+package bookmarks;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.Lifecycle;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Shortens startup when the {@code fast-start} profile is active.
+ * <ul>
+ * <li>Most singletons are created on first use instead of during refresh.</li>
+ * <li>The search index is loaded in the background.</li>
+ * <li>The demo accounts are not seeded, and JMX is off.</li>
+ * </ul>
+ * See {@code fast-start.properties}.
+ */
+@Configuration
+@Profile("fast-start")
+@PropertySource("classpath:fast-start.properties")
+class FastStartConfiguration {
+
+    @Bean
+    static BeanFactoryPostProcessor lazyInitBeanFactoryPostProcessor(Environment environment) {
+        return new LazyInitBeanFactoryPostProcessor(new HashSet<>(Arrays.asList(StringUtils.commaDelimitedListToStringArray(
+                StringUtils.trimAllWhitespace(environment.getProperty("bookmarks.fast-start.eager-beans", ""))))));
+    }
+
+    /**
+     * Marks bean definitions lazy, except for beans that only do their work if
+     * they exist before the first request:
+     * <ul>
+     * <li>infrastructure beans and post processors;</li>
+     * <li>lifecycle beans and event listeners;</li>
+     * <li>beans whose type cannot be told from the definition alone;</li>
+     * <li>beans listed in {@code bookmarks.fast-start.eager-beans}.</li>
+     * </ul>
+     */
+    static class LazyInitBeanFactoryPostProcessor implements BeanFactoryPostProcessor {
+
+        private static final Class<?>[] EAGER_TYPES = {BeanPostProcessor.class, BeanFactoryPostProcessor.class,
+                Lifecycle.class, ApplicationListener.class};
+
+        private final Set<String> eagerBeans;
+
+        LazyInitBeanFactoryPostProcessor(Set<String> eagerBeans) {
+            this.eagerBeans = eagerBeans;
+        }
+
+        @Override
+        public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+            for (String name : beanFactory.getBeanDefinitionNames()) {
+                BeanDefinition definition = beanFactory.getBeanDefinition(name);
+                if (definition.getRole() == BeanDefinition.ROLE_INFRASTRUCTURE || this.eagerBeans.contains(name)) {
+                    continue;
+                }
+                Class<?> type = type(beanFactory, definition);
+                if (type != null && Arrays.stream(EAGER_TYPES).noneMatch(eager -> eager.isAssignableFrom(type))) {
+                    definition.setLazyInit(true);
+                }
+            }
+        }
+
+        // from the class or the @Bean method's declared return type, without creating anything
+        private static Class<?> type(ConfigurableListableBeanFactory beanFactory, BeanDefinition definition) {
+            try {
+                String className = definition.getFactoryBeanName() != null
+                        ? beanFactory.getBeanDefinition(definition.getFactoryBeanName()).getBeanClassName()
+                        : definition.getBeanClassName();
+                if (className == null) {
+                    return null;
+                }
+                Class<?> type = ClassUtils.forName(className, beanFactory.getBeanClassLoader());
+                if (definition.getFactoryMethodName() == null) {
+                    return type;
+                }
+                Class<?> returnType = null;
+                for (Method method : ReflectionUtils.getUniqueDeclaredMethods(type)) {
+                    if (method.getName().equals(definition.getFactoryMethodName())) {
+                        if (returnType != null && returnType != method.getReturnType()) {
+                            return null;
+                        }
+                        returnType = method.getReturnType();
+                    }
+                }
+                return returnType;
+            } catch (BeansException | ClassNotFoundException | LinkageError e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package bookmarks;
+
+/**
+ * The 64-bit FNV-1a hash of a string's characters. Both {@link Url} ids and
+ * shard placement are derived from it and persisted, so it must never
+ * change.
+ */
+final class Fnv1a {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    private Fnv1a() {
+    }
+
+    static long hash(String value) {
+        long hash = OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= PRIME;
+        }
+        return hash;
+    }
+}
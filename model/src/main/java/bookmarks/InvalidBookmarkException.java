@@ -0,0 +1,17 @@
+package bookmarks;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown before a bookmark is accepted when it could never be written, so
+ * that the client hears about it instead of getting a {@code 202} for a row
+ * the database will refuse.
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidBookmarkException extends RuntimeException {
+
+    public InvalidBookmarkException(String message) {
+        super(message);
+    }
+}
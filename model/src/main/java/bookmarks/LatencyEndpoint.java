@@ -0,0 +1,54 @@
+package bookmarks;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves {@link LatencyMetrics} at {@code /latency}, in microseconds, tagged
+ * with {@code spring.application.name} so that the rest, hateoas and security
+ * variants can be told apart once collected. It is sensitive, so the
+ * security variant only shows it to authenticated users.
+ */
+@Component
+@ConfigurationProperties(prefix = "endpoints.latency", ignoreUnknownFields = false)
+public class LatencyEndpoint extends AbstractEndpoint<Map<String, Object>> {
+
+    private final LatencyMetrics latencyMetrics;
+
+    private final String application;
+
+    @Autowired
+    public LatencyEndpoint(LatencyMetrics latencyMetrics,
+                           @Value("${spring.application.name:bookmarks}") String application) {
+        super("latency", true, true);
+        this.latencyMetrics = latencyMetrics;
+        this.application = application;
+    }
+
+    @Override
+    public Map<String, Object> invoke() {
+        Map<String, Object> timers = new LinkedHashMap<>();
+        this.latencyMetrics.getTimers().forEach((name, timer) -> {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", timer.getCount());
+            summary.put("mean", timer.getMean(TimeUnit.MICROSECONDS));
+            summary.put("p50", timer.getPercentile(50, TimeUnit.MICROSECONDS));
+            summary.put("p99", timer.getPercentile(99, TimeUnit.MICROSECONDS));
+            summary.put("p999", timer.getPercentile(99.9, TimeUnit.MICROSECONDS));
+            summary.put("max", timer.getMax(TimeUnit.MICROSECONDS));
+            timers.put(name, summary);
+        });
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("application", this.application);
+        result.put("timers", timers);
+        result.put("gauges", this.latencyMetrics.getGauges());
+        return result;
+    }
+}
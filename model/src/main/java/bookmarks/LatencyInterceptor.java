@@ -0,0 +1,57 @@
+package bookmarks;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Times each handler method from the first dispatch until its response has
+ * been written, including the wait for a {@code DeferredResult} and the
+ * message converter's output. The start time is kept in a request attribute
+ * so that it survives the async dispatch. Timers are looked up by the
+ * handler's {@link Method}, since the {@link HandlerMethod} itself may be a
+ * fresh copy on every request.
+ */
+class LatencyInterceptor extends HandlerInterceptorAdapter {
+
+    private static final String START = LatencyInterceptor.class.getName() + ".START";
+
+    private final LatencyMetrics latencyMetrics;
+
+    private final ConcurrentMap<Method, LatencyMetrics.Timer> timers = new ConcurrentHashMap<>();
+
+    LatencyInterceptor(LatencyMetrics latencyMetrics) {
+        this.latencyMetrics = latencyMetrics;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getAttribute(START) == null) {
+            request.setAttribute(START, System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Long start = (Long) request.getAttribute(START);
+        if (start != null && handler instanceof HandlerMethod) {
+            this.timer((HandlerMethod) handler).recordSince(start);
+        }
+    }
+
+    private LatencyMetrics.Timer timer(HandlerMethod handlerMethod) {
+        // Java 8's computeIfAbsent locks the bin even when the key is there
+        LatencyMetrics.Timer timer = this.timers.get(handlerMethod.getMethod());
+        if (timer == null) {
+            timer = this.timers.computeIfAbsent(handlerMethod.getMethod(), m -> this.latencyMetrics.timer(
+                    "endpoint." + handlerMethod.getBeanType().getSimpleName() + "." + m.getName()));
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,135 @@
+package bookmarks;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Named latency timers and gauges, read by {@link LatencyEndpoint}. Recording
+ * is two {@code LongAdder} increments and a max, with no locks and no
+ * allocation, so timers can sit on every request and repository call.
+ */
+@Component
+public class LatencyMetrics {
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    public Timer timer(String name) {
+        return this.timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    public void gauge(String name, Supplier<? extends Number> value) {
+        this.gauges.put(name, value);
+    }
+
+    public Map<String, Timer> getTimers() {
+        return new TreeMap<>(this.timers);
+    }
+
+    public Map<String, Number> getGauges() {
+        Map<String, Number> values = new TreeMap<>();
+        this.gauges.forEach((name, value) -> values.put(name, value.get()));
+        return values;
+    }
+
+    /**
+     * A histogram of nanosecond durations in log-linear buckets: each power of
+     * two is split into eight, so every percentile is within about 12% of
+     * the true value.
+     */
+    public static class Timer {
+
+        private static final int SUB_BUCKETS = 8;
+
+        private static final int SUB_BUCKET_BITS = 3;
+
+        private final LongAdder[] buckets = new LongAdder[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder total = new LongAdder();
+
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        Timer() {
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            this.buckets[bucket(nanos)].increment();
+            this.count.increment();
+            this.total.add(nanos);
+            this.max.accumulate(nanos);
+        }
+
+        public void recordSince(long startNanos) {
+            this.record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        public long getMax(TimeUnit unit) {
+            return unit.convert(this.max.get(), TimeUnit.NANOSECONDS);
+        }
+
+        public double getMean(TimeUnit unit) {
+            long count = this.count.sum();
+            return count == 0 ? 0 : (double) this.total.sum() / count / unit.toNanos(1);
+        }
+
+        /**
+         * The upper bound of the bucket holding the {@code percentile}th value.
+         */
+        public long getPercentile(double percentile, TimeUnit unit) {
+            long[] counts = new long[this.buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return unit.convert(Math.min(upperBound(i), this.max.get()), TimeUnit.NANOSECONDS);
+                }
+            }
+            return 0;
+        }
+
+        static int bucket(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+    }
+}
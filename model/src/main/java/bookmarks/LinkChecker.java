@@ -0,0 +1,484 @@
+package bookmarks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Checks that bookmarked URIs still resolve. Each round checks a batch of
+ * links. Links that were never checked go first, then the least recently
+ * checked ones. Each {@link Url} row is checked once, however many bookmarks
+ * share it, and its result is stored as a {@link LinkStatus}.
+ * <p>
+ * All requests go through one non-blocking HTTP client. A link gets a HEAD
+ * request. If the server refuses HEAD, it gets a GET for its first byte.
+ * Redirects are followed. A link's status is taken as soon as the status line
+ * of the final response arrives. Up to 8KB of the body is then read and
+ * thrown away so that the connection can be reused. After that the
+ * connection is closed instead. Connections are pooled and kept alive, with
+ * at most {@code concurrency} open in total and {@code connections-per-host}
+ * to any one host. Waiting for a pooled connection, connecting and each read
+ * are bounded by {@code timeout-millis}.
+ * <p>
+ * A round waits for its last request until {@code round-timeout-millis} after
+ * that request was due. Links still unanswered by then are cancelled and
+ * stored as {@link LinkStatus#UNREACHABLE}, so a server that trickles its
+ * headers cannot hold up the round.
+ * <p>
+ * Each host also has a token bucket. It allows {@code per-host-burst}
+ * requests at once, then {@code per-host-rate} per second. A request that
+ * has to wait for its token is scheduled for that time, so a slow host never
+ * holds up a thread.
+ * <p>
+ * With {@code bookmarks.link-checker.enabled=true} a background thread runs
+ * {@link #checkStale()} every {@code interval-seconds}. It runs again at once
+ * while it keeps finding full batches. A link goes stale when it has not been
+ * checked for {@code recheck-after-hours}. Every round logs its checks per
+ * second.
+ */
+@Component
+public class LinkChecker implements InitializingBean, DisposableBean {
+
+    private static final Log log = LogFactory.getLog(LinkChecker.class);
+
+    // walks url by primary key and probes link_status, so it slows down as fewer links are left unchecked
+    private static final String UNCHECKED = "select u.id, u.uri from url u "
+            + "where not exists (select 1 from link_status s where s.url_id = u.id) limit ?";
+
+    private static final String STALE = "select u.id, u.uri from link_status s join url u on u.id = s.url_id "
+            + "where s.checked_at < ? order by s.checked_at limit ?";
+
+    private static final String MERGE = "merge into link_status (url_id, status, checked_at) key (url_id) values (?, ?, ?)";
+
+    private static final RowMapper<Link> LINK = (rs, row) -> new Link(rs.getLong(1), rs.getString(2));
+
+    private final DataSource dataSource;
+
+    private final boolean enabled;
+
+    private final int concurrency;
+
+    private final int connectionsPerHost;
+
+    private final long perHostIntervalNanos;
+
+    private final int perHostBurst;
+
+    private final int batchSize;
+
+    private final long recheckAfterMillis;
+
+    private final long intervalSeconds;
+
+    private final int timeoutMillis;
+
+    private final long roundTimeoutNanos;
+
+    private final LongAdder checked = new LongAdder();
+
+    private final LongAdder dead = new LongAdder();
+
+    private volatile long checksPerSecond;
+
+    private ShardRoutingDataSource shards;
+
+    private CloseableHttpAsyncClient client;
+
+    private ScheduledExecutorService timer;
+
+    private Thread checker;
+
+    @Autowired
+    public LinkChecker(DataSource dataSource,
+                       @Value("${bookmarks.link-checker.enabled:false}") boolean enabled,
+                       @Value("${bookmarks.link-checker.concurrency:200}") int concurrency,
+                       @Value("${bookmarks.link-checker.connections-per-host:4}") int connectionsPerHost,
+                       @Value("${bookmarks.link-checker.per-host-rate:2}") double perHostRate,
+                       @Value("${bookmarks.link-checker.per-host-burst:4}") int perHostBurst,
+                       @Value("${bookmarks.link-checker.batch-size:5000}") int batchSize,
+                       @Value("${bookmarks.link-checker.recheck-after-hours:24}") long recheckAfterHours,
+                       @Value("${bookmarks.link-checker.interval-seconds:60}") long intervalSeconds,
+                       @Value("${bookmarks.link-checker.timeout-millis:10000}") int timeoutMillis,
+                       @Value("${bookmarks.link-checker.round-timeout-millis:60000}") long roundTimeoutMillis) {
+        this.dataSource = dataSource;
+        this.enabled = enabled;
+        this.concurrency = concurrency;
+        this.connectionsPerHost = connectionsPerHost;
+        this.perHostIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perHostRate);
+        this.perHostBurst = Math.max(1, perHostBurst);
+        this.batchSize = batchSize;
+        this.recheckAfterMillis = TimeUnit.HOURS.toMillis(recheckAfterHours);
+        this.intervalSeconds = intervalSeconds;
+        this.timeoutMillis = timeoutMillis;
+        this.roundTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(roundTimeoutMillis);
+    }
+
+    @Autowired(required = false)
+    void setShards(ShardRoutingDataSource shards) {
+        this.shards = shards;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (this.enabled) {
+            this.checker = new Thread(this::run, "bookmarks-link-checker");
+            this.checker.setDaemon(true);
+            this.checker.start();
+        }
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (this.checkStale() < this.batchSize) {
+                    TimeUnit.SECONDS.sleep(this.intervalSeconds);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Link check failed", e);
+                try {
+                    TimeUnit.SECONDS.sleep(this.intervalSeconds);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks up to {@code batch-size} stale links in each database and
+     * stores the results.
+     *
+     * @return how many links were checked
+     */
+    public int checkStale() throws InterruptedException {
+        return this.checkStale(this.batchSize);
+    }
+
+    int checkStale(int limit) throws InterruptedException {
+        long start = System.nanoTime();
+        int links = 0;
+        List<DataSource> databases = this.shards == null
+                ? Collections.singletonList(this.dataSource) : this.shards.getShards();
+        for (DataSource database : databases) {
+            links += this.check(new JdbcTemplate(database), limit);
+        }
+        if (links > 0) {
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            this.checksPerSecond = links * 1000L / millis;
+            log.info("Checked " + links + " links in " + millis + " ms (" + this.checksPerSecond + " links/s)");
+        }
+        return links;
+    }
+
+    private int check(JdbcTemplate jdbc, int limit) throws InterruptedException {
+        List<Link> links = jdbc.query(UNCHECKED, LINK, limit);
+        if (links.size() < limit) {
+            Timestamp staleBefore = new Timestamp(System.currentTimeMillis() - this.recheckAfterMillis);
+            links.addAll(jdbc.query(STALE, LINK, staleBefore, limit - links.size()));
+        }
+        if (links.isEmpty()) {
+            return 0;
+        }
+
+        CountDownLatch done = new CountDownLatch(links.size());
+        Map<String, HostBucket> buckets = new HashMap<>();
+        long now = System.nanoTime();
+        long lastDue = now;
+        for (Link link : links) {
+            if (link.host == null) {
+                this.settle(link, LinkStatus.UNREACHABLE, done);
+                continue;
+            }
+            long delay = buckets.computeIfAbsent(link.host, host -> new HostBucket()).reserve(now);
+            lastDue = Math.max(lastDue, now + delay);
+            if (delay == 0) {
+                this.request(link, true, done);
+            } else {
+                this.timer().schedule(() -> this.request(link, true, done), delay, TimeUnit.NANOSECONDS);
+            }
+        }
+        // the timeouts bound each read, not a whole response, so the round keeps a deadline of its own
+        if (!done.await(lastDue + this.roundTimeoutNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            int stragglers = 0;
+            for (Link link : links) {
+                if (link.settle(LinkStatus.UNREACHABLE)) {
+                    stragglers++;
+                    Future<?> exchange = link.exchange;
+                    if (exchange != null) {
+                        exchange.cancel(true);
+                    }
+                }
+            }
+            log.warn(stragglers + " links were still unanswered at the end of the round");
+        }
+
+        Timestamp checkedAt = new Timestamp(System.currentTimeMillis());
+        jdbc.batchUpdate(MERGE, links, links.size(), (ps, link) -> {
+            ps.setLong(1, link.urlId);
+            ps.setInt(2, link.status.get());
+            ps.setTimestamp(3, checkedAt);
+        });
+        this.checked.add(links.size());
+        this.dead.add(links.stream().map(link -> link.status.get()).filter(status -> status < 200 || status >= 400).count());
+        return links.size();
+    }
+
+    private void request(Link link, boolean head, CountDownLatch done) {
+        if (link.status.get() != 0) {
+            // settled at the round's deadline before its turn came
+            return;
+        }
+        HttpRequestBase request = head ? new HttpHead(link.uri) : new HttpGet(link.uri);
+        if (!head) {
+            request.setHeader("Range", "bytes=0-0");
+        }
+        StatusConsumer consumer = new StatusConsumer(status -> {
+            // the GET retry reuses the HEAD's token, the host has only been asked once
+            if (head && (status == 405 || status == 501)) {
+                this.request(link, false, done);
+            } else {
+                this.settle(link, status, done);
+            }
+        });
+        link.exchange = this.client().execute(HttpAsyncMethods.create(request), consumer, new FutureCallback<Integer>() {
+
+            @Override
+            public void completed(Integer status) {
+                // settled when the status line arrived
+            }
+
+            @Override
+            public void failed(Exception e) {
+                // a connection closed on purpose after the status line is not a failure
+                if (!consumer.hasStatus()) {
+                    settle(link, LinkStatus.UNREACHABLE, done);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                this.failed(null);
+            }
+        });
+    }
+
+    private void settle(Link link, int status, CountDownLatch done) {
+        if (link.settle(status)) {
+            done.countDown();
+        }
+    }
+
+    private synchronized CloseableHttpAsyncClient client() {
+        if (this.client == null) {
+            this.client = HttpAsyncClients.custom()
+                    .setMaxConnTotal(this.concurrency)
+                    .setMaxConnPerRoute(this.connectionsPerHost)
+                    .setUserAgent("bookmarks-link-checker")
+                    .setDefaultRequestConfig(RequestConfig.custom()
+                            .setConnectionRequestTimeout(this.timeoutMillis)
+                            .setConnectTimeout(this.timeoutMillis)
+                            .setSocketTimeout(this.timeoutMillis)
+                            .setMaxRedirects(5)
+                            .build())
+                    .build();
+            this.client.start();
+        }
+        return this.client;
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (this.timer == null) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bookmarks-link-checker-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.timer;
+    }
+
+    @Override
+    public synchronized void destroy() throws Exception {
+        if (this.checker != null) {
+            this.checker.interrupt();
+        }
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+        }
+        if (this.client != null) {
+            this.client.close();
+        }
+    }
+
+    public long getChecked() {
+        return this.checked.sum();
+    }
+
+    /**
+     * Links whose last check got no response, or a status outside 2xx and 3xx.
+     */
+    public long getDead() {
+        return this.dead.sum();
+    }
+
+    /**
+     * The rate of the last round that checked anything.
+     */
+    public long getChecksPerSecond() {
+        return this.checksPerSecond;
+    }
+
+    private static final class Link {
+
+        final long urlId;
+
+        final String uri;
+
+        // null when the URI cannot be requested
+        final String host;
+
+        // 0 until the first outcome, which is the only one kept
+        final AtomicInteger status = new AtomicInteger();
+
+        volatile Future<?> exchange;
+
+        Link(long urlId, String uri) {
+            this.urlId = urlId;
+            this.uri = uri;
+            this.host = host(uri);
+        }
+
+        boolean settle(int status) {
+            return this.status.compareAndSet(0, status);
+        }
+
+        private static String host(String uri) {
+            try {
+                URI parsed = URI.create(uri);
+                String scheme = parsed.getScheme();
+                return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme) ? parsed.getHost() : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A token bucket kept as the time its next token is due. Up to
+     * {@code perHostBurst} tokens can be taken at once, after which they come
+     * one every {@code perHostIntervalNanos}. Only the round's own thread uses it.
+     */
+    private final class HostBucket {
+
+        private long next = Long.MIN_VALUE / 2;
+
+        // how long to wait for a token reserved at now
+        long reserve(long now) {
+            long due = Math.max(this.next, now - (perHostBurst - 1) * perHostIntervalNanos);
+            this.next = due + perHostIntervalNanos;
+            return Math.max(0, due - now);
+        }
+    }
+
+    /**
+     * Hands on the status line as soon as it arrives. It then throws away up
+     * to {@code MAX_DISCARDED} bytes of body, and closes the connection if the
+     * body goes on after that.
+     */
+    private static final class StatusConsumer extends AbstractAsyncResponseConsumer<Integer> {
+
+        private static final int MAX_DISCARDED = 8192;
+
+        private final ByteBuffer discard = ByteBuffer.allocate(4096);
+
+        private final IntConsumer onStatus;
+
+        private volatile int status;
+
+        private int discarded;
+
+        StatusConsumer(IntConsumer onStatus) {
+            this.onStatus = onStatus;
+        }
+
+        boolean hasStatus() {
+            return this.status != 0;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.status = response.getStatusLine().getStatusCode();
+            this.onStatus.accept(this.status);
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            for (int read = decoder.read(this.discard); read > 0; read = decoder.read(this.discard)) {
+                this.discard.clear();
+                this.discarded += read;
+                if (this.discarded > MAX_DISCARDED) {
+                    ioctrl.shutdown();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        }
+
+        @Override
+        protected Integer buildResult(HttpContext context) {
+            return this.status;
+        }
+
+        @Override
+        protected void releaseResources() {
+        }
+    }
+}
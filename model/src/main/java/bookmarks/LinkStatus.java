@@ -0,0 +1,59 @@
+package bookmarks;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * The last {@link LinkChecker} result for a {@link Url}, and so for every
+ * bookmark that points to it. Kept out of {@link Url} because url rows are
+ * immutable and cached, while these are rewritten on every check.
+ */
+@Entity
+// the checker picks the least recently checked links first
+@Table(indexes = @Index(name = "ix_link_status_checked_at", columnList = "checked_at"))
+public class LinkStatus {
+
+    /**
+     * Recorded when no HTTP response came back: the host was unknown, the
+     * connection was refused or timed out, or the URI is not http(s).
+     */
+    public static final int UNREACHABLE = 0;
+
+    @Id
+    @Column(name = "url_id")
+    private Long urlId;
+
+    private int status;
+
+    @Column(name = "checked_at", nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date checkedAt;
+
+    LinkStatus() { // jpa only
+    }
+
+    public Long getUrlId() {
+        return urlId;
+    }
+
+    /**
+     * The final HTTP status after redirects, or {@link #UNREACHABLE}.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public Date getCheckedAt() {
+        return checkedAt;
+    }
+
+    public boolean isAlive() {
+        return status >= 200 && status < 400;
+    }
+}
@@ -0,0 +1,99 @@
+package bookmarks;
+
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.util.UriUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A URI template such as {@code /{userId}/bookmarks/{bookmarkId}}, parsed once
+ * and then expanded by plain string concatenation. It replaces
+ * {@code linkTo(methodOn(...))}, which builds a proxy and re-parses the mapping
+ * for every link.
+ */
+public class LinkTemplate {
+
+    private final String template;
+
+    // literal text before each variable, then the trailing literal
+    private final String[] literals;
+
+    public LinkTemplate(String template) {
+        List<String> literals = new ArrayList<>();
+        int from = 0, open;
+        while ((open = template.indexOf('{', from)) != -1) {
+            int close = template.indexOf('}', open);
+            Assert.isTrue(close != -1, "unterminated variable in '" + template + "'");
+            literals.add(template.substring(from, open));
+            from = close + 1;
+        }
+        literals.add(template.substring(from));
+        this.template = template;
+        this.literals = literals.toArray(new String[literals.size()]);
+    }
+
+    /**
+     * The template mapped by the type level {@link RequestMapping} of {@code controller}.
+     */
+    public static LinkTemplate forController(Class<?> controller) {
+        return new LinkTemplate(mapping(AnnotationUtils.findAnnotation(controller, RequestMapping.class)));
+    }
+
+    /**
+     * The template mapped by {@code controller} and its handler method {@code methodName}.
+     */
+    public static LinkTemplate forMethod(Class<?> controller, String methodName) {
+        for (Method method : ReflectionUtils.getUniqueDeclaredMethods(controller)) {
+            RequestMapping mapping = AnnotationUtils.findAnnotation(method, RequestMapping.class);
+            if (method.getName().equals(methodName) && mapping != null) {
+                return new LinkTemplate(forController(controller).template + mapping(mapping));
+            }
+        }
+        throw new IllegalArgumentException("no handler method '" + methodName + "' on " + controller.getName());
+    }
+
+    private static String mapping(RequestMapping mapping) {
+        return mapping == null || mapping.value().length == 0 ? "" : mapping.value()[0];
+    }
+
+    public int getVariableCount() {
+        return this.literals.length - 1;
+    }
+
+    public String expand(Object... values) {
+        Assert.isTrue(values.length == this.getVariableCount(),
+                "expected " + this.getVariableCount() + " values for '" + this.template + "'");
+        StringBuilder uri = new StringBuilder(this.template.length() + 16);
+        for (int i = 0; i < values.length; i++) {
+            uri.append(this.literals[i]).append(encode(String.valueOf(values[i])));
+        }
+        return uri.append(this.literals[values.length]).toString();
+    }
+
+    private static String encode(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean unreserved = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~';
+            if (!unreserved) {
+                try {
+                    return UriUtils.encodePathSegment(value, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return this.template;
+    }
+}
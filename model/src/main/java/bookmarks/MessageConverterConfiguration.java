@@ -0,0 +1,65 @@
+package bookmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+/**
+ * Offers the compact binary formats to clients that ask for them with
+ * {@code Accept}: {@link SmileHttpMessageConverter Smile} and
+ * {@link BookmarkProtobufHttpMessageConverter protobuf}. Smile is written
+ * with the same {@link ObjectMapper} as the JSON responses: the HAL mapper in
+ * the hypermedia variants, and the Boot one otherwise.
+ */
+@Configuration
+class MessageConverterConfiguration {
+
+    @Bean
+    static BeanPostProcessor binaryConverterPostProcessor(BeanFactory beanFactory) {
+        return new BinaryConverterPostProcessor(beanFactory);
+    }
+
+    /**
+     * Appends the converters after the defaults, so that a request accepting
+     * anything still gets JSON. Declaring them as beans would put them first.
+     * It works before initialization, which is when the adapter hands its
+     * converter list to its argument resolvers and return value handlers.
+     */
+    static class BinaryConverterPostProcessor implements BeanPostProcessor {
+
+        // registered by Spring HATEOAS in the hateoas and security variants
+        private static final String HAL_OBJECT_MAPPER = "_halObjectMapper";
+
+        private final BeanFactory beanFactory;
+
+        BinaryConverterPostProcessor(BeanFactory beanFactory) {
+            this.beanFactory = beanFactory;
+        }
+
+        @Override
+        public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+            if (bean instanceof RequestMappingHandlerAdapter) {
+                RequestMappingHandlerAdapter adapter = (RequestMappingHandlerAdapter) bean;
+                adapter.getMessageConverters().add(new SmileHttpMessageConverter(this.objectMapper()));
+                adapter.getMessageConverters().add(new BookmarkProtobufHttpMessageConverter());
+            }
+            return bean;
+        }
+
+        private ObjectMapper objectMapper() {
+            if (this.beanFactory.containsBean(HAL_OBJECT_MAPPER)) {
+                return this.beanFactory.getBean(HAL_OBJECT_MAPPER, ObjectMapper.class);
+            }
+            return this.beanFactory.getBean(ObjectMapper.class);
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+            return bean;
+        }
+    }
+}
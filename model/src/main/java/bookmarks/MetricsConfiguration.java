@@ -0,0 +1,241 @@
+package bookmarks;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.repository.Repository;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wires {@link LatencyMetrics} into every application: a timer per handler
+ * method, per repository method, per {@link AccountCache} lookup and per
+ * Jackson message converter, plus gauges for the caches, the
+ * {@link CompressedBodyCache}, the {@link DatabaseExecutor} and
+ * {@link BookmarkWriteBehind} queues, the {@link LinkChecker} and the
+ * {@link BookmarkChangeFeed}.
+ * <p>
+ * {@code bookmarks.metrics.enabled=false} leaves out the handler, repository,
+ * cache and converter timers, but not the gauges, which cost nothing until
+ * they are read. It is there so the load
+ * test can measure what the timers cost.
+ */
+@Configuration
+class MetricsConfiguration extends WebMvcConfigurerAdapter {
+
+    @Value("${bookmarks.metrics.enabled:true}")
+    private boolean enabled;
+
+    @Autowired
+    private LatencyMetrics latencyMetrics;
+
+    @Autowired
+    private AccountCache accountCache;
+
+    @Autowired
+    private DatabaseExecutor databaseExecutor;
+
+    @Autowired
+    private BookmarkWriteBehind bookmarkWriteBehind;
+
+    @Autowired
+    private CompressedBodyCache compressedBodyCache;
+
+    @Autowired
+    private LinkChecker linkChecker;
+
+    @Autowired
+    private BookmarkChangeFeed bookmarkChangeFeed;
+
+    @Bean
+    static BeanPostProcessor metricsPostProcessor(LatencyMetrics latencyMetrics,
+                                                  @Value("${bookmarks.metrics.enabled:true}") boolean enabled) {
+        return new MetricsPostProcessor(latencyMetrics, enabled);
+    }
+
+    @PostConstruct
+    void registerGauges() {
+        this.latencyMetrics.gauge("accountCache.hits", this.accountCache::getHits);
+        this.latencyMetrics.gauge("accountCache.misses", this.accountCache::getMisses);
+        this.latencyMetrics.gauge("accountCache.evictions", this.accountCache::getEvictions);
+        this.latencyMetrics.gauge("compressedBodies.hits", this.compressedBodyCache::getHits);
+        this.latencyMetrics.gauge("compressedBodies.misses", this.compressedBodyCache::getMisses);
+        this.latencyMetrics.gauge("compressedBodies.evictions", this.compressedBodyCache::getEvictions);
+        this.latencyMetrics.gauge("compressedBodies.size", this.compressedBodyCache::size);
+        this.latencyMetrics.gauge("databaseExecutor.queueDepth", this.databaseExecutor::getQueueDepth);
+        this.latencyMetrics.gauge("databaseExecutor.active", this.databaseExecutor::getActiveCount);
+        this.latencyMetrics.gauge("changeFeed.subscribers", this.bookmarkChangeFeed::getSubscriberCount);
+        if (this.bookmarkWriteBehind.isEnabled()) {
+            this.latencyMetrics.gauge("writeBehind.queueDepth", this.bookmarkWriteBehind::getQueueDepth);
+            this.latencyMetrics.gauge("writeBehind.flushed", this.bookmarkWriteBehind::getFlushed);
+            this.latencyMetrics.gauge("writeBehind.batches", this.bookmarkWriteBehind::getBatches);
+            this.latencyMetrics.gauge("writeBehind.failed", this.bookmarkWriteBehind::getFailed);
+        }
+        if (this.linkChecker.isEnabled()) {
+            this.latencyMetrics.gauge("linkChecker.checked", this.linkChecker::getChecked);
+            this.latencyMetrics.gauge("linkChecker.dead", this.linkChecker::getDead);
+            this.latencyMetrics.gauge("linkChecker.checksPerSecond", this.linkChecker::getChecksPerSecond);
+        }
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (this.enabled) {
+            registry.addInterceptor(new LatencyInterceptor(this.latencyMetrics));
+        }
+    }
+
+    /**
+     * Adds a timing advice in front of every Spring Data repository and the
+     * {@link AccountCache}, and times the MVC Jackson converters. Repositories
+     * are already proxies, so the advice is added to them rather than wrapping
+     * them again.
+     */
+    static class MetricsPostProcessor implements BeanPostProcessor {
+
+        private final LatencyMetrics latencyMetrics;
+
+        private final boolean enabled;
+
+        MetricsPostProcessor(LatencyMetrics latencyMetrics, boolean enabled) {
+            this.latencyMetrics = latencyMetrics;
+            this.enabled = enabled;
+        }
+
+        @Override
+        public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+            return bean;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+            if (!this.enabled) {
+                return bean;
+            }
+            if (bean instanceof Repository) {
+                TimingInterceptor interceptor = new TimingInterceptor(this.latencyMetrics,
+                        "repository." + repositoryName(bean));
+                if (bean instanceof Advised && !((Advised) bean).isFrozen()) {
+                    ((Advised) bean).addAdvice(0, interceptor);
+                    return bean;
+                }
+                ProxyFactory proxyFactory = new ProxyFactory(bean);
+                proxyFactory.addAdvice(interceptor);
+                return proxyFactory.getProxy();
+            }
+            if (bean instanceof RequestMappingHandlerAdapter) {
+                // the return value handlers share this list, so replacing entries in place reaches them too
+                List<HttpMessageConverter<?>> converters = ((RequestMappingHandlerAdapter) bean).getMessageConverters();
+                for (int i = 0; i < converters.size(); i++) {
+                    if (converters.get(i).getClass() == MappingJackson2HttpMessageConverter.class) {
+                        MappingJackson2HttpMessageConverter converter = (MappingJackson2HttpMessageConverter) converters.get(i);
+                        converters.set(i, new TimedJacksonConverter(converter, this.latencyMetrics.timer(
+                                "converter." + converter.getSupportedMediaTypes().get(0).getSubtype() + ".write")));
+                    }
+                }
+                return bean;
+            }
+            if (bean instanceof AccountCache) {
+                ProxyFactory proxyFactory = new ProxyFactory(bean);
+                proxyFactory.setProxyTargetClass(true);
+                proxyFactory.addAdvice(new TimingInterceptor(this.latencyMetrics, "accountCache"));
+                return proxyFactory.getProxy();
+            }
+            return bean;
+        }
+
+        private static String repositoryName(Object bean) {
+            for (Class<?> candidate : ClassUtils.getAllInterfaces(bean)) {
+                if (Repository.class.isAssignableFrom(candidate)
+                        && !candidate.getName().startsWith("org.springframework.")) {
+                    return candidate.getSimpleName();
+                }
+            }
+            return bean.getClass().getSimpleName();
+        }
+    }
+
+    /**
+     * Times the Jackson write of each response body, separately from the
+     * handler that produced it.
+     */
+    static class TimedJacksonConverter extends MappingJackson2HttpMessageConverter {
+
+        private final LatencyMetrics.Timer timer;
+
+        TimedJacksonConverter(MappingJackson2HttpMessageConverter converter, LatencyMetrics.Timer timer) {
+            this.setObjectMapper(converter.getObjectMapper());
+            this.setSupportedMediaTypes(converter.getSupportedMediaTypes());
+            this.timer = timer;
+        }
+
+        @Override
+        protected void writeInternal(Object object, HttpOutputMessage outputMessage) throws IOException {
+            long start = System.nanoTime();
+            try {
+                super.writeInternal(object, outputMessage);
+            } finally {
+                this.timer.recordSince(start);
+            }
+        }
+    }
+
+    static class TimingInterceptor implements MethodInterceptor {
+
+        private final LatencyMetrics latencyMetrics;
+
+        private final String prefix;
+
+        private final ConcurrentMap<Method, LatencyMetrics.Timer> timers = new ConcurrentHashMap<>();
+
+        TimingInterceptor(LatencyMetrics latencyMetrics, String prefix) {
+            this.latencyMetrics = latencyMetrics;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            // a plain get first, as in LatencyInterceptor, since every repository call comes through here
+            LatencyMetrics.Timer timer = this.timers.get(invocation.getMethod());
+            if (timer == null) {
+                timer = this.timers.computeIfAbsent(invocation.getMethod(),
+                        m -> this.latencyMetrics.timer(this.prefix + "." + signature(m)));
+            }
+            long start = System.nanoTime();
+            try {
+                return invocation.proceed();
+            } finally {
+                timer.recordSince(start);
+            }
+        }
+
+        // the parameter types keep overloads such as save(S) and save(Iterable) apart
+        private static String signature(Method method) {
+            StringJoiner parameters = new StringJoiner(",", method.getName() + "(", ")");
+            for (Class<?> type : method.getParameterTypes()) {
+                parameters.add(type.getSimpleName());
+            }
+            return parameters.toString();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package bookmarks;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.PropertySource;
+
+@Configuration
+@PropertySource("classpath:model.properties")
+class ModelConfiguration {
+
+    // Hibernate second-level and query caches backed by Ehcache; see l2cache.properties
+    @Configuration
+    @Profile("l2cache")
+    @PropertySource("classpath:l2cache.properties")
+    static class SecondLevelCacheConfiguration {
+    }
+}
@@ -0,0 +1,100 @@
+package bookmarks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One token bucket per key, for example per user or per OAuth client. Each
+ * key allows {@code burst} requests at once and then {@code permitsPerSecond}.
+ * <p>
+ * A bucket is a single {@link AtomicLong}: the time at which it will be full
+ * again (the generic cell rate algorithm's theoretical arrival time). Taking a
+ * token is one compare-and-set, with no lock. Buckets live in a
+ * {@link ConcurrentHashMap}, whose bins spread different keys across cores,
+ * so only requests for the same key contend.
+ * <p>
+ * A bucket that has filled up again behaves exactly like a new one, so it is
+ * dropped. Requests sweep the map at most once per {@code sweepInterval}.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+
+    // how far ahead of now a bucket may run before requests are refused: the burst less one token
+    private final long toleranceNanos;
+
+    private final long sweepIntervalNanos;
+
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextSweep;
+
+    private final LongAdder rejected = new LongAdder();
+
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, 10, TimeUnit.SECONDS);
+    }
+
+    public RateLimiter(double permitsPerSecond, int burst, long sweepInterval, TimeUnit unit) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("a rate limit needs a positive rate and a burst of at least 1");
+        }
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.toleranceNanos = this.intervalNanos * (burst - 1);
+        this.sweepIntervalNanos = unit.toNanos(sweepInterval);
+        this.nextSweep = new AtomicLong(System.nanoTime() + this.sweepIntervalNanos);
+    }
+
+    /**
+     * Takes a token from {@code key}'s bucket if there is one.
+     *
+     * @return 0 if the request may go ahead, otherwise the nanoseconds until it could
+     */
+    public long tryAcquire(String key) {
+        return this.tryAcquire(key, System.nanoTime());
+    }
+
+    long tryAcquire(String key, long now) {
+        this.sweep(now);
+        AtomicLong bucket = this.buckets.get(key);
+        if (bucket == null) {
+            bucket = this.buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        while (true) {
+            long full = bucket.get();
+            long from = full - now > 0 ? full : now;
+            long wait = from - now - this.toleranceNanos;
+            if (wait > 0) {
+                this.rejected.increment();
+                return wait;
+            }
+            if (bucket.compareAndSet(full, from + this.intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    // a request racing the sweep may spend its token on the dropped bucket, one token over the burst at most
+    private void sweep(long now) {
+        long due = this.nextSweep.get();
+        if (now - due < 0 || !this.nextSweep.compareAndSet(due, now + this.sweepIntervalNanos)) {
+            return;
+        }
+        this.buckets.forEach((key, bucket) -> {
+            if (bucket.get() - now <= 0) {
+                this.buckets.remove(key, bucket);
+            }
+        });
+    }
+
+    public long getRejected() {
+        return this.rejected.sum();
+    }
+
+    public int size() {
+        return this.buckets.size();
+    }
+}
@@ -0,0 +1,83 @@
+package bookmarks;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replaces the auto-configured DataSource with a {@link ReplicaRoutingDataSource}
+ * when the {@code replicas} profile is active. The primary is built from the
+ * usual {@code spring.datasource.*} properties. The replicas come from
+ * {@code bookmarks.datasource.replicas} and share the primary's driver and
+ * credentials.
+ */
+@Configuration
+@Profile("replicas")
+@PropertySource("classpath:replicas.properties")
+class ReplicaConfiguration {
+
+    // DataSourceProperties only exposes the driver to its subclasses
+    @Value("${spring.datasource.driverClassName:org.h2.Driver}")
+    String driverClassName;
+
+    @Value("${bookmarks.datasource.replicas}")
+    String[] replicaUrls;
+
+    @Value("${bookmarks.datasource.replica-lag-query}")
+    String replicaLagQuery;
+
+    @Value("${bookmarks.datasource.max-replica-lag-millis}")
+    long maxReplicaLagMillis;
+
+    @Value("${bookmarks.datasource.replica-check-millis}")
+    long replicaCheckMillis;
+
+    @Bean
+    ReplicaRoutingDataSource replicaRoutingDataSource(DataSourceProperties properties) {
+        List<DataSource> replicas = new ArrayList<>();
+        for (String url : this.replicaUrls) {
+            replicas.add(this.dataSource(properties, url.trim()));
+        }
+        return new ReplicaRoutingDataSource(this.dataSource(properties, properties.getUrl()), replicas,
+                this.replicaLagQuery, this.maxReplicaLagMillis);
+    }
+
+    @Bean
+    @Primary
+    DataSource dataSource(ReplicaRoutingDataSource replicaRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(replicaRoutingDataSource);
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    ScheduledExecutorService replicaLagChecker(ReplicaRoutingDataSource replicaRoutingDataSource) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("replica-lag-");
+        threadFactory.setDaemon(true);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        executor.scheduleWithFixedDelay(replicaRoutingDataSource::checkReplicas,
+                this.replicaCheckMillis, this.replicaCheckMillis, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private DataSource dataSource(DataSourceProperties properties, String url) {
+        return DataSourceBuilder.create(getClass().getClassLoader())
+                .driverClassName(this.driverClassName)
+                .url(url)
+                .username(properties.getUsername())
+                .password(properties.getPassword())
+                .build();
+    }
+}
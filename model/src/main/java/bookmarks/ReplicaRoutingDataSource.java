@@ -0,0 +1,101 @@
+package bookmarks;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends read-only transactions to a round-robin pool of replicas and
+ * everything else to the primary. It looks at
+ * {@link TransactionSynchronizationManager#isCurrentTransactionReadOnly()}, which is
+ * only set once the transaction has begun. It must therefore sit behind a
+ * {@code LazyConnectionDataSourceProxy} so that the connection is fetched at
+ * the first statement, not at {@code begin}.
+ * <p>
+ * {@link #checkReplicas()} runs {@code lagQuery} on every replica. The query
+ * must return the replica's lag in milliseconds. A replica that is further
+ * behind than {@code maxLagMillis}, or that cannot answer, is left out until
+ * a later check finds it current again. With no replicas in rotation, reads
+ * go to the primary. Without a lag query only reachability is checked.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final String PRIMARY = "primary";
+
+    private final DataSource primary;
+
+    private final List<DataSource> replicas;
+
+    private final String lagQuery;
+
+    private final long maxLagMillis;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private volatile List<Integer> inRotation;
+
+    public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, String lagQuery, long maxLagMillis) {
+        this.primary = primary;
+        this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+        this.lagQuery = StringUtils.hasText(lagQuery) ? lagQuery : "select 0";
+        this.maxLagMillis = maxLagMillis;
+
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        for (int i = 0; i < this.replicas.size(); i++) {
+            targets.put(i, this.replicas.get(i));
+        }
+        this.setTargetDataSources(targets);
+        this.setDefaultTargetDataSource(primary);
+        // replicas only take reads once they have passed a check
+        this.checkReplicas();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return PRIMARY;
+        }
+        List<Integer> replicas = this.inRotation;
+        if (replicas.isEmpty()) {
+            return PRIMARY;
+        }
+        return replicas.get((this.next.getAndIncrement() & Integer.MAX_VALUE) % replicas.size());
+    }
+
+    public void checkReplicas() {
+        List<Integer> current = new ArrayList<>();
+        for (int i = 0; i < this.replicas.size(); i++) {
+            try {
+                Long lag = new JdbcTemplate(this.replicas.get(i)).queryForObject(this.lagQuery, Long.class);
+                if (lag != null && lag <= this.maxLagMillis) {
+                    current.add(i);
+                }
+            } catch (RuntimeException e) {
+                // unreachable or not yet initialized: leave it out until the next check
+            }
+        }
+        this.inRotation = Collections.unmodifiableList(current);
+    }
+
+    public DataSource getPrimary() {
+        return this.primary;
+    }
+
+    public List<DataSource> getReplicas() {
+        return this.replicas;
+    }
+
+    public int getReplicasInRotation() {
+        return this.inRotation.size();
+    }
+}
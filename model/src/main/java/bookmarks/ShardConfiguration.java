@@ -0,0 +1,398 @@
+package bookmarks;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.repository.Repository;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Spreads accounts, and the bookmarks that belong to them, over several
+ * databases when the {@code shards} profile is active. Each database in
+ * {@code bookmarks.datasource.shards} holds the full schema. The shards share
+ * the driver and credentials from the usual {@code spring.datasource.*}
+ * properties. This profile and {@code replicas} cannot be active together.
+ * <p>
+ * Repositories, and {@link BookmarkImporter}, choose a shard per call, so
+ * their callers do not change:
+ * <ul>
+ * <li>Calls with an {@link Account} or {@link Bookmark} argument, or a
+ * username argument to a method whose name mentions {@code Username}, run
+ * on that account's shard.</li>
+ * <li>Iterables of entities are split by shard.</li>
+ * <li>Everything else, such as lookups by id, {@code count()} and
+ * {@code deleteAllInBatch()}, runs on every shard. The results are merged:
+ * lists are ordered by id and cut to the page size, counts are summed, and
+ * single results are the first one found.</li>
+ * </ul>
+ * Calls made while a shard is bound in {@link ShardContext} stay on that
+ * shard. A transaction can only span one shard, so repository calls inside a
+ * transaction that was begun without a bound shard are refused.
+ * <p>
+ * Each shard's sequences start at its index times
+ * {@code shard-id-stride}, which keeps ids unique across shards.
+ * {@code shard-copy-schema} drops every other shard's objects and recreates
+ * them from shard 0's H2 schema at startup, then sets those sequences. It is
+ * off by default, and refused unless every shard is an embedded H2 database
+ * and {@code spring.jpa.hibernate.ddl-auto} is {@code create} or
+ * {@code create-drop}. Any other database needs the schema and sequence
+ * starts on each shard set up the same way.
+ */
+@Configuration
+@Profile("shards")
+@PropertySource("classpath:shards.properties")
+class ShardConfiguration {
+
+    // DataSourceProperties only exposes the driver to its subclasses
+    @Value("${spring.datasource.driverClassName:org.h2.Driver}")
+    String driverClassName;
+
+    @Value("${bookmarks.datasource.shards}")
+    String[] shardUrls;
+
+    @Value("${bookmarks.datasource.shard-id-stride}")
+    long idStride;
+
+    @Value("${bookmarks.datasource.shard-copy-schema}")
+    boolean copySchema;
+
+    @Value("${bookmarks.datasource.rebalance-on-start}")
+    boolean rebalanceOnStart;
+
+    @Value("${spring.jpa.hibernate.ddl-auto:}")
+    String ddlAuto;
+
+    @Bean
+    @Primary
+    ShardRoutingDataSource shardRoutingDataSource(DataSourceProperties properties) {
+        List<DataSource> shards = new ArrayList<>();
+        for (String url : this.shardUrls) {
+            shards.add(DataSourceBuilder.create(getClass().getClassLoader())
+                    .driverClassName(this.driverClassName)
+                    .url(url.trim())
+                    .username(properties.getUsername())
+                    .password(properties.getPassword())
+                    .build());
+        }
+        return new ShardRoutingDataSource(shards);
+    }
+
+    @Bean
+    ShardRebalancer shardRebalancer(ShardRoutingDataSource shardRoutingDataSource) {
+        return new ShardRebalancer(shardRoutingDataSource);
+    }
+
+    // depends on the EntityManagerFactory so that Hibernate has created shard 0's schema first
+    @Bean
+    ShardInitializer shardInitializer(EntityManagerFactory entityManagerFactory,
+                                      ShardRoutingDataSource shardRoutingDataSource,
+                                      ShardRebalancer shardRebalancer) {
+        if (this.copySchema) {
+            this.checkCopySchema();
+        }
+        return new ShardInitializer(shardRoutingDataSource, shardRebalancer,
+                this.idStride, this.copySchema, this.rebalanceOnStart);
+    }
+
+    // copying the schema starts with "drop all objects", which must never reach a real database
+    private void checkCopySchema() {
+        if (!"create".equals(this.ddlAuto) && !"create-drop".equals(this.ddlAuto)) {
+            throw new IllegalStateException("bookmarks.datasource.shard-copy-schema needs "
+                    + "spring.jpa.hibernate.ddl-auto=create or create-drop, not '" + this.ddlAuto + "'");
+        }
+        for (String url : this.shardUrls) {
+            if (!isEmbeddedH2(url.trim())) {
+                throw new IllegalStateException("bookmarks.datasource.shard-copy-schema only works on embedded "
+                        + "H2 databases, not " + url.trim());
+            }
+        }
+    }
+
+    private static boolean isEmbeddedH2(String url) {
+        return url.startsWith("jdbc:h2:") && !url.startsWith("jdbc:h2:tcp:") && !url.startsWith("jdbc:h2:ssl:");
+    }
+
+    @Bean
+    static BeanPostProcessor shardingPostProcessor(BeanFactory beanFactory) {
+        return new ShardingPostProcessor(beanFactory);
+    }
+
+    static class ShardInitializer implements InitializingBean {
+
+        private final ShardRoutingDataSource shards;
+
+        private final ShardRebalancer rebalancer;
+
+        private final long idStride;
+
+        private final boolean copySchema;
+
+        private final boolean rebalanceOnStart;
+
+        ShardInitializer(ShardRoutingDataSource shards, ShardRebalancer rebalancer,
+                         long idStride, boolean copySchema, boolean rebalanceOnStart) {
+            this.shards = shards;
+            this.rebalancer = rebalancer;
+            this.idStride = idStride;
+            this.copySchema = copySchema;
+            this.rebalanceOnStart = rebalanceOnStart;
+        }
+
+        @Override
+        public void afterPropertiesSet() throws IOException {
+            if (this.copySchema && this.shards.getShardCount() > 1) {
+                File script = File.createTempFile("shard-schema", ".sql");
+                script.deleteOnExit();
+                new JdbcTemplate(this.shards.getShards().get(0)).execute("script nodata to '" + script.getAbsolutePath() + "'");
+                for (int shard = 1; shard < this.shards.getShardCount(); shard++) {
+                    JdbcTemplate jdbc = new JdbcTemplate(this.shards.getShards().get(shard));
+                    jdbc.execute("drop all objects");
+                    jdbc.execute("runscript from '" + script.getAbsolutePath() + "'");
+                    List<String> sequences = jdbc.queryForList(
+                            "select sequence_name from information_schema.sequences where sequence_schema = schema()",
+                            String.class);
+                    for (String sequence : sequences) {
+                        jdbc.execute("alter sequence " + sequence + " restart with " + (shard * this.idStride + 1));
+                    }
+                }
+            }
+            if (this.rebalanceOnStart) {
+                this.rebalancer.rebalance();
+            }
+        }
+    }
+
+    static class ShardingPostProcessor implements BeanPostProcessor {
+
+        private final BeanFactory beanFactory;
+
+        ShardingPostProcessor(BeanFactory beanFactory) {
+            this.beanFactory = beanFactory;
+        }
+
+        @Override
+        public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+            return bean;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+            if (bean instanceof Repository || bean instanceof BookmarkImporter) {
+                ShardingInterceptor interceptor = new ShardingInterceptor(this.beanFactory);
+                if (bean instanceof Advised && !((Advised) bean).isFrozen()) {
+                    ((Advised) bean).addAdvice(0, interceptor);
+                    return bean;
+                }
+                ProxyFactory proxyFactory = new ProxyFactory(bean);
+                proxyFactory.setProxyTargetClass(!(bean instanceof Repository));
+                proxyFactory.addAdvice(interceptor);
+                return proxyFactory.getProxy();
+            }
+            return bean;
+        }
+    }
+
+    /**
+     * Binds the shard, or each shard in turn, around the rest of the call. It
+     * sits in front of the transaction interceptor, so every transaction
+     * begins on the right shard.
+     */
+    static class ShardingInterceptor implements MethodInterceptor {
+
+        private final BeanFactory beanFactory;
+
+        private volatile ShardRoutingDataSource shards;
+
+        ShardingInterceptor(BeanFactory beanFactory) {
+            this.beanFactory = beanFactory;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            if (ShardContext.current() != null) {
+                return invocation.proceed();
+            }
+            if (TransactionSynchronizationManager.isActualTransactionActive()) {
+                throw new IllegalStateException("cannot choose a shard for " + invocation.getMethod()
+                        + " inside a transaction that was begun without one, bind it in ShardContext first");
+            }
+            ShardRoutingDataSource shards = this.shards();
+            Method method = invocation.getMethod();
+            Object[] arguments = invocation.getArguments();
+
+            String username = username(method, arguments);
+            if (username != null) {
+                return onShard(shards.shardOf(username), invocation, arguments);
+            }
+            for (int i = 0; i < arguments.length; i++) {
+                Map<Integer, List<Object>> byShard = byShard(shards, arguments[i]);
+                if (byShard != null) {
+                    List<Object> results = new ArrayList<>();
+                    for (Map.Entry<Integer, List<Object>> entry : byShard.entrySet()) {
+                        Object[] shardArguments = arguments.clone();
+                        shardArguments[i] = entry.getValue();
+                        results.add(onShard(entry.getKey(), invocation, shardArguments));
+                    }
+                    return merge(method, arguments, results);
+                }
+            }
+            if (Page.class.isAssignableFrom(method.getReturnType())) {
+                throw new UnsupportedOperationException(method + " returns a page, which cannot be merged across shards");
+            }
+            List<Object> results = new ArrayList<>();
+            EmptyResultDataAccessException missing = null;
+            for (int shard = 0; shard < shards.getShardCount(); shard++) {
+                try {
+                    results.add(onShard(shard, invocation, arguments));
+                } catch (EmptyResultDataAccessException e) {
+                    // deleting by id only succeeds on the shard that has the row
+                    missing = e;
+                }
+            }
+            if (results.isEmpty() && missing != null) {
+                throw missing;
+            }
+            return merge(method, arguments, results);
+        }
+
+        private ShardRoutingDataSource shards() {
+            if (this.shards == null) {
+                this.shards = this.beanFactory.getBean(ShardRoutingDataSource.class);
+            }
+            return this.shards;
+        }
+
+        private static Object onShard(int shard, MethodInvocation invocation, Object[] arguments) throws Throwable {
+            Integer previous = ShardContext.bind(shard);
+            try {
+                return ((ProxyMethodInvocation) invocation).invocableClone(arguments).proceed();
+            } finally {
+                ShardContext.restore(previous);
+            }
+        }
+
+        private static String username(Method method, Object[] arguments) {
+            for (Object argument : arguments) {
+                if (argument instanceof Account) {
+                    return ((Account) argument).getUsername();
+                }
+                if (argument instanceof Bookmark && ((Bookmark) argument).getAccount() != null) {
+                    return ((Bookmark) argument).getAccount().getUsername();
+                }
+                if (argument instanceof String && method != null && method.getName().contains("Username")) {
+                    return (String) argument;
+                }
+            }
+            return null;
+        }
+
+        // null unless the argument is a non-empty iterable of entities
+        private static Map<Integer, List<Object>> byShard(ShardRoutingDataSource shards, Object argument) {
+            if (!(argument instanceof Iterable)) {
+                return null;
+            }
+            Map<Integer, List<Object>> byShard = new LinkedHashMap<>();
+            for (Object element : (Iterable<?>) argument) {
+                String username = username(null, new Object[]{element});
+                if (username == null) {
+                    return null;
+                }
+                byShard.computeIfAbsent(shards.shardOf(username), s -> new ArrayList<>()).add(element);
+            }
+            return byShard.isEmpty() ? null : byShard;
+        }
+
+        private static Object merge(Method method, Object[] arguments, List<Object> results) {
+            Class<?> type = method.getReturnType();
+            if (type == void.class) {
+                return null;
+            }
+            if (type == long.class || type == Long.class) {
+                long sum = 0;
+                for (Object result : results) {
+                    sum += (Long) result;
+                }
+                return sum;
+            }
+            if (type == boolean.class || type == Boolean.class) {
+                return results.contains(Boolean.TRUE);
+            }
+            if (type == Optional.class) {
+                return results.stream().map(r -> (Optional<?>) r).filter(Optional::isPresent)
+                        .findFirst().orElse(Optional.empty());
+            }
+            if (Iterable.class.isAssignableFrom(type)) {
+                List<Object> merged = new ArrayList<>();
+                for (Object result : results) {
+                    if (result instanceof Collection) {
+                        merged.addAll((Collection<?>) result);
+                    } else if (result != null) {
+                        ((Iterable<?>) result).forEach(merged::add);
+                    }
+                }
+                if (merged.stream().allMatch(e -> id(e) != null)) {
+                    merged.sort(Comparator.comparing(ShardingInterceptor::id));
+                }
+                for (Object argument : arguments) {
+                    if (argument instanceof Pageable && merged.size() > ((Pageable) argument).getPageSize()) {
+                        return new ArrayList<>(merged.subList(0, ((Pageable) argument).getPageSize()));
+                    }
+                }
+                return merged;
+            }
+            return results.stream().filter(r -> r != null).findFirst().orElse(null);
+        }
+
+        // projection rows such as findIndexRowsAfter carry the id as their only Long column
+        private static Long id(Object element) {
+            if (element instanceof Bookmark) {
+                return ((Bookmark) element).getId();
+            }
+            if (element instanceof BookmarkView) {
+                return ((BookmarkView) element).getId();
+            }
+            if (element instanceof Account) {
+                return ((Account) element).getId();
+            }
+            if (element instanceof Object[]) {
+                for (Object column : (Object[]) element) {
+                    if (column instanceof Long) {
+                        return (Long) column;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package bookmarks;
+
+import java.util.function.Supplier;
+
+/**
+ * The shard that {@link ShardRoutingDataSource} hands connections out for on
+ * the current thread. Repository calls normally bind it themselves from the
+ * account they are for, see {@link ShardConfiguration}. Code that has to work
+ * on one particular shard, such as {@link ShardRebalancer}, binds it
+ * explicitly, and repository calls made inside then stay on that shard.
+ */
+public final class ShardContext {
+
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    private ShardContext() {
+    }
+
+    /**
+     * The bound shard, or {@code null} if the caller has not chosen one.
+     */
+    public static Integer current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds {@code shard} and returns whatever was bound before, for
+     * {@link #restore(Integer)}.
+     */
+    public static Integer bind(Integer shard) {
+        Integer previous = CURRENT.get();
+        CURRENT.set(shard);
+        return previous;
+    }
+
+    public static void restore(Integer previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    public static <T> T call(int shard, Supplier<T> work) {
+        Integer previous = bind(shard);
+        try {
+            return work.get();
+        } finally {
+            restore(previous);
+        }
+    }
+}
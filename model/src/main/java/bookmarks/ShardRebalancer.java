@@ -0,0 +1,102 @@
+package bookmarks;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Moves every account that is not on {@link ShardRoutingDataSource#shardOf(String)}
+ * to that shard, along with its bookmarks. It is used after changing the
+ * number of shards: list the new shards after the existing ones, start with
+ * {@code bookmarks.datasource.rebalance-on-start=true}, or call
+ * {@link #rebalance()}, and the accounts whose shard changed are copied over.
+ * <p>
+ * Each account is copied in a transaction on its new shard and then deleted
+ * in a transaction on its old one. Ids are unique across shards, so they are
+ * kept as they are. A crash in between leaves the account on both shards.
+ * Running again replaces the partial copy and finishes the move. Writes to an
+ * account that is being moved can be lost, so rebalance before taking
+ * traffic.
+ */
+public class ShardRebalancer {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final ShardRoutingDataSource shards;
+
+    public ShardRebalancer(ShardRoutingDataSource shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @return the number of accounts moved
+     */
+    public int rebalance() {
+        int moved = 0;
+        for (int from = 0; from < this.shards.getShardCount(); from++) {
+            List<Map<String, Object>> accounts = new JdbcTemplate(this.shards.getShards().get(from))
+                    .queryForList("select id, username, password from account");
+            for (Map<String, Object> account : accounts) {
+                int to = this.shards.shardOf((String) account.get("username"));
+                if (to != from) {
+                    this.move(account, from, to);
+                    moved++;
+                }
+            }
+        }
+        return moved;
+    }
+
+    private void move(Map<String, Object> account, int from, int to) {
+        DataSource source = this.shards.getShards().get(from);
+        DataSource target = this.shards.getShards().get(to);
+        Long accountId = ((Number) account.get("id")).longValue();
+        JdbcTemplate sourceJdbc = new JdbcTemplate(source);
+        JdbcTemplate targetJdbc = new JdbcTemplate(target);
+
+        transactionTemplate(target).execute(status -> {
+            targetJdbc.update("delete from bookmark where account_id = ?", accountId);
+            targetJdbc.update("delete from account where id = ?", accountId);
+            targetJdbc.update("insert into account (id, username, password) values (?, ?, ?)",
+                    accountId, account.get("username"), account.get("password"));
+            List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+            sourceJdbc.query("select b.id, u.uri, b.description from bookmark b join url u on u.id = b.url_id "
+                    + "where b.account_id = ? order by b.id", rs -> {
+                batch.add(new Object[]{rs.getLong(1), accountId, rs.getString(2), rs.getString(3)});
+                if (batch.size() == BATCH_SIZE) {
+                    insertBookmarks(targetJdbc, batch);
+                }
+            }, accountId);
+            insertBookmarks(targetJdbc, batch);
+            return null;
+        });
+
+        transactionTemplate(source).execute(status -> {
+            sourceJdbc.update("delete from bookmark where account_id = ?", accountId);
+            sourceJdbc.update("delete from account where id = ?", accountId);
+            return null;
+        });
+    }
+
+    private static void insertBookmarks(JdbcTemplate jdbc, List<Object[]> batch) {
+        if (!batch.isEmpty()) {
+            // url ids are per database, so the target gets its own rows
+            Map<String, Long> urls = jdbc.execute((ConnectionCallback<Map<String, Long>>) connection ->
+                    Urls.store(connection, batch.stream().map(row -> (String) row[2]).collect(Collectors.toList())));
+            batch.forEach(row -> row[2] = urls.get(row[2]));
+            jdbc.batchUpdate("insert into bookmark (id, account_id, url_id, description) values (?, ?, ?, ?)", batch);
+            batch.clear();
+        }
+    }
+
+    private static TransactionTemplate transactionTemplate(DataSource dataSource) {
+        return new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+}
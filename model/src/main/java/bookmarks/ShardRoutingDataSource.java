@@ -0,0 +1,69 @@
+package bookmarks;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands out connections to the shard bound in {@link ShardContext}. With no
+ * shard bound, which is the case for Hibernate's own schema and sequence
+ * work, it falls back to shard 0.
+ * <p>
+ * An account lives on {@link #shardOf(String)} of its username, together
+ * with all of its bookmarks. The hash is a jump consistent hash. When shards
+ * are added at the end of the list, only the accounts that now belong on a
+ * new shard move; see {@link ShardRebalancer}.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource {
+
+    private final List<DataSource> shards;
+
+    public ShardRoutingDataSource(List<DataSource> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("at least one shard is required");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+
+        Map<Object, Object> targets = new HashMap<>();
+        for (int i = 0; i < this.shards.size(); i++) {
+            targets.put(i, this.shards.get(i));
+        }
+        this.setTargetDataSources(targets);
+        this.setDefaultTargetDataSource(this.shards.get(0));
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return ShardContext.current();
+    }
+
+    public int shardOf(String username) {
+        // String.hashCode() spreads short, similar usernames too poorly to feed the jump hash directly
+        return jumpHash(Fnv1a.hash(username), this.shards.size());
+    }
+
+    public List<DataSource> getShards() {
+        return this.shards;
+    }
+
+    public int getShardCount() {
+        return this.shards.size();
+    }
+
+    // Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm"
+    static int jumpHash(long key, int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+}
@@ -0,0 +1,74 @@
+package bookmarks;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Collections;
+
+/**
+ * Jackson's binary JSON, Smile: the same object model as the JSON responses,
+ * with back-references for repeated property names and short strings, so a
+ * list of bookmarks shrinks to roughly half its JSON size and parses without
+ * text scanning.
+ * <p>
+ * It uses the application's own JSON {@link ObjectMapper}, with its modules
+ * and settings (the HAL mapper, where there is one), and only swaps its
+ * parsers and generators for Smile ones. A bare Smile mapper would write
+ * different documents than the JSON responses.
+ */
+public class SmileHttpMessageConverter extends MappingJackson2HttpMessageConverter {
+
+    public static final String SMILE_VALUE = "application/x-jackson-smile";
+
+    public static final MediaType SMILE = MediaType.valueOf(SMILE_VALUE);
+
+    private final SmileFactory smileFactory = new SmileFactory();
+
+    public SmileHttpMessageConverter(ObjectMapper objectMapper) {
+        this.setObjectMapper(objectMapper);
+        this.setSupportedMediaTypes(Collections.singletonList(SMILE));
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) throws IOException {
+        return this.readSmile(this.getJavaType(clazz, null), inputMessage);
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) throws IOException {
+        return this.readSmile(this.getJavaType(type, contextClass), inputMessage);
+    }
+
+    private Object readSmile(JavaType javaType, HttpInputMessage inputMessage) throws IOException {
+        try {
+            JsonParser parser = this.smileFactory.createParser(inputMessage.getBody());
+            return this.getObjectMapper().readValue(parser, javaType);
+        } catch (JsonProcessingException ex) {
+            throw new HttpMessageNotReadableException("Could not read Smile: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    protected void writeInternal(Object object, HttpOutputMessage outputMessage) throws IOException {
+        // like the JSON converter, flushed but not closed, so filters further out can still write
+        JsonGenerator generator = this.smileFactory.createGenerator(outputMessage.getBody());
+        try {
+            this.getObjectMapper().writeValue(generator, object);
+            generator.flush();
+        } catch (JsonProcessingException ex) {
+            throw new HttpMessageNotWritableException("Could not write Smile: " + ex.getMessage(), ex);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package bookmarks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.SpringApplicationRunListener;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.ConfigurableEnvironment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each phase of {@link SpringApplication#run}, logs them once the
+ * application has started and publishes them as {@code startup.*} gauges.
+ * The phases are:
+ * <ul>
+ * <li>{@code environment}: properties and profiles</li>
+ * <li>{@code context}: creating the application context</li>
+ * <li>{@code load}: loading bean definitions</li>
+ * <li>{@code refresh}: creating the beans, including Hibernate</li>
+ * <li>{@code started}: refreshed-event listeners, such as the search index,
+ * and the embedded server</li>
+ * <li>{@code runners}: command line runners, such as data seeding</li>
+ * </ul>
+ * It is registered in {@code META-INF/spring.factories}.
+ */
+public class StartupTimings implements SpringApplicationRunListener,
+        ApplicationListener<ContextRefreshedEvent>, CommandLineRunner, Ordered {
+
+    private static final Log log = LogFactory.getLog(StartupTimings.class);
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    private final long startedAt = System.nanoTime();
+
+    private long last = this.startedAt;
+
+    public StartupTimings(SpringApplication application, String[] args) {
+    }
+
+    @Override
+    public void started() {
+    }
+
+    @Override
+    public void environmentPrepared(ConfigurableEnvironment environment) {
+        this.phase("environment");
+    }
+
+    @Override
+    public void contextPrepared(ConfigurableApplicationContext context) {
+        this.phase("context");
+        context.addApplicationListener(this);
+        context.getBeanFactory().registerSingleton(StartupTimings.class.getName(), this);
+    }
+
+    @Override
+    public void contextLoaded(ConfigurableApplicationContext context) {
+        this.phase("load");
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (!this.phases.containsKey("refresh")) {
+            this.phase("refresh");
+        }
+    }
+
+    // ordered first among the runners, so everything after refresh and before it is "started"
+    @Override
+    public void run(String... args) {
+        this.phase("started");
+    }
+
+    @Override
+    public void finished(ConfigurableApplicationContext context, Throwable exception) {
+        if (exception != null || context == null) {
+            return;
+        }
+        this.phase("runners");
+        long total = TimeUnit.NANOSECONDS.toMillis(this.last - this.startedAt);
+        StringBuilder message = new StringBuilder("Started in ").append(total).append(" ms (");
+        this.phases.forEach((phase, millis) -> message.append(phase).append(' ').append(millis).append(", "));
+        message.setLength(message.length() - 2);
+        log.info(message.append(" ms)"));
+
+        String[] metrics = context.getBeanNamesForType(LatencyMetrics.class);
+        if (metrics.length > 0) {
+            LatencyMetrics latencyMetrics = context.getBean(metrics[0], LatencyMetrics.class);
+            this.phases.forEach((phase, millis) -> latencyMetrics.gauge("startup." + phase + "Millis", () -> millis));
+            latencyMetrics.gauge("startup.totalMillis", () -> total);
+        }
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+
+    private void phase(String name) {
+        long now = System.nanoTime();
+        this.phases.put(name, TimeUnit.NANOSECONDS.toMillis(now - this.last));
+        this.last = now;
+    }
+}
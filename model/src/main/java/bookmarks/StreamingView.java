@@ -0,0 +1,42 @@
+package bookmarks;
+
+import org.springframework.web.servlet.View;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes a response itself, on the container thread that renders it. Handlers
+ * that look their account up on the {@link DatabaseExecutor} and then write
+ * the body as they go, or start an event stream, return one from their
+ * {@code DeferredResult}. The writing then happens once the request has been
+ * dispatched back to the container, where the response can still be written
+ * to and {@code startAsync} called again.
+ */
+public class StreamingView implements View {
+
+    private final ResponseWriter writer;
+
+    public StreamingView(ResponseWriter writer) {
+        this.writer = writer;
+    }
+
+    // the writer sets its own
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public void render(Map<String, ?> model, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        this.writer.write(request, response);
+    }
+
+    public interface ResponseWriter {
+
+        void write(HttpServletRequest request, HttpServletResponse response) throws IOException;
+    }
+}
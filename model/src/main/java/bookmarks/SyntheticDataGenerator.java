@@ -0,0 +1,166 @@
+package bookmarks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Loads large numbers of made-up accounts and bookmarks for performance
+ * testing. Start any application with, for example,
+ * {@code --bookmarks.synthetic.accounts=1000000 --bookmarks.synthetic.bookmarks-per-account=10}.
+ * <p>
+ * Rows are written with plain JDBC batch inserts of about
+ * {@code bookmarks.synthetic.batch-size} bookmarks, one transaction each.
+ * Ids come from the entities' own generators, so the application can keep
+ * inserting afterwards. The search index is rebuilt when loading is done.
+ * Usernames are {@code user<account id>}. Descriptions are drawn from a small
+ * vocabulary so that searches have realistic hit rates.
+ */
+@Component
+public class SyntheticDataGenerator implements CommandLineRunner {
+
+    private static final Log log = LogFactory.getLog(SyntheticDataGenerator.class);
+
+    private static final String[] WORDS = ("spring boot data jpa hibernate jackson tomcat security oauth hateoas " +
+            "java groovy scala kotlin reactive cloud microservices docker kubernetes metrics cache search " +
+            "database sql index batch stream json http rest api guide tutorial video blog news release").split(" ");
+
+    private final SessionFactoryImplementor sessionFactory;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final BookmarkIndex bookmarkIndex;
+
+    private final int accounts;
+
+    private final int bookmarksPerAccount;
+
+    private final int batchSize;
+
+    private ShardRoutingDataSource shards;
+
+    @Autowired
+    public SyntheticDataGenerator(EntityManagerFactory entityManagerFactory, DataSource dataSource,
+                                  PlatformTransactionManager transactionManager, BookmarkIndex bookmarkIndex,
+                                  @Value("${bookmarks.synthetic.accounts:0}") int accounts,
+                                  @Value("${bookmarks.synthetic.bookmarks-per-account:100}") int bookmarksPerAccount,
+                                  @Value("${bookmarks.synthetic.batch-size:1000}") int batchSize) {
+        this.sessionFactory = (SessionFactoryImplementor) entityManagerFactory.unwrap(SessionFactory.class);
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.bookmarkIndex = bookmarkIndex;
+        this.accounts = accounts;
+        this.bookmarksPerAccount = bookmarksPerAccount;
+        this.batchSize = batchSize;
+    }
+
+    @Autowired(required = false)
+    void setShards(ShardRoutingDataSource shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public void run(String... args) {
+        if (this.accounts > 0) {
+            this.generate(this.accounts, this.bookmarksPerAccount);
+        }
+    }
+
+    /**
+     * @return the number of bookmarks written
+     */
+    public long generate(int accounts, int bookmarksPerAccount) {
+        long start = System.nanoTime();
+        Random random = new Random(accounts);
+        IdentifierGenerator accountIds = this.sessionFactory.getIdentifierGenerator(Account.class.getName());
+        IdentifierGenerator bookmarkIds = this.sessionFactory.getIdentifierGenerator(Bookmark.class.getName());
+        int accountsPerBatch = Math.max(1, this.batchSize / Math.max(1, bookmarksPerAccount));
+        long bookmarks = 0;
+
+        StatelessSession session = this.sessionFactory.openStatelessSession();
+        try {
+            for (int done = 0; done < accounts; done += accountsPerBatch) {
+                // rows per shard, or all under null without sharding
+                Map<Integer, List<Object[]>> accountRows = new LinkedHashMap<>();
+                Map<Integer, List<Object[]>> bookmarkRows = new LinkedHashMap<>();
+                for (int a = done; a < Math.min(accounts, done + accountsPerBatch); a++) {
+                    Long accountId = id(accountIds, session);
+                    String username = "user" + accountId;
+                    Integer shard = this.shards == null ? null : this.shards.shardOf(username);
+                    accountRows.computeIfAbsent(shard, s -> new ArrayList<>())
+                            .add(new Object[]{accountId, username, "password"});
+                    List<Object[]> rows = bookmarkRows.computeIfAbsent(shard, s -> new ArrayList<>());
+                    for (int b = 0; b < bookmarksPerAccount; b++) {
+                        String first = WORDS[random.nextInt(WORDS.length)];
+                        String second = WORDS[random.nextInt(WORDS.length)];
+                        rows.add(new Object[]{id(bookmarkIds, session), accountId,
+                                "http://" + first + ".example.com/" + second + "/" + b,
+                                first + " " + second + " " + WORDS[random.nextInt(WORDS.length)]});
+                    }
+                    bookmarks += bookmarksPerAccount;
+                }
+                for (Map.Entry<Integer, List<Object[]>> entry : accountRows.entrySet()) {
+                    Integer previous = ShardContext.bind(entry.getKey());
+                    try {
+                        this.transactionTemplate.execute(status -> {
+                            this.jdbcTemplate.batchUpdate("insert into account (id, username, password) values (?, ?, ?)",
+                                    entry.getValue());
+                            List<Object[]> rows = bookmarkRows.get(entry.getKey());
+                            Map<String, Long> urls = this.jdbcTemplate.execute((ConnectionCallback<Map<String, Long>>)
+                                    connection -> Urls.store(connection, rows.stream().map(row -> (String) row[2])
+                                            .collect(Collectors.toList())));
+                            rows.forEach(row -> row[2] = urls.get(row[2]));
+                            this.jdbcTemplate.batchUpdate("insert into bookmark (id, account_id, url_id, description) values (?, ?, ?, ?)",
+                                    rows);
+                            return null;
+                        });
+                    } finally {
+                        ShardContext.restore(previous);
+                    }
+                }
+            }
+        } finally {
+            session.close();
+        }
+
+        this.sessionFactory.getCache().evictQueryRegions();
+        this.bookmarkIndex.rebuild();
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        log.info("Generated " + accounts + " accounts and " + bookmarks + " bookmarks in " + millis + " ms ("
+                + (bookmarks * 1000 / millis) + " bookmarks/s)");
+        return bookmarks;
+    }
+
+    private static Long id(IdentifierGenerator generator, StatelessSession session) {
+        Serializable id = generator.generate((SessionImplementor) session, null);
+        if (!(id instanceof Number)) {
+            throw new IllegalStateException("ids must be allocated before the insert, not by the database");
+        }
+        return ((Number) id).longValue();
+    }
+}
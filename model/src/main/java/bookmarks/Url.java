@@ -0,0 +1,52 @@
+package bookmarks;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Immutable;
+
+import javax.persistence.Cacheable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.PostLoad;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * A URI that any number of bookmarks, across accounts, point to. The id is a
+ * hash of the URI, so writers find the row without looking it up. See
+ * {@link Urls}.
+ */
+@Entity
+@Immutable
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_url_uri", columnNames = "uri"))
+public class Url {
+
+    // the column's default length, spelled out for the writers that check it
+    public static final int MAX_URI_LENGTH = 255;
+
+    @Id
+    private Long id;
+
+    @Column(nullable = false, updatable = false, length = MAX_URI_LENGTH)
+    private String uri;
+
+    Url() { // jpa only
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    // rows loaded by different sessions share one string
+    @PostLoad
+    void intern() {
+        this.uri = Urls.intern(this.uri);
+    }
+}
@@ -0,0 +1,73 @@
+package bookmarks;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PersistEvent;
+import org.hibernate.event.spi.PersistEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.metamodel.source.MetadataImplementor;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Points each new {@link Bookmark} at the {@link Url} row for its URI just
+ * before it is persisted, storing the row first if needed. The work runs on
+ * the session's own connection, in its transaction. Bulk writers such as
+ * {@link BookmarkImporter} set the url for a whole batch themselves, and
+ * this listener leaves those bookmarks alone. Hibernate finds this class
+ * through {@code META-INF/services}.
+ */
+public class UrlIntegrator implements Integrator, PersistEventListener {
+
+    @Override
+    public void integrate(Configuration configuration, SessionFactoryImplementor sessionFactory,
+                          SessionFactoryServiceRegistry serviceRegistry) {
+        this.register(serviceRegistry);
+    }
+
+    @Override
+    public void integrate(MetadataImplementor metadata, SessionFactoryImplementor sessionFactory,
+                          SessionFactoryServiceRegistry serviceRegistry) {
+        this.register(serviceRegistry);
+    }
+
+    @Override
+    public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+    }
+
+    private void register(SessionFactoryServiceRegistry serviceRegistry) {
+        EventListenerRegistry listeners = serviceRegistry.getService(EventListenerRegistry.class);
+        listeners.prependListeners(EventType.PERSIST, this);
+        listeners.prependListeners(EventType.PERSIST_ONFLUSH, this);
+    }
+
+    @Override
+    public void onPersist(PersistEvent event) throws HibernateException {
+        Object entity = event.getObject();
+        if (entity instanceof Bookmark) {
+            Bookmark bookmark = (Bookmark) entity;
+            String uri = bookmark.uri;
+            if (bookmark.getUrl() == null) {
+                // refused here rather than by the url_id constraint at flush, which would be a 500
+                Urls.checkUri(uri);
+                EventSource session = event.getSession();
+                Long id = session.doReturningWork(connection ->
+                        Urls.store(connection, Collections.singleton(uri)).get(uri));
+                // a get rather than a proxy, so the row also reaches the second level cache
+                bookmark.setUrl((Url) session.get(Url.class, id));
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void onPersist(PersistEvent event, Map createdAlready) throws HibernateException {
+        this.onPersist(event);
+    }
+}
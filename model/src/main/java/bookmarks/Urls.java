@@ -0,0 +1,194 @@
+package bookmarks;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and interns the rows of the shared {@link Url} table.
+ * <p>
+ * A URI's id is its 64-bit FNV-1a hash. If two URIs hash alike, the later
+ * one takes the next free id. Writers insert each URI unless its id is
+ * taken, in one batch, and only read rows back to tell their own URI from
+ * a clash. The id each URI ended up with is remembered per database, so
+ * storing a known URI costs a single statement. That statement also puts
+ * back a row that was dropped, since the remembered id is only trusted
+ * when the insert finds the id taken.
+ * <p>
+ * A URI longer than {@link Url#MAX_URI_LENGTH} is refused with an
+ * {@link InvalidBookmarkException} before anything is written. Only a
+ * duplicate key (SQLState class {@code 23}) is taken as another transaction
+ * winning a race for an id; any other failure is rethrown. Probing for a
+ * free id gives up after {@value #MAX_PROBES} ids or lost races.
+ * <p>
+ * Rows are never deleted. They are shared, and a URI that is bookmarked
+ * once tends to be bookmarked again.
+ */
+public final class Urls {
+
+    static final String INSERT = "insert into url (id, uri) select ?, ? from dual "
+            + "where not exists (select 1 from url where id = ?)";
+
+    private static final String SELECT = "select uri from url where id = ?";
+
+    // a 64-bit hash clashes so rarely that running into this many rows means something else is wrong
+    static final int MAX_PROBES = 64;
+
+    private static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+    private static final int INTERN_SLOTS = 1 << 16;
+
+    // direct mapped and lossy: a race or a clash only costs a duplicate string
+    private static final String[] interned = new String[INTERN_SLOTS];
+
+    private static final ExpiringCache<String, Long> ids = new ExpiringCache<>(100000, 1, TimeUnit.HOURS);
+
+    private Urls() {
+    }
+
+    /**
+     * The copy of {@code uri} that other loaded bookmarks already share, if
+     * it was seen recently.
+     */
+    public static String intern(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        int hash = uri.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (INTERN_SLOTS - 1);
+        String candidate = interned[slot];
+        if (uri.equals(candidate)) {
+            return candidate;
+        }
+        interned[slot] = uri;
+        return uri;
+    }
+
+    public static long hash(String uri) {
+        return Fnv1a.hash(uri);
+    }
+
+    /**
+     * Refuses a missing or blank URI, which no {@link Url} row could stand for.
+     */
+    public static void checkUri(String uri) {
+        if (uri == null || uri.trim().isEmpty()) {
+            throw new InvalidBookmarkException("a bookmark needs a uri.");
+        }
+        checkLength(uri);
+    }
+
+    /**
+     * Refuses a URI that the {@link Url} table could not hold.
+     */
+    public static void checkLength(String uri) {
+        if (uri.length() > Url.MAX_URI_LENGTH) {
+            throw new InvalidBookmarkException("a bookmark's uri can be at most " + Url.MAX_URI_LENGTH + " characters.");
+        }
+    }
+
+    /**
+     * Makes sure each URI has a row, in the connection's current transaction.
+     *
+     * @return the id of each distinct URI
+     */
+    public static Map<String, Long> store(Connection connection, Collection<String> uris) throws SQLException {
+        String database = connection.getMetaData().getURL();
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(uris));
+        distinct.forEach(Urls::checkLength);
+        Map<String, Long> stored = new LinkedHashMap<>();
+        // URIs whose id may belong to another URI
+        Set<String> unverified = new LinkedHashSet<>();
+        int[] counts;
+        try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+            for (String uri : distinct) {
+                Long id = ids.getIfPresent(database + '\n' + uri);
+                if (id == null) {
+                    id = hash(uri);
+                    unverified.add(uri);
+                }
+                stored.put(uri, id);
+                bind(insert, id, uri);
+                insert.addBatch();
+            }
+            try {
+                counts = insert.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+                // another transaction inserted one of the ids first; read everything back
+                counts = new int[0];
+                unverified.addAll(distinct);
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                unverified.remove(distinct.get(i));
+            }
+        }
+        for (String uri : unverified) {
+            stored.put(uri, probe(connection, uri, stored.get(uri)));
+        }
+        stored.forEach((uri, id) -> ids.put(database + '\n' + uri, id));
+        return stored;
+    }
+
+    // from id on, the row that holds uri or the first free id for it
+    private static long probe(Connection connection, String uri, long id) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(SELECT);
+             PreparedStatement insert = connection.prepareStatement(INSERT)) {
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                select.setLong(1, id);
+                try (ResultSet row = select.executeQuery()) {
+                    if (row.next()) {
+                        if (uri.equals(row.getString(1))) {
+                            return id;
+                        }
+                        id++;
+                        continue;
+                    }
+                }
+                bind(insert, id, uri);
+                try {
+                    if (insert.executeUpdate() > 0) {
+                        return id;
+                    }
+                } catch (SQLException e) {
+                    if (!isDuplicateKey(e)) {
+                        throw e;
+                    }
+                    // taken by a concurrent insert; read it on the next pass
+                }
+            }
+        }
+        throw new SQLException("No id found for " + uri + " after " + MAX_PROBES + " probes");
+    }
+
+    // drivers differ in whether a batch's own state or its next exception carries the cause
+    private static boolean isDuplicateKey(SQLException e) {
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            String state = cause.getSQLState();
+            if (state != null && state.startsWith(INTEGRITY_CONSTRAINT_VIOLATION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void bind(PreparedStatement insert, long id, String uri) throws SQLException {
+        insert.setLong(1, id);
+        insert.setString(2, uri);
+        insert.setLong(3, id);
+    }
+}
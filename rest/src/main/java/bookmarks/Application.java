@@ -1,36 +1,63 @@
 package bookmarks;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.autoconfigure.MetricFilterAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.TraceWebFilterAutoConfiguration;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.MultipartAutoConfiguration;
+import org.springframework.boot.autoconfigure.websocket.WebSocketAutoConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.View;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 @Configuration
 @ComponentScan
-@EnableAutoConfiguration
+@EnableAutoConfiguration(exclude = {MetricFilterAutoConfiguration.class, TraceWebFilterAutoConfiguration.class,
+        MultipartAutoConfiguration.class, WebSocketAutoConfiguration.class})
 public class Application {
 
     @Bean
-    CommandLineRunner init(AccountRepository accountRepository, BookmarkRepository bookmarkRepository) {
-        return (evt) ->
-                Arrays.asList("jhoeller,dsyer,pwebb,ogierke,rwinch,mfisher,mpollack,jlong".split(","))
-                        .forEach(a -> {
-                            Account account = accountRepository.save(new Account(a, "password"));
-                            bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/1/" + a, "A description"));
-                            bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/2/" + a, "A description"));
-                        });
+    CommandLineRunner init(AccountRepository accountRepository, BookmarkRepository bookmarkRepository,
+                           @Value("${bookmarks.seed.enabled:true}") boolean seed) {
+        return (evt) -> {
+            if (!seed) {
+                return;
+            }
+            // two saves of many entities, so Hibernate batches the inserts
+            List<Account> accounts = accountRepository.save(
+                    Arrays.stream("jhoeller,dsyer,pwebb,ogierke,rwinch,mfisher,mpollack,jlong".split(","))
+                            .map(a -> new Account(a, "password"))
+                            .collect(Collectors.toList()));
+            bookmarkRepository.save(accounts.stream()
+                    .flatMap(account -> Stream.of(
+                            new Bookmark(account, "http://bookmark.com/1/" + account.getUsername(), "A description"),
+                            new Bookmark(account, "http://bookmark.com/2/" + account.getUsername(), "A description")))
+                    .collect(Collectors.toList()));
+        };
     }
 
     public static void main(String[] args) {
@@ -42,48 +69,228 @@ public class Application {
 @RequestMapping("/{userId}/bookmarks")
 class BookmarkRestController {
 
+    private static final MediaType JSON_UTF8 = MediaType.valueOf(MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8");
+
     private final BookmarkRepository bookmarkRepository;
 
-    private final AccountRepository accountRepository;
+    private final AccountCache accountCache;
+
+    private final BookmarkScroller bookmarkScroller;
+
+    private final BookmarkImporter bookmarkImporter;
+
+    private final ObjectMapper objectMapper;
+
+    private final AccountVersions accountVersions;
+
+    private final BookmarkIndex bookmarkIndex;
+
+    private final DatabaseExecutor databaseExecutor;
+
+    private final BookmarkWriteBehind bookmarkWriteBehind;
+
+    private final CompressedBodyCache compressedBodyCache;
+
+    private final BookmarkChangeFeed bookmarkChangeFeed;
 
     @RequestMapping(method = RequestMethod.POST)
-    ResponseEntity<?> add(@PathVariable String userId, @RequestBody Bookmark input) {
-        this.validateUser(userId);
-        return this.accountRepository.findByUsername(userId)
-            .map(
-                account -> {
-                    Bookmark result = bookmarkRepository.save(new Bookmark(account, input.uri, input.description));
+    DeferredResult<ResponseEntity<?>> add(@PathVariable String userId, @RequestBody Bookmark input) {
+        ServletUriComponentsBuilder location = ServletUriComponentsBuilder.fromCurrentRequest();
+        if (this.bookmarkWriteBehind.isEnabled()) {
+            // queued on the request thread only when the account needs no lookup
+            Optional<Account> cached = this.accountCache.findCached(userId);
+            if (cached.isPresent()) {
+                return DatabaseExecutor.completed(this.enqueue(cached.get(), input, location));
+            }
+            return this.databaseExecutor.submit(() -> this.enqueue(this.validateUser(userId), input, location));
+        }
+        return this.databaseExecutor.submit(() -> {
+            Account account = this.validateUser(userId);
+            Bookmark result = bookmarkRepository.save(new Bookmark(account, input.uri, input.description));
+
+            HttpHeaders httpHeaders = new HttpHeaders();
+            httpHeaders.setLocation(location.path("/{id}")
+                    .buildAndExpand(result.getId())
+                    .toUri());
+            return new ResponseEntity<>(null, httpHeaders, HttpStatus.CREATED);
+        });
+    }
+
+    private ResponseEntity<?> enqueue(Account account, Bookmark input, ServletUriComponentsBuilder location) {
+        Bookmark result = this.bookmarkWriteBehind.enqueue(new Bookmark(account, input.uri, input.description));
+
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setLocation(location.path("/{id}")
+                .buildAndExpand(result.getId())
+                .toUri());
+        return new ResponseEntity<>(null, httpHeaders, HttpStatus.ACCEPTED);
+    }
 
-                    HttpHeaders httpHeaders = new HttpHeaders();
-                    httpHeaders.setLocation(ServletUriComponentsBuilder.fromCurrentRequest().path("/{id}")
-                            .buildAndExpand(result.getId())
-                            .toUri());
-                    return new ResponseEntity<>(null, httpHeaders, HttpStatus.CREATED);
-                }
-        ).get();
+    @RequestMapping(value = "/import", method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, BookmarkImporter.NDJSON_VALUE})
+    DeferredResult<ResponseEntity<?>> importBookmarks(@PathVariable String userId, InputStream body) throws IOException {
+        // read here, so that no database thread waits on the client sending the body
+        List<Bookmark> bookmarks;
+        try (MappingIterator<Bookmark> rows = BookmarkImporter.read(this.objectMapper, body)) {
+            bookmarks = rows.readAll();
+        }
+        ServletUriComponentsBuilder location = ServletUriComponentsBuilder.fromCurrentContextPath();
+        return this.databaseExecutor.submit(() -> {
+            int imported = this.bookmarkImporter.importBookmarks(this.validateUser(userId), bookmarks);
 
+            HttpHeaders httpHeaders = new HttpHeaders();
+            httpHeaders.setLocation(location.path("/{userId}/bookmarks")
+                    .buildAndExpand(userId)
+                    .toUri());
+            return new ResponseEntity<>(Collections.singletonMap("imported", imported), httpHeaders, HttpStatus.CREATED);
+        });
     }
 
     @RequestMapping(value = "/{bookmarkId}", method = RequestMethod.GET)
-    Bookmark readBookmark(@PathVariable String userId, @PathVariable Long bookmarkId) {
-        this.validateUser(userId);
-        return this.bookmarkRepository.findOne(bookmarkId);
+    DeferredResult<ResponseEntity<BookmarkView>> readBookmark(@PathVariable String userId, @PathVariable Long bookmarkId,
+                                                              @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setETag(this.accountVersions.etag(userId));
+        boolean notModified = AccountVersions.matches(ifNoneMatch, httpHeaders.getETag());
+        if (notModified && this.isCached(userId)) {
+            return DatabaseExecutor.completed(new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED));
+        }
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            if (notModified) {
+                return new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED);
+            }
+            return new ResponseEntity<>(this.bookmarkRepository.findViewById(bookmarkId), httpHeaders, HttpStatus.OK);
+        });
     }
 
     @RequestMapping(method = RequestMethod.GET)
-    Collection<Bookmark> readBookmarks(@PathVariable String userId) {
-        this.validateUser(userId);
-        return this.bookmarkRepository.findByAccountUsername(userId);
+    DeferredResult<ResponseEntity<?>> readBookmarks(@PathVariable String userId,
+                                                    @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                                    @RequestHeader(value = "Accept", required = false) String accept,
+                                                    @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        String etag = this.accountVersions.etag(userId);
+        boolean notModified = AccountVersions.matches(ifNoneMatch, etag);
+        String encoding = this.compressedBodyCache.negotiate(acceptEncoding);
+        boolean compressed = encoding != null && CompressedBodyCache.prefers(accept, MediaType.APPLICATION_JSON);
+        // a compressed body is a representation of its own, so it needs a tag of its own
+        httpHeaders.setETag(compressed ? AccountVersions.withCoding(etag, encoding) : etag);
+        httpHeaders.set("Vary", "Accept, Accept-Encoding");
+        if (this.isCached(userId)) {
+            if (notModified) {
+                return DatabaseExecutor.completed(new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED));
+            }
+            ResponseEntity<?> cached = compressed
+                    ? this.compressedBodyCache.getIfPresent(userId, etag, "", encoding, httpHeaders) : null;
+            if (cached != null) {
+                return DatabaseExecutor.completed(cached);
+            }
+        }
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            if (notModified) {
+                return new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED);
+            }
+            if (compressed) {
+                return this.compressedBodyCache.compress(userId, etag, "", encoding, JSON_UTF8, httpHeaders,
+                        out -> this.objectMapper.writeValue(out, this.bookmarkRepository.findViewsByAccountUsername(userId)));
+            }
+            return new ResponseEntity<>(this.bookmarkRepository.findViewsByAccountUsername(userId), httpHeaders, HttpStatus.OK);
+        });
+    }
+
+    @RequestMapping(value = "/search", method = RequestMethod.GET)
+    DeferredResult<List<BookmarkView>> searchBookmarks(@PathVariable String userId, @RequestParam String q,
+                                                       @RequestParam(defaultValue = "100") int limit) {
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            return this.bookmarkIndex.search(userId, q, limit);
+        });
+    }
+
+    @RequestMapping(method = RequestMethod.GET, params = "limit")
+    DeferredResult<ResponseEntity<List<BookmarkView>>> readBookmarkPage(@PathVariable String userId,
+                                                                        @RequestParam(required = false) Long after,
+                                                                        @RequestParam int limit) {
+        int pageSize = BookmarkScroller.pageSize(limit);
+        ServletUriComponentsBuilder current = ServletUriComponentsBuilder.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            List<BookmarkView> page = this.bookmarkScroller.page(userId, after, pageSize);
+
+            HttpHeaders httpHeaders = new HttpHeaders();
+            if (page.size() == pageSize) {
+                String next = current
+                        .replaceQueryParam("after", page.get(page.size() - 1).getId())
+                        .build()
+                        .toUriString();
+                httpHeaders.add("Link", "<" + next + ">; rel=\"next\"");
+            }
+            return new ResponseEntity<>(page, httpHeaders, HttpStatus.OK);
+        });
+    }
+
+    @RequestMapping(method = RequestMethod.GET, params = "stream")
+    DeferredResult<View> streamBookmarks(@PathVariable String userId) {
+        return this.afterLookup(userId, new StreamingView((request, response) -> {
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8");
+            try (JsonGenerator generator = this.objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+                // a read that fails part way leaves the array open, so the client cannot take it for the whole list
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                generator.writeStartArray();
+                this.bookmarkScroller.stream(userId, generator, bookmark -> bookmark);
+                generator.writeEndArray();
+            }
+        }));
+    }
+
+    @RequestMapping(value = "/changes", method = RequestMethod.GET)
+    DeferredResult<View> streamChanges(@PathVariable String userId,
+                                       @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        return this.afterLookup(userId, new StreamingView((request, response) ->
+                this.bookmarkChangeFeed.subscribe(userId, lastEventId, request, response)));
     }
 
     @Autowired
-    BookmarkRestController(BookmarkRepository bookmarkRepository, AccountRepository accountRepository) {
+    BookmarkRestController(BookmarkRepository bookmarkRepository, AccountCache accountCache,
+                           BookmarkScroller bookmarkScroller, BookmarkImporter bookmarkImporter,
+                           ObjectMapper objectMapper, AccountVersions accountVersions,
+                           BookmarkIndex bookmarkIndex, DatabaseExecutor databaseExecutor,
+                           BookmarkWriteBehind bookmarkWriteBehind, CompressedBodyCache compressedBodyCache,
+                           BookmarkChangeFeed bookmarkChangeFeed) {
         this.bookmarkRepository = bookmarkRepository;
-        this.accountRepository = accountRepository;
+        this.accountCache = accountCache;
+        this.bookmarkScroller = bookmarkScroller;
+        this.bookmarkImporter = bookmarkImporter;
+        this.objectMapper = objectMapper;
+        this.accountVersions = accountVersions;
+        this.bookmarkIndex = bookmarkIndex;
+        this.databaseExecutor = databaseExecutor;
+        this.bookmarkWriteBehind = bookmarkWriteBehind;
+        this.compressedBodyCache = compressedBodyCache;
+        this.bookmarkChangeFeed = bookmarkChangeFeed;
+    }
+
+    // a cache miss waits for the database, so handlers that use the executor call this on it
+    private Account validateUser(String userId) {
+        return this.accountCache.findByUsername(userId).orElseThrow(() -> new UserNotFoundException(userId));
+    }
+
+    // views write on the container thread once dispatched back to it, so only the lookup goes to the executor
+    private DeferredResult<View> afterLookup(String userId, View view) {
+        if (this.isCached(userId)) {
+            return DatabaseExecutor.completed(view);
+        }
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            return view;
+        });
     }
 
-    private void validateUser(String userId) {
-        this.accountRepository.findByUsername(userId).orElseThrow(() -> new UserNotFoundException(userId));
+    // a cached account can be answered from memory on the request thread
+    private boolean isCached(String userId) {
+        return this.accountCache.findCached(userId).isPresent();
     }
 }
 
@@ -0,0 +1,155 @@
+package bookmarks;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+public class BinaryFormatsTest {
+
+    private String userName = "bclozel";
+
+    private MockMvc mockMvc;
+
+    private List<Bookmark> bookmarkList = new ArrayList<>();
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Before
+    public void setup() throws Exception {
+        this.mockMvc = webAppContextSetup(this.webApplicationContext).build();
+
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+
+        Account account = this.accountRepository.save(new Account(this.userName, "password"));
+        this.bookmarkList.add(this.bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/1/" + this.userName, "A description")));
+        this.bookmarkList.add(this.bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/2/" + this.userName, "\u00dcn\u00efc\u00f6d\u00e9")));
+    }
+
+    @Test
+    public void jsonIsStillTheDefault() throws Exception {
+        performAsync(get("/" + this.userName + "/bookmarks").accept(MediaType.ALL))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void readBookmarksAsSmile() throws Exception {
+        byte[] body = performAsync(get("/" + this.userName + "/bookmarks").accept(SmileHttpMessageConverter.SMILE))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(SmileHttpMessageConverter.SMILE))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        List<Map<String, Object>> bookmarks = new ObjectMapper(new SmileFactory())
+                .readValue(body, new TypeReference<List<Map<String, Object>>>() {
+                });
+        assertEquals(2, bookmarks.size());
+        for (int i = 0; i < bookmarks.size(); i++) {
+            assertEquals(this.bookmarkList.get(i).getId().intValue(), ((Number) bookmarks.get(i).get("id")).intValue());
+            assertEquals(this.bookmarkList.get(i).getUri(), bookmarks.get(i).get("uri"));
+            assertEquals(this.bookmarkList.get(i).getDescription(), bookmarks.get(i).get("description"));
+        }
+    }
+
+    @Test
+    public void readBookmarksAsProtobuf() throws Exception {
+        byte[] body = performAsync(get("/" + this.userName + "/bookmarks")
+                .accept(BookmarkProtobufHttpMessageConverter.PROTOBUF))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(BookmarkProtobufHttpMessageConverter.PROTOBUF))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        List<Bookmark> bookmarks = BookmarkProtobufHttpMessageConverter.read(new ByteArrayInputStream(body));
+        assertEquals(2, bookmarks.size());
+        for (int i = 0; i < bookmarks.size(); i++) {
+            assertEquals(this.bookmarkList.get(i).getId(), bookmarks.get(i).getId());
+            assertEquals(this.bookmarkList.get(i).getUri(), bookmarks.get(i).getUri());
+            assertEquals(this.bookmarkList.get(i).getDescription(), bookmarks.get(i).getDescription());
+        }
+    }
+
+    @Test
+    public void createBookmarkFromProtobuf() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        BookmarkProtobufHttpMessageConverter.write(new Bookmark(null, "http://spring.io", "Spring"), body);
+
+        performAsync(post("/" + this.userName + "/bookmarks")
+                .contentType(BookmarkProtobufHttpMessageConverter.PROTOBUF)
+                .content(body.toByteArray()))
+                .andExpect(status().isCreated());
+        assertEquals(3, this.bookmarkRepository.findViewsByAccountUsername(this.userName).size());
+    }
+
+    @Test
+    public void lengthsLongerThanTheBodyAreRefused() throws Exception {
+        // a 100MB length prefix followed by a few bytes
+        byte[] body = {(byte) 0x80, (byte) 0xc2, (byte) 0xd7, 0x2f, 0x12, 0x01, 'x'};
+
+        this.mockMvc.perform(post("/" + this.userName + "/bookmarks")
+                .contentType(BookmarkProtobufHttpMessageConverter.PROTOBUF)
+                .content(body))
+                .andExpect(status().isBadRequest());
+        assertEquals(2, this.bookmarkRepository.findViewsByAccountUsername(this.userName).size());
+    }
+
+    @Test
+    public void truncatedBodiesAreRefused() throws Exception {
+        // long enough that the message's length takes two bytes
+        String uri = "http://spring.io/" + String.join("", Collections.nCopies(200, "x"));
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        BookmarkProtobufHttpMessageConverter.write(new Bookmark(null, uri, "Spring"), message);
+        byte[] body = Arrays.copyOf(message.toByteArray(), 1);
+
+        this.mockMvc.perform(post("/" + this.userName + "/bookmarks")
+                .contentType(BookmarkProtobufHttpMessageConverter.PROTOBUF)
+                .content(body))
+                .andExpect(status().isBadRequest());
+        assertEquals(2, this.bookmarkRepository.findViewsByAccountUsername(this.userName).size());
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+}
@@ -0,0 +1,79 @@
+package bookmarks;
+
+import org.junit.Test;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link BookmarkIndex} on its own, over a repository that only answers the
+ * rebuild's query.
+ */
+public class BookmarkIndexTest {
+
+    @Test
+    public void removingABookmarkDropsEveryTermItWasListedUnder() {
+        BookmarkIndex index = new BookmarkIndex(this.repository(Collections.emptyList(), null, null), 10000, false);
+        try {
+            index.add("jlong", 1L, "http://spring.io/blog", "Spring news");
+            // a second add of the same id, as when a rebuild races with an update
+            index.add("jlong", 1L, "http://spring.io/guides", "Spring news");
+            index.add("jlong", 2L, "http://spring.io/guides", "Getting started");
+
+            index.remove("jlong", 1L);
+            assertArrayEquals(new long[0], index.find("jlong", "blog", 10));
+            assertArrayEquals(new long[0], index.find("jlong", "news", 10));
+            assertArrayEquals(new long[]{2}, index.find("jlong", "guides", 10));
+        } finally {
+            index.destroy();
+        }
+    }
+
+    @Test
+    public void searchesKeepTheOldIndexUntilARebuildCompletes() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object[]> rows = Collections.singletonList(new Object[]{"jlong", 2L, "http://spring.io/guides", "Guides"});
+        BookmarkIndex index = new BookmarkIndex(this.repository(rows, reading, release), 10000, false);
+        try {
+            index.add("jlong", 1L, "http://spring.io/blog", "Spring news");
+
+            Thread rebuild = new Thread(index::rebuild);
+            rebuild.start();
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            assertArrayEquals(new long[]{1}, index.find("jlong", "blog", 10));
+            // committed while the rebuild is reading
+            index.add("jlong", 3L, "http://spring.io/guides/gs", "Getting started");
+            release.countDown();
+            rebuild.join(5000);
+
+            assertArrayEquals(new long[0], index.find("jlong", "blog", 10));
+            assertArrayEquals(new long[]{2, 3}, index.find("jlong", "guides", 10));
+        } finally {
+            release.countDown();
+            index.destroy();
+        }
+    }
+
+    // the first page of the rebuild waits on release, once reading has been counted down
+    private BookmarkRepository repository(List<Object[]> rows, CountDownLatch reading, CountDownLatch release) {
+        return (BookmarkRepository) Proxy.newProxyInstance(ClassUtils.getDefaultClassLoader(),
+                new Class<?>[]{BookmarkRepository.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("findIndexRowsAfter")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    if (reading != null) {
+                        reading.countDown();
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                    return (Long) args[0] == 0L ? rows : Collections.emptyList();
+                });
+    }
+}
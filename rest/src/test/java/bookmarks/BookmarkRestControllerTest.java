@@ -5,6 +5,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.HttpMessageConverter;
@@ -14,6 +15,11 @@ import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
@@ -22,10 +28,22 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -63,6 +81,24 @@ public class BookmarkRestControllerTest {
     @Autowired
     private AccountRepository accountRepository;
 
+    @Autowired
+    private AccountVersions accountVersions;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private BookmarkIndex bookmarkIndex;
+
+    @Autowired
+    private DatabaseExecutor databaseExecutor;
+
+    @Value("${bookmarks.async.threads:10}")
+    private int databaseThreads;
+
+    @Autowired
+    private AccountCache accountCache;
+
     @Autowired
     void setConverters(HttpMessageConverter<?>[] converters) {
 
@@ -87,15 +123,59 @@ public class BookmarkRestControllerTest {
 
     @Test
     public void userNotFound() throws Exception {
-        mockMvc.perform(post("/george/bookmarks/")
+        performAsync(post("/george/bookmarks/")
                 .content(this.json(new Bookmark()))
                 .contentType(contentType))
                 .andExpect(status().isNotFound());
     }
 
+    @Test
+    public void unknownUsersAreLookedUpOffTheRequestThread() throws Exception {
+        performAsync(get("/george/bookmarks").param("limit", "10"))
+                .andExpect(status().isNotFound());
+        performAsync(get("/george/bookmarks/search").param("q", "bookmark"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void saturatedExecutorTurnsRequestsAway() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        Callable<Boolean> blocked = () -> {
+            running.incrementAndGet();
+            return release.await(10, TimeUnit.SECONDS);
+        };
+        try {
+            // a task left over from another test could free a slot later, so first wait for every pool thread
+            while (running.get() < this.databaseThreads) {
+                try {
+                    this.databaseExecutor.submit(blocked);
+                } catch (DatabaseBusyException full) {
+                    Thread.sleep(1);
+                }
+            }
+            // then every queue slot waits on the latch too
+            while (true) {
+                try {
+                    this.databaseExecutor.submit(blocked);
+                } catch (DatabaseBusyException full) {
+                    break;
+                }
+            }
+            this.mockMvc.perform(get("/" + userName + "/bookmarks/search").param("q", "bookmark"))
+                    .andExpect(status().isServiceUnavailable());
+            this.mockMvc.perform(post("/" + userName + "/bookmarks/import")
+                    .contentType(MediaType.parseMediaType(BookmarkImporter.NDJSON_VALUE))
+                    .content(json(new Bookmark(this.account, "http://bookmark.com/3/" + userName, "A description"))))
+                    .andExpect(status().isServiceUnavailable());
+        } finally {
+            release.countDown();
+        }
+    }
+
     @Test
     public void readSingleBookmark() throws Exception {
-        mockMvc.perform(get("/" + userName + "/bookmarks/"
+        performAsync(get("/" + userName + "/bookmarks/"
                 + this.bookmarkList.get(0).getId()))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
@@ -106,7 +186,7 @@ public class BookmarkRestControllerTest {
 
     @Test
     public void readBookmarks() throws Exception {
-        mockMvc.perform(get("/" + userName + "/bookmarks"))
+        performAsync(get("/" + userName + "/bookmarks"))
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(contentType))
                 .andExpect(jsonPath("$", hasSize(2)))
@@ -118,16 +198,265 @@ public class BookmarkRestControllerTest {
                 .andExpect(jsonPath("$[1].description", is("A description")));
     }
 
+    @Test
+    public void readBookmarkPagesByKeyset() throws Exception {
+        Long first = this.bookmarkList.get(0).getId();
+        Long second = this.bookmarkList.get(1).getId();
+
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(first.intValue())))
+                .andExpect(header().string("Link", containsString("after=" + first + ">; rel=\"next\"")));
+
+        // a full page links on even when it is the last one, and the page after it is empty
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "1").param("after", first.toString()))
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(second.intValue())))
+                .andExpect(header().string("Link", containsString("after=" + second)));
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "1").param("after", second.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)))
+                .andExpect(header().doesNotExist("Link"));
+
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "2"))
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(header().string("Link", containsString("after=" + second)));
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "3"))
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(header().doesNotExist("Link"));
+
+        // limits below one still return a page
+        performAsync(get("/" + userName + "/bookmarks").param("limit", "0"))
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(first.intValue())));
+    }
+
+    @Test
+    public void streamBookmarks() throws Exception {
+        performAsync(get("/" + userName + "/bookmarks").param("stream", ""))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(contentType))
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].uri", is("http://bookmark.com/1/" + userName)))
+                .andExpect(jsonPath("$[1].uri", is("http://bookmark.com/2/" + userName)));
+    }
+
+    @Test
+    public void streamBookmarksAcrossPages() throws Exception {
+        int total = BookmarkScroller.DEFAULT_PAGE_SIZE + 1;
+        this.bookmarkRepository.save(IntStream.rangeClosed(3, total)
+                .mapToObj(i -> new Bookmark(this.account, "http://bookmark.com/" + i + "/" + userName, "A description"))
+                .collect(Collectors.toList()));
+
+        performAsync(get("/" + userName + "/bookmarks").param("stream", ""))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(total)))
+                .andExpect(jsonPath("$[" + (total - 1) + "].uri", is("http://bookmark.com/" + total + "/" + userName)));
+    }
+
     @Test
     public void createBookmark() throws Exception {
         String bookmarkJson = json(new Bookmark(
                 this.account, "http://spring.io", "a bookmark to the best resource for Spring news and information"));
-        this.mockMvc.perform(post("/" + userName + "/bookmarks")
+        performAsync(post("/" + userName + "/bookmarks")
                 .contentType(contentType)
                 .content(bookmarkJson))
                 .andExpect(status().isCreated());
     }
 
+    @Test
+    public void bookmarksWithoutAUriAreRefused() throws Exception {
+        for (String uri : new String[]{null, " "}) {
+            performAsync(post("/" + userName + "/bookmarks")
+                    .contentType(contentType)
+                    .content(json(new Bookmark(this.account, uri, "nowhere"))))
+                    .andExpect(status().isBadRequest());
+        }
+    }
+
+    @Test
+    public void importBookmarks() throws Exception {
+        String ndjson = json(new Bookmark(this.account, "http://bookmark.com/3/" + userName, "A description")) + "\n"
+                + json(new Bookmark(this.account, "http://bookmark.com/4/" + userName, "A description")) + "\n";
+        performAsync(post("/" + userName + "/bookmarks/import")
+                .contentType(MediaType.parseMediaType(BookmarkImporter.NDJSON_VALUE))
+                .content(ndjson))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.imported", is(2)));
+
+        performAsync(get("/" + userName + "/bookmarks"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(4)))
+                .andExpect(jsonPath("$[3].uri", is("http://bookmark.com/4/" + userName)));
+    }
+
+    @Test
+    public void importsWithAnInvalidRowAreRefusedWhole() throws Exception {
+        // more valid rows than one batch holds come before the invalid one
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 3; i < 63; i++) {
+            ndjson.append(json(new Bookmark(this.account, "http://bookmark.com/" + i + "/" + userName, "A description")))
+                    .append("\n");
+        }
+        String tooLong = String.join("", Collections.nCopies(Bookmark.MAX_DESCRIPTION_LENGTH + 1, "x"));
+        ndjson.append(json(new Bookmark(this.account, "http://bookmark.com/63/" + userName, tooLong))).append("\n");
+
+        performAsync(post("/" + userName + "/bookmarks/import")
+                .contentType(MediaType.parseMediaType(BookmarkImporter.NDJSON_VALUE))
+                .content(ndjson.toString()))
+                .andExpect(status().isBadRequest());
+        Assert.assertEquals(2, this.bookmarkRepository.findViewsByAccountUsername(userName).size());
+    }
+
+    @Test
+    public void notModifiedUntilBookmarksChange() throws Exception {
+        String etag = performAsync(get("/" + userName + "/bookmarks"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", notNullValue()))
+                .andReturn().getResponse().getHeader("ETag");
+
+        performAsync(get("/" + userName + "/bookmarks").header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag))
+                .andExpect(content().string(""));
+        performAsync(get("/" + userName + "/bookmarks/" + this.bookmarkList.get(0).getId())
+                .header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+
+        this.bookmarkRepository.save(new Bookmark(this.account, "http://bookmark.com/3/" + userName, "A description"));
+
+        performAsync(get("/" + userName + "/bookmarks").header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", not(etag)))
+                .andExpect(jsonPath("$", hasSize(3)));
+    }
+
+    @Test
+    public void etagsMoveWhenWritesCommit() throws Exception {
+        String etag = performAsync(get("/" + userName + "/bookmarks"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        new TransactionTemplate(this.transactionManager).execute(status -> {
+            this.bookmarkRepository.saveAndFlush(new Bookmark(this.account, "http://bookmark.com/3/" + userName, "A description"));
+            // flushed, not committed: the old tag still describes what other readers see
+            Assert.assertEquals(etag, this.accountVersions.etag(userName));
+            try {
+                performAsync(get("/" + userName + "/bookmarks").header("If-None-Match", etag))
+                        .andExpect(status().isNotModified());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        });
+
+        Assert.assertNotEquals(etag, this.accountVersions.etag(userName));
+        performAsync(get("/" + userName + "/bookmarks").header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(3)));
+    }
+
+    @Test
+    public void rolledBackWritesKeepTheEtag() throws Exception {
+        String etag = this.accountVersions.etag(userName);
+
+        new TransactionTemplate(this.transactionManager).execute(status -> {
+            this.bookmarkRepository.saveAndFlush(new Bookmark(this.account, "http://bookmark.com/3/" + userName, "A description"));
+            status.setRollbackOnly();
+            return null;
+        });
+
+        Assert.assertEquals(etag, this.accountVersions.etag(userName));
+        performAsync(get("/" + userName + "/bookmarks").header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void cachedAccountsAreDroppedOnlyOnceTheirChangeCommits() throws Exception {
+        Account other = this.accountRepository.save(new Account("pwebb", "password"));
+        Assert.assertTrue(this.accountCache.findByUsername("pwebb").isPresent());
+
+        new TransactionTemplate(this.transactionManager).execute(status -> {
+            this.accountRepository.delete(other.getId());
+            this.accountRepository.flush();
+            status.setRollbackOnly();
+            return null;
+        });
+        Assert.assertTrue(this.accountCache.findCached("pwebb").isPresent());
+
+        new TransactionTemplate(this.transactionManager).execute(status -> {
+            this.accountRepository.delete(other.getId());
+            this.accountRepository.flush();
+            // flushed, not committed: other readers still see the account
+            Assert.assertTrue(this.accountCache.findCached("pwebb").isPresent());
+            return null;
+        });
+        Assert.assertFalse(this.accountCache.findCached("pwebb").isPresent());
+        Assert.assertFalse(this.accountCache.findByUsername("pwebb").isPresent());
+    }
+
+    @Test
+    public void searchBookmarks() throws Exception {
+        performAsync(get("/" + userName + "/bookmarks/search").param("q", "bookmark.com/2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(this.bookmarkList.get(1).getId().intValue())))
+                .andExpect(jsonPath("$[0].uri", is("http://bookmark.com/2/" + userName)));
+
+        performAsync(get("/" + userName + "/bookmarks/search").param("q", "Description"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)));
+
+        performAsync(get("/" + userName + "/bookmarks/search").param("q", "description nothing"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)));
+    }
+
+    @Test
+    public void rolledBackWritesNeverReachTheIndex() throws Exception {
+        Long kept = this.bookmarkList.get(0).getId();
+        new TransactionTemplate(this.transactionManager).execute(status -> {
+            this.bookmarkRepository.saveAndFlush(new Bookmark(this.account, "http://phantom.example.com/" + userName, "A description"));
+            this.bookmarkRepository.delete(kept);
+            this.bookmarkRepository.flush();
+            status.setRollbackOnly();
+            return null;
+        });
+
+        Assert.assertEquals(0, this.bookmarkIndex.find(userName, "phantom", 10).length);
+        performAsync(get("/" + userName + "/bookmarks/search").param("q", "bookmark.com/1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(kept.intValue())));
+    }
+
+    @Test
+    public void latencyMetrics() throws Exception {
+        performAsync(get("/" + userName + "/bookmarks"))
+                .andExpect(status().isOk());
+        this.bookmarkRepository.save(Collections.singletonList(
+                new Bookmark(this.account, "http://bookmark.com/3/" + userName, "A description")));
+
+        mockMvc.perform(get("/latency"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.application", is("rest")))
+                .andExpect(jsonPath("$.timers['endpoint.BookmarkRestController.readBookmarks'].count", greaterThan(0)))
+                .andExpect(jsonPath("$.timers['repository.BookmarkRepository.findViewsByAccountUsername(String)'].count", greaterThan(0)))
+                .andExpect(jsonPath("$.timers['repository.BookmarkRepository.save(Bookmark)'].count", greaterThan(0)))
+                .andExpect(jsonPath("$.timers['repository.BookmarkRepository.save(Iterable)'].count", greaterThan(0)))
+                .andExpect(jsonPath("$.timers['accountCache.findByUsername(String)'].count", greaterThan(0)))
+                .andExpect(jsonPath("$.timers['converter.json.write'].count", greaterThan(0)))
+                .andExpect(jsonPath("$.gauges['databaseExecutor.queueDepth']", is(0)));
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+
     protected String json(Object o) throws IOException {
         MockHttpOutputMessage mockHttpOutputMessage = new MockHttpOutputMessage();
         this.mappingJackson2HttpMessageConverter.write(
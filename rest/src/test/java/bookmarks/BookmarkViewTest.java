@@ -0,0 +1,104 @@
+package bookmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The constructor queries behind {@link BookmarkView} must return what loading
+ * the {@link Bookmark} entities would.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+public class BookmarkViewTest {
+
+    private String userName = "ogierke";
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Before
+    public void setup() {
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+
+        Account account = this.accountRepository.save(new Account(this.userName, "password"));
+        Account other = this.accountRepository.save(new Account("mpollack", "password"));
+        this.bookmarkRepository.save(Arrays.asList(
+                new Bookmark(account, "http://bookmark.com/1/" + this.userName, "A description"),
+                new Bookmark(other, "http://bookmark.com/1/mpollack", "Someone else's"),
+                new Bookmark(account, "http://bookmark.com/2/" + this.userName, null),
+                new Bookmark(account, "http://bookmark.com/3/" + this.userName, "Caf\u00e9 \"quoted\" <b>"),
+                // shares its url row with the first bookmark
+                new Bookmark(account, "http://bookmark.com/1/" + this.userName, "Again")));
+    }
+
+    @Test
+    public void viewsMatchTheEntities() throws Exception {
+        List<Bookmark> entities = this.entities();
+        assertEquals(4, entities.size());
+
+        this.assertSameJson(entities, this.bookmarkRepository.findViewsByAccountUsername(this.userName));
+
+        List<Long> ids = entities.stream().map(Bookmark::getId).collect(Collectors.toList());
+        this.assertSameJson(entities, this.bookmarkRepository.findViewsByIdIn(ids));
+        for (Bookmark entity : entities) {
+            this.assertSameJson(entity, this.bookmarkRepository.findViewById(entity.getId()));
+        }
+    }
+
+    @Test
+    public void keysetPagesMatchTheEntities() throws Exception {
+        List<BookmarkView> paged = new ArrayList<>();
+        Long after = 0L;
+        List<BookmarkView> page;
+        do {
+            page = this.bookmarkRepository.findViewsByAccountUsernameAfter(this.userName, after, new PageRequest(0, 3));
+            paged.addAll(page);
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == 3);
+
+        this.assertSameJson(this.entities(), paged);
+    }
+
+    @Test
+    public void missingBookmarksAreNull() {
+        assertNull(this.bookmarkRepository.findViewById(-1L));
+    }
+
+    // loaded in a fresh persistence context, so every URI comes from its url row
+    private List<Bookmark> entities() {
+        return this.bookmarkRepository.findByAccountUsername(this.userName).stream()
+                .sorted(Comparator.comparing(Bookmark::getId))
+                .collect(Collectors.toList());
+    }
+
+    private void assertSameJson(Object entities, Object views) throws Exception {
+        assertEquals(this.objectMapper.readTree(this.objectMapper.writeValueAsString(entities)),
+                this.objectMapper.readTree(this.objectMapper.writeValueAsString(views)));
+    }
+}
@@ -0,0 +1,212 @@
+package bookmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.servlet.ServletOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+public class ChangeFeedTest {
+
+    private static final Pattern EVENT_ID = Pattern.compile("^id: (\\d+)$", Pattern.MULTILINE);
+
+    private String userName = "rwinch";
+
+    private MockMvc mockMvc;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private BookmarkChangeFeed bookmarkChangeFeed;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Before
+    public void setup() throws Exception {
+        this.mockMvc = webAppContextSetup(this.webApplicationContext).build();
+
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+
+        this.accountRepository.save(new Account(this.userName, "password"));
+        this.accountRepository.save(new Account("jhoeller", "password"));
+    }
+
+    @Test
+    public void newBookmarksArePushedToTheirAccountOnly() throws Exception {
+        MockHttpServletResponse stream = this.subscribe(null);
+        assertTrue(stream.getContentType().startsWith(BookmarkChangeFeed.EVENT_STREAM_VALUE));
+
+        this.add("jhoeller", "http://spring.io/other");
+        this.add(this.userName, "http://spring.io/mine");
+
+        String events = await(stream, "http://spring.io/mine");
+        assertTrue(events.startsWith("retry: "));
+        assertTrue(events.contains("event: created\ndata: {\"id\":"));
+        assertFalse(events.contains("http://spring.io/other"));
+    }
+
+    @Test
+    public void reconnectingResumesAfterTheLastEventId() throws Exception {
+        MockHttpServletResponse first = this.subscribe(null);
+        for (int i = 1; i <= 3; i++) {
+            this.add(this.userName, "http://spring.io/" + i);
+        }
+        List<String> ids = ids(await(first, "http://spring.io/3"));
+        assertEquals(3, ids.size());
+
+        String resumed = await(this.subscribe(ids.get(0)), "http://spring.io/3");
+        assertEquals(ids.subList(1, 3), ids(resumed));
+        assertFalse(resumed.contains("http://spring.io/1\""));
+    }
+
+    @Test
+    public void unknownLastEventIdsAskForAReset() throws Exception {
+        await(this.subscribe("-5"), "event: reset");
+        await(this.subscribe(Long.toString(Long.MAX_VALUE - 1)), "event: reset");
+        await(this.subscribe("not-a-number"), "event: reset");
+    }
+
+    @Test
+    public void idleStreamsGetHeartbeats() throws Exception {
+        MockHttpServletResponse stream = this.subscribe(null);
+        this.bookmarkChangeFeed.heartbeat();
+        await(stream, ": heartbeat");
+    }
+
+    @Test
+    public void unknownUsersAreRejected() throws Exception {
+        performAsync(get("/nobody/bookmarks/changes"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void stuckWritersLoseTheirStream() throws Exception {
+        BookmarkChangeFeed feed = new BookmarkChangeFeed(100, 3600, 30, 1, 1000, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setAsyncSupported(true);
+            feed.subscribe(this.userName, null, request, new StalledResponse(release));
+            assertEquals(1, feed.getSubscriberCount());
+
+            // the retry frame is being written by now, and stays stuck
+            long deadline = System.currentTimeMillis() + 5000;
+            while (request.isAsyncStarted()) {
+                assertTrue("the stream was never completed", System.currentTimeMillis() < deadline);
+                feed.checkWrites();
+                Thread.sleep(10);
+            }
+            assertEquals(0, feed.getSubscriberCount());
+        } finally {
+            release.countDown();
+            feed.destroy();
+        }
+    }
+
+    private MockHttpServletResponse subscribe(String lastEventId) throws Exception {
+        MvcResult result = this.mockMvc.perform(lastEventId == null
+                ? get("/" + this.userName + "/bookmarks/changes")
+                : get("/" + this.userName + "/bookmarks/changes").header("Last-Event-ID", lastEventId))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        // the account has been looked up, and the stream starts once dispatched back
+        return this.mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(request().asyncStarted())
+                .andReturn()
+                .getResponse();
+    }
+
+    private void add(String userName, String uri) throws Exception {
+        performAsync(post("/" + userName + "/bookmarks")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"uri\":\"" + uri + "\",\"description\":\"A description\"}"))
+                .andExpect(status().isCreated());
+    }
+
+    // events are written by the feed's own threads
+    private static String await(MockHttpServletResponse stream, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        String content = stream.getContentAsString();
+        while (!content.contains(expected)) {
+            assertTrue("no " + expected + " in " + content, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            content = stream.getContentAsString();
+        }
+        return content;
+    }
+
+    private static List<String> ids(String events) {
+        List<String> ids = new ArrayList<>();
+        Matcher matcher = EVENT_ID.matcher(events);
+        while (matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        return ids;
+    }
+
+    // a client that stopped reading: the writer blocks until the test lets go
+    private static class StalledResponse extends MockHttpServletResponse {
+
+        private final CountDownLatch release;
+
+        StalledResponse(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            try {
+                this.release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.getOutputStream();
+        }
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+}
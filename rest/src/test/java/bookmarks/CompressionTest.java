@@ -0,0 +1,187 @@
+package bookmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+public class CompressionTest {
+
+    private String userName = "mpollack";
+
+    private MockMvc mockMvc;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private CompressedBodyCache compressedBodyCache;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Before
+    public void setup() throws Exception {
+        this.mockMvc = webAppContextSetup(this.webApplicationContext).build();
+
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+
+        Account account = this.accountRepository.save(new Account(this.userName, "password"));
+        this.bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/1/" + this.userName, "A description"));
+        this.bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/2/" + this.userName, "A description"));
+    }
+
+    @Test
+    public void gzipBodyMatchesThePlainOne() throws Exception {
+        MockHttpServletResponse plain = performAsync(get("/" + this.userName + "/bookmarks"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse();
+        assertNull(plain.getHeader("Content-Encoding"));
+        assertEquals("Accept, Accept-Encoding", plain.getHeader("Vary"));
+
+        MockHttpServletResponse gzipped = performAsync(get("/" + this.userName + "/bookmarks")
+                .header("Accept-Encoding", "gzip, deflate"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "gzip"))
+                .andExpect(header().string("ETag", AccountVersions.withCoding(plain.getHeader("ETag"), "gzip")))
+                .andExpect(header().string("Vary", "Accept, Accept-Encoding"))
+                .andExpect(content().contentType(plain.getContentType()))
+                .andReturn().getResponse();
+
+        assertEquals(plain.getContentAsString(),
+                decode(new GZIPInputStream(new ByteArrayInputStream(gzipped.getContentAsByteArray()))));
+    }
+
+    @Test
+    public void eachCodingIsRevalidatedWithItsOwnTag() throws Exception {
+        String etag = performAsync(get("/" + this.userName + "/bookmarks").header("Accept-Encoding", "gzip"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+
+        performAsync(get("/" + this.userName + "/bookmarks")
+                .header("Accept-Encoding", "gzip")
+                .header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag))
+                .andExpect(header().string("Vary", "Accept, Accept-Encoding"));
+    }
+
+    @Test
+    public void codedTagsMatchOnlyTheirOwnVersion() throws Exception {
+        assertEquals("\"a-1-gzip\"", AccountVersions.withCoding("\"a-1\"", "gzip"));
+        assertTrue(AccountVersions.matches("\"a-1-gzip\"", "\"a-1\""));
+        assertTrue(AccountVersions.matches("\"a-1-deflate\", \"a-0\"", "\"a-1\""));
+        assertFalse(AccountVersions.matches("\"a-12\"", "\"a-1\""));
+        assertFalse(AccountVersions.matches("\"a-0-gzip\"", "\"a-1\""));
+    }
+
+    @Test
+    public void deflateWhenGzipIsNotAccepted() throws Exception {
+        MockHttpServletResponse deflated = performAsync(get("/" + this.userName + "/bookmarks")
+                .header("Accept-Encoding", "gzip;q=0, deflate"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "deflate"))
+                .andReturn().getResponse();
+
+        String body = decode(new InflaterInputStream(new ByteArrayInputStream(deflated.getContentAsByteArray())));
+        assertEquals(2, this.count(body));
+    }
+
+    @Test
+    public void unchangedListsAreServedFromTheCache() throws Exception {
+        long hits = this.compressedBodyCache.getHits();
+        byte[] first = this.readGzipped();
+        byte[] second = this.readGzipped();
+        assertArrayEquals(first, second);
+        assertEquals(hits + 1, this.compressedBodyCache.getHits());
+
+        performAsync(post("/" + this.userName + "/bookmarks")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"uri\":\"http://spring.io\",\"description\":\"Spring\"}"))
+                .andExpect(status().isCreated());
+
+        byte[] third = this.readGzipped();
+        assertEquals(3, this.count(decode(new GZIPInputStream(new ByteArrayInputStream(third)))));
+    }
+
+    @Test
+    public void otherFormatsAreNotPrecompressed() throws Exception {
+        performAsync(get("/" + this.userName + "/bookmarks")
+                .accept(BookmarkProtobufHttpMessageConverter.PROTOBUF)
+                .header("Accept-Encoding", "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(BookmarkProtobufHttpMessageConverter.PROTOBUF))
+                .andExpect(header().doesNotExist("Content-Encoding"));
+    }
+
+    @Test
+    public void acceptEncodingNegotiation() throws Exception {
+        assertEquals("gzip", CompressedBodyCache.preferredEncoding("deflate, gzip"));
+        assertEquals("gzip", CompressedBodyCache.preferredEncoding("*"));
+        assertEquals("deflate", CompressedBodyCache.preferredEncoding("gzip;q=0.5, deflate"));
+        assertEquals("deflate", CompressedBodyCache.preferredEncoding("gzip;q=0, *"));
+        assertNull(CompressedBodyCache.preferredEncoding("identity"));
+        assertNull(CompressedBodyCache.preferredEncoding("br, *;q=0"));
+        assertNull(CompressedBodyCache.preferredEncoding(null));
+    }
+
+    private byte[] readGzipped() throws Exception {
+        return performAsync(get("/" + this.userName + "/bookmarks").header("Accept-Encoding", "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "gzip"))
+                .andReturn().getResponse().getContentAsByteArray();
+    }
+
+    private int count(String json) {
+        return json.split("\"uri\"").length - 1;
+    }
+
+    private static String decode(InputStream in) throws Exception {
+        try (InputStream body = in) {
+            return StreamUtils.copyToString(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+}
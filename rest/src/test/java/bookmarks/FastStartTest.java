@@ -0,0 +1,69 @@
+package bookmarks;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.context.WebApplicationContext;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@ActiveProfiles("fast-start")
+public class FastStartTest {
+
+    @Autowired
+    private ConfigurableApplicationContext context;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private BookmarkIndex bookmarkIndex;
+
+    @Test
+    public void beansAreCreatedOnFirstUseWhereSafe() throws Exception {
+        assertTrue(this.context.getBeanFactory().getBeanDefinition("bookmarkRestController").isLazyInit());
+        assertTrue(this.context.getBeanFactory().getBeanDefinition("databaseExecutor").isLazyInit());
+        // refreshed-event listeners have to exist before the event
+        assertFalse(this.context.getBeanFactory().getBeanDefinition("bookmarkIndex").isLazyInit());
+    }
+
+    @Test
+    public void demoAccountsAreNotSeeded() throws Exception {
+        assertFalse(this.accountRepository.findByUsername("jhoeller").isPresent());
+    }
+
+    @Test
+    public void searchWaitsForTheBackgroundIndex() throws Exception {
+        Account account = this.accountRepository.save(new Account("fast", "password"));
+        this.bookmarkRepository.save(new Bookmark(account, "http://spring.io/guides", "Getting started"));
+        assertEquals(1, this.bookmarkIndex.search("fast", "guides", 10).size());
+    }
+
+    @Test
+    public void startupPhasesAreReported() throws Exception {
+        webAppContextSetup((WebApplicationContext) this.context).build()
+                .perform(get("/latency"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.gauges['startup.refreshMillis']", greaterThanOrEqualTo(0)))
+                .andExpect(jsonPath("$.gauges['startup.runnersMillis']", greaterThanOrEqualTo(0)))
+                .andExpect(jsonPath("$.gauges['startup.totalMillis']", greaterThanOrEqualTo(0)));
+    }
+}
@@ -0,0 +1,217 @@
+package bookmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.sql.Timestamp;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link LinkChecker} rounds by hand against a stub HTTP server on
+ * localhost.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@ActiveProfiles("link-checker")
+public class LinkCheckerTest {
+
+    private HttpServer server;
+
+    private ExecutorService serverThreads;
+
+    private String base;
+
+    private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    private JdbcTemplate jdbcTemplate;
+
+    private Account account;
+
+    @Autowired
+    private LinkChecker linkChecker;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Before
+    public void setup() throws Exception {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/ok", exchange -> this.respond(exchange, 200));
+        this.server.createContext("/gone", exchange -> this.respond(exchange, 404));
+        this.server.createContext("/no-head", exchange ->
+                this.respond(exchange, "HEAD".equals(exchange.getRequestMethod()) ? 405 : 206));
+        this.server.createContext("/moved", exchange -> {
+            exchange.getResponseHeaders().set("Location", this.base + "/landing");
+            this.respond(exchange, 302);
+        });
+        this.server.createContext("/landing", exchange -> this.respond(exchange, 200));
+        // the headers come at once, then a body that never ends
+        this.server.createContext("/endless", exchange -> {
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                this.respond(exchange, 405);
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            byte[] chunk = new byte[1024];
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    exchange.getResponseBody().write(chunk);
+                    exchange.getResponseBody().flush();
+                    Thread.sleep(10);
+                }
+            } catch (IOException | InterruptedException e) {
+                // the checker hung up
+            } finally {
+                exchange.close();
+            }
+        });
+        // no headers until well after the round has given up
+        this.server.createContext("/stalled", exchange -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                // the server is stopping
+            }
+            this.respond(exchange, 200);
+        });
+        this.serverThreads = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.serverThreads);
+        this.server.start();
+        this.base = "http://127.0.0.1:" + this.server.getAddress().getPort();
+
+        this.jdbcTemplate = new JdbcTemplate(this.dataSource);
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+        this.jdbcTemplate.update("delete from link_status");
+        this.jdbcTemplate.update("delete from url");
+
+        this.account = this.accountRepository.save(new Account("jlong", "password"));
+    }
+
+    @After
+    public void stop() {
+        this.server.stop(0);
+        this.serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void checksEachUriOnceAndRechecksOnlyStaleOnes() throws Exception {
+        Account other = this.accountRepository.save(new Account("pwebb", "password"));
+        this.bookmark(other, this.base + "/ok");
+        for (String uri : new String[]{this.base + "/ok", this.base + "/gone", this.base + "/no-head",
+                this.base + "/moved", "http://127.0.0.1:1/", "mailto:josh@example.com"}) {
+            this.bookmark(this.account, uri);
+        }
+
+        assertEquals(6, this.linkChecker.checkStale());
+        assertEquals(200, this.status(this.base + "/ok"));
+        assertEquals(404, this.status(this.base + "/gone"));
+        assertEquals(206, this.status(this.base + "/no-head"));
+        assertEquals(200, this.status(this.base + "/moved"));
+        assertEquals(LinkStatus.UNREACHABLE, this.status("http://127.0.0.1:1/"));
+        assertEquals(LinkStatus.UNREACHABLE, this.status("mailto:josh@example.com"));
+        assertEquals(1, this.requests("HEAD /ok"));
+        assertEquals(1, this.requests("GET /no-head"));
+        assertEquals(1, this.requests("HEAD /landing"));
+
+        assertEquals(0, this.linkChecker.checkStale());
+
+        this.jdbcTemplate.update("update link_status set checked_at = ? where url_id = (select id from url where uri = ?)",
+                new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)), this.base + "/gone");
+        assertEquals(1, this.linkChecker.checkStale());
+        assertEquals(2, this.requests("HEAD /gone"));
+        assertEquals(1, this.requests("HEAD /ok"));
+    }
+
+    @Test
+    public void requestsToOneHostAreSpacedOut() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            this.bookmark(this.account, this.base + "/ok?page=" + i);
+        }
+
+        long start = System.nanoTime();
+        assertEquals(6, this.linkChecker.checkStale());
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // 20 per second with no burst: the sixth request waits five intervals of 50 ms
+        assertTrue("took " + millis + " ms", millis >= 250);
+        assertEquals(6, this.requests("HEAD /ok"));
+        assertTrue(this.linkChecker.getChecksPerSecond() > 0);
+    }
+
+    @Test
+    public void statusIsTakenBeforeTheBodyEnds() throws Exception {
+        this.bookmark(this.account, this.base + "/endless");
+
+        long start = System.nanoTime();
+        assertEquals(1, this.linkChecker.checkStale());
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(200, this.status(this.base + "/endless"));
+        assertTrue("took " + millis + " ms", millis < 1000);
+    }
+
+    @Test
+    public void roundsGiveUpOnStalledServers() throws Exception {
+        this.bookmark(this.account, this.base + "/stalled");
+        this.bookmark(this.account, this.base + "/ok");
+
+        long start = System.nanoTime();
+        assertEquals(2, this.linkChecker.checkStale());
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(LinkStatus.UNREACHABLE, this.status(this.base + "/stalled"));
+        assertEquals(200, this.status(this.base + "/ok"));
+        // the round timeout, not the two second socket timeout
+        assertTrue("took " + millis + " ms", millis >= 1000 && millis < 2000);
+    }
+
+    private void bookmark(Account account, String uri) {
+        this.bookmarkRepository.save(new Bookmark(account, uri, "A description"));
+    }
+
+    private int status(String uri) {
+        return this.jdbcTemplate.queryForObject(
+                "select s.status from link_status s join url u on u.id = s.url_id where u.uri = ?", Integer.class, uri);
+    }
+
+    private int requests(String key) {
+        AtomicInteger count = this.requests.get(key);
+        return count == null ? 0 : count.get();
+    }
+
+    private void respond(HttpExchange exchange, int status) throws IOException {
+        this.requests.computeIfAbsent(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath(),
+                key -> new AtomicInteger()).incrementAndGet();
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,268 @@
+package bookmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessorAdapter;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.util.ClassUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs every query method of {@link AccountRepository} and
+ * {@link BookmarkRepository} against a few thousand accounts, captures the
+ * statements they send and fails if H2's {@code EXPLAIN} shows a table scan
+ * for any of them. New query methods have to be added to {@link #queries()}.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = {Application.class, QueryPlanTest.StatementCaptureConfiguration.class})
+@WebAppConfiguration
+@ActiveProfiles("explain")
+public class QueryPlanTest {
+
+    private static final int ACCOUNTS = 2000;
+
+    private static final int BOOKMARKS_PER_ACCOUNT = 20;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private SyntheticDataGenerator syntheticDataGenerator;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private String username;
+
+    private List<Long> ids;
+
+    @Before
+    public void setup() throws Exception {
+        if (this.accountRepository.count() < ACCOUNTS) {
+            this.syntheticDataGenerator.generate(ACCOUNTS, BOOKMARKS_PER_ACCOUNT);
+            // selectivity statistics, as a long-running database would have them
+            new JdbcTemplate(this.dataSource).execute("analyze");
+        }
+        Account account = this.accountRepository.findAll(new PageRequest(ACCOUNTS / 2, 1)).getContent().get(0);
+        this.username = account.getUsername();
+        this.ids = this.bookmarkRepository.findViewsByAccountUsername(this.username).stream()
+                .map(BookmarkView::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void everyQueryMethodIsCovered() throws Exception {
+        TreeSet<String> declared = new TreeSet<>();
+        for (Class<?> repository : Arrays.asList(AccountRepository.class, BookmarkRepository.class)) {
+            for (Method method : repository.getDeclaredMethods()) {
+                // redeclared CRUD methods, such as save, are not queries
+                if (!this.isCrudMethod(method)) {
+                    declared.add(repository.getSimpleName() + "." + method.getName());
+                }
+            }
+        }
+        assertEquals(declared, new TreeSet<>(this.queries().keySet()));
+    }
+
+    @Test
+    public void everyQueryUsesAnIndex() throws Exception {
+        List<String> scans = new ArrayList<>();
+        for (Map.Entry<String, Runnable> query : this.queries().entrySet()) {
+            List<Statement> statements = StatementCapture.during(query.getValue());
+            assertFalse(query.getKey() + " sent no statements", statements.isEmpty());
+            for (Statement statement : statements) {
+                String plan = this.explain(statement);
+                if (plan.contains(".tableScan")) {
+                    scans.add(query.getKey() + ":\n" + plan);
+                }
+            }
+        }
+        assertEquals(String.join("\n\n", scans), 0, scans.size());
+    }
+
+    private boolean isCrudMethod(Method method) {
+        return Arrays.stream(JpaRepository.class.getMethods()).anyMatch(crud -> crud.getName().equals(method.getName()));
+    }
+
+    private Map<String, Runnable> queries() {
+        Long middle = this.ids.get(this.ids.size() / 2);
+        Map<String, Runnable> queries = new LinkedHashMap<>();
+        queries.put("AccountRepository.findByUsername",
+                () -> this.accountRepository.findByUsername(this.username));
+        queries.put("BookmarkRepository.findByAccountUsername",
+                () -> this.bookmarkRepository.findByAccountUsername(this.username));
+        queries.put("BookmarkRepository.findViewsByAccountUsername",
+                () -> this.bookmarkRepository.findViewsByAccountUsername(this.username));
+        queries.put("BookmarkRepository.findViewsByAccountUsernameAfter",
+                () -> this.bookmarkRepository.findViewsByAccountUsernameAfter(this.username, middle, new PageRequest(0, 5)));
+        queries.put("BookmarkRepository.findViewById",
+                () -> this.bookmarkRepository.findViewById(middle));
+        queries.put("BookmarkRepository.findViewsByIdIn",
+                () -> this.bookmarkRepository.findViewsByIdIn(this.ids));
+        queries.put("BookmarkRepository.findIndexRowsAfter",
+                () -> this.bookmarkRepository.findIndexRowsAfter(middle, new PageRequest(0, 100)));
+        return queries;
+    }
+
+    private String explain(Statement statement) {
+        return new JdbcTemplate(this.dataSource).execute((ConnectionCallback<String>) connection -> {
+            try (PreparedStatement explain = connection.prepareStatement("explain " + statement.sql)) {
+                for (Map.Entry<Integer, Object> parameter : statement.parameters.entrySet()) {
+                    explain.setObject(parameter.getKey(), parameter.getValue());
+                }
+                try (ResultSet plan = explain.executeQuery()) {
+                    plan.next();
+                    return plan.getString(1);
+                }
+            }
+        });
+    }
+
+    static class Statement {
+
+        final String sql;
+
+        final Map<Integer, Object> parameters;
+
+        Statement(String sql, Map<Integer, Object> parameters) {
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * Wraps the {@link DataSource} so that the prepared statements run by the
+     * current thread, with their parameters, can be recorded.
+     */
+    static class StatementCapture {
+
+        private static final ThreadLocal<Consumer<Statement>> recorder = new ThreadLocal<>();
+
+        static List<Statement> during(Runnable runnable) {
+            List<Statement> statements = new ArrayList<>();
+            recorder.set(statements::add);
+            try {
+                runnable.run();
+            } finally {
+                recorder.remove();
+            }
+            return statements;
+        }
+
+        static DataSource wrap(DataSource dataSource) {
+            return proxy(DataSource.class, dataSource, (method, args, result) ->
+                    method.getName().equals("getConnection") ? connection((Connection) result) : result);
+        }
+
+        private static Connection connection(Connection connection) {
+            return proxy(Connection.class, connection, (method, args, result) ->
+                    method.getName().equals("prepareStatement")
+                            ? statement((PreparedStatement) result, (String) args[0]) : result);
+        }
+
+        private static PreparedStatement statement(PreparedStatement statement, String sql) {
+            Map<Integer, Object> parameters = new TreeMap<>();
+            return proxy(PreparedStatement.class, statement, (method, args, result) -> {
+                if (method.getName().startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                    parameters.put((Integer) args[0], method.getName().equals("setNull") ? null : args[1]);
+                } else if (method.getName().equals("clearParameters")) {
+                    parameters.clear();
+                } else if (method.getName().startsWith("execute") && recorder.get() != null) {
+                    recorder.get().accept(new Statement(sql, new TreeMap<>(parameters)));
+                }
+                return result;
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, T target, Interception interception) {
+            InvocationHandler handler = (proxy, method, args) -> {
+                try {
+                    return interception.after(method, args, method.invoke(target, args));
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            };
+            return (T) Proxy.newProxyInstance(ClassUtils.getDefaultClassLoader(), new Class<?>[]{type}, handler);
+        }
+
+        interface Interception {
+            Object after(Method method, Object[] args, Object result);
+        }
+    }
+
+    @Configuration
+    @Profile("explain")
+    static class StatementCaptureConfiguration {
+
+        @Bean
+        static StatementCapturePostProcessor statementCapturePostProcessor() {
+            return new StatementCapturePostProcessor();
+        }
+    }
+
+    /**
+     * Wraps the {@link DataSource} bean where it is first handed out. Boot's
+     * {@code dataSourceInitializer} asks for it while it is still being
+     * created, so the wrapper goes out as the early reference and the bean
+     * itself is left alone once it is initialized.
+     */
+    static class StatementCapturePostProcessor extends InstantiationAwareBeanPostProcessorAdapter {
+
+        private final Set<String> earlyReferences = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        @Override
+        public Object getEarlyBeanReference(Object bean, String beanName) throws BeansException {
+            this.earlyReferences.add(beanName);
+            return this.wrap(bean);
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+            return this.earlyReferences.remove(beanName) ? bean : this.wrap(bean);
+        }
+
+        private Object wrap(Object bean) {
+            return bean instanceof DataSource && !Proxy.isProxyClass(bean.getClass())
+                    ? StatementCapture.wrap((DataSource) bean) : bean;
+        }
+    }
+}
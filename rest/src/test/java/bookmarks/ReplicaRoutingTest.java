@@ -0,0 +1,91 @@
+package bookmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs against two embedded H2 databases. Replication is simulated by
+ * copying the primary onto the replica with H2's {@code SCRIPT}, so anything
+ * written afterwards exists only on the primary.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@ActiveProfiles("replicas")
+public class ReplicaRoutingTest {
+
+    private String userName = "bdussault";
+
+    private Account account;
+
+    private JdbcTemplate replica;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private ReplicaRoutingDataSource replicaRoutingDataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Before
+    public void setup() throws Exception {
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+
+        this.account = accountRepository.save(new Account(userName, "password"));
+        bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/1/" + userName, "A description"));
+        bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/2/" + userName, "A description"));
+
+        File script = File.createTempFile("primary", ".sql");
+        script.deleteOnExit();
+        new JdbcTemplate(this.replicaRoutingDataSource.getPrimary()).execute("script to '" + script.getAbsolutePath() + "'");
+        this.replica = new JdbcTemplate(this.replicaRoutingDataSource.getReplicas().get(0));
+        this.replica.execute("drop all objects");
+        this.replica.execute("runscript from '" + script.getAbsolutePath() + "'");
+        this.replica.execute("create table replica_lag (lag_millis bigint)");
+        this.replica.update("insert into replica_lag values (0)");
+        this.replicaRoutingDataSource.checkReplicas();
+
+        bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/3/" + userName, "A description"));
+    }
+
+    @Test
+    public void readOnlyTransactionsGoToTheReplica() throws Exception {
+        assertEquals(1, this.replicaRoutingDataSource.getReplicasInRotation());
+        assertEquals(2, this.bookmarkRepository.findByAccountUsername(userName).size());
+    }
+
+    @Test
+    public void readWriteTransactionsGoToThePrimary() throws Exception {
+        int bookmarks = new TransactionTemplate(this.transactionManager).execute(
+                status -> this.bookmarkRepository.findByAccountUsername(userName).size());
+        assertEquals(3, bookmarks);
+    }
+
+    @Test
+    public void laggingReplicaFallsBackToThePrimary() throws Exception {
+        this.replica.update("update replica_lag set lag_millis = ?", 60000);
+        this.replicaRoutingDataSource.checkReplicas();
+
+        assertEquals(0, this.replicaRoutingDataSource.getReplicasInRotation());
+        assertEquals(3, this.bookmarkRepository.findByAccountUsername(userName).size());
+    }
+}
@@ -0,0 +1,87 @@
+package bookmarks;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import javax.persistence.EntityManagerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@ActiveProfiles("l2cache")
+public class SecondLevelCacheTest {
+
+    private String userName = "bdussault";
+
+    private Account account;
+
+    private Bookmark bookmark;
+
+    private Statistics statistics;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Before
+    public void setup() throws Exception {
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+
+        this.account = accountRepository.save(new Account(userName, "password"));
+        this.bookmark = bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/1/" + userName, "A description"));
+        bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/2/" + userName, "A description"));
+
+        this.statistics = this.entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        this.statistics.setStatisticsEnabled(true);
+        this.statistics.clear();
+    }
+
+    @Test
+    public void findOneIsServedFromTheEntityCache() throws Exception {
+        this.bookmarkRepository.findOne(this.bookmark.getId());
+        this.bookmarkRepository.findOne(this.bookmark.getId());
+
+        assertTrue(this.statistics.getSecondLevelCacheHitCount() > 0);
+        assertEquals(0, this.statistics.getEntityLoadCount());
+    }
+
+    @Test
+    public void saveInvalidatesCachedQueries() throws Exception {
+        assertEquals(2, this.bookmarkRepository.findByAccountUsername(userName).size());
+        assertEquals(2, this.bookmarkRepository.findByAccountUsername(userName).size());
+        assertEquals(1, this.statistics.getQueryCacheHitCount());
+
+        this.bookmarkRepository.save(new Bookmark(this.account, "http://bookmark.com/3/" + userName, "A description"));
+
+        assertEquals(3, this.bookmarkRepository.findByAccountUsername(userName).size());
+        assertEquals(1, this.statistics.getQueryCacheHitCount());
+        assertEquals(2, this.statistics.getQueryCacheMissCount());
+    }
+
+    @Test
+    public void saveEvictsCachedBookmark() throws Exception {
+        this.bookmarkRepository.findOne(this.bookmark.getId());
+
+        this.bookmark.description = "An updated description";
+        this.bookmarkRepository.save(this.bookmark);
+
+        assertEquals("An updated description", this.bookmarkRepository.findOne(this.bookmark.getId()).description);
+    }
+}
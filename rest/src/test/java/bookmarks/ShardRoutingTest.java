@@ -0,0 +1,197 @@
+package bookmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+/**
+ * Runs against three H2 database files under {@code target/shards}.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@ActiveProfiles("shards")
+public class ShardRoutingTest {
+
+    private List<String> userNames = Arrays.asList(
+            "jhoeller", "dsyer", "pwebb", "ogierke", "rwinch", "mfisher", "jlong", "bclozel");
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private ShardRoutingDataSource shards;
+
+    @Autowired
+    private ShardRebalancer shardRebalancer;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Before
+    public void setup() throws Exception {
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+    }
+
+    @Test
+    public void schemaCopyIsRefusedOutsideEmbeddedCreateDrop() {
+        ShardConfiguration configuration = new ShardConfiguration();
+        configuration.copySchema = true;
+        configuration.shardUrls = new String[]{"jdbc:h2:mem:shard0", "jdbc:h2:tcp://db/shard1"};
+        configuration.ddlAuto = "create-drop";
+        assertRefused(configuration);
+
+        configuration.shardUrls = new String[]{"jdbc:h2:mem:shard0", "jdbc:h2:mem:shard1"};
+        configuration.ddlAuto = "validate";
+        assertRefused(configuration);
+    }
+
+    @Test
+    public void accountsAndTheirBookmarksLiveOnOneShard() throws Exception {
+        this.userNames.forEach(this::createAccount);
+
+        Set<Integer> used = new HashSet<>();
+        for (String userName : this.userNames) {
+            used.add(this.shards.shardOf(userName));
+            this.assertOnlyOnItsShard(userName, 2);
+            assertEquals(2, this.bookmarkRepository.findViewsByAccountUsername(userName).size());
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    public void lookupsWithoutAnAccountAreGatheredFromEveryShard() throws Exception {
+        this.userNames.forEach(this::createAccount);
+
+        List<Long> ids = new ArrayList<>();
+        for (String userName : this.userNames) {
+            this.bookmarkRepository.findByAccountUsername(userName).forEach(b -> ids.add(b.getId()));
+        }
+        ids.sort(Long::compare);
+        assertEquals(ids.size(), new HashSet<>(ids).size());
+        assertEquals(ids.size(), this.bookmarkRepository.count());
+        assertEquals(this.userNames.size(), this.accountRepository.findAll().size());
+
+        for (Long id : ids) {
+            assertNotNull(this.bookmarkRepository.findViewById(id));
+        }
+        List<BookmarkView> views = this.bookmarkRepository.findViewsByIdIn(ids);
+        assertEquals(ids.size(), views.size());
+        for (int i = 0; i < views.size(); i++) {
+            assertEquals(ids.get(i), views.get(i).getId());
+        }
+
+        List<Object[]> page = this.bookmarkRepository.findIndexRowsAfter(ids.get(0), new PageRequest(0, 5));
+        assertEquals(5, page.size());
+        for (int i = 0; i < page.size(); i++) {
+            assertEquals(ids.get(i + 1), page.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void endpointsWriteToTheAccountsShard() throws Exception {
+        this.userNames.forEach(this::createAccount);
+        MockMvc mockMvc = webAppContextSetup(this.webApplicationContext).build();
+
+        for (String userName : this.userNames) {
+            performAsync(mockMvc, post("/" + userName + "/bookmarks")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content("{\"uri\":\"http://spring.io\",\"description\":\"Spring\"}"))
+                    .andExpect(status().isCreated());
+            performAsync(mockMvc, get("/" + userName + "/bookmarks"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$", hasSize(3)));
+            this.assertOnlyOnItsShard(userName, 3);
+        }
+    }
+
+    @Test
+    public void rebalanceMovesOnlyAccountsWhoseShardChanged() throws Exception {
+        // lay the accounts out as two shards would have, then grow to three
+        ShardRoutingDataSource twoShards = new ShardRoutingDataSource(this.shards.getShards().subList(0, 2));
+        int changed = 0;
+        for (String userName : this.userNames) {
+            int before = twoShards.shardOf(userName);
+            ShardContext.call(before, () -> this.createAccount(userName));
+            if (before != this.shards.shardOf(userName)) {
+                changed++;
+            }
+        }
+        assertTrue(changed > 0 && changed < this.userNames.size());
+
+        assertEquals(changed, this.shardRebalancer.rebalance());
+        assertEquals(0, this.shardRebalancer.rebalance());
+        for (String userName : this.userNames) {
+            this.assertOnlyOnItsShard(userName, 2);
+            assertEquals(2, this.bookmarkRepository.findViewsByAccountUsername(userName).size());
+        }
+    }
+
+    private Account createAccount(String userName) {
+        Account account = this.accountRepository.save(new Account(userName, "password"));
+        this.bookmarkRepository.save(Arrays.asList(
+                new Bookmark(account, "http://bookmark.com/1/" + userName, "A description"),
+                new Bookmark(account, "http://bookmark.com/2/" + userName, "A description")));
+        return account;
+    }
+
+    private void assertOnlyOnItsShard(String userName, int bookmarks) {
+        int shard = this.shards.shardOf(userName);
+        for (int i = 0; i < this.shards.getShardCount(); i++) {
+            Integer count = new JdbcTemplate(this.shards.getShards().get(i)).queryForObject(
+                    "select count(*) from bookmark b join account a on b.account_id = a.id where a.username = ?",
+                    Integer.class, userName);
+            assertEquals(userName + " on shard " + i, i == shard ? bookmarks : 0, count.intValue());
+        }
+    }
+
+    private static void assertRefused(ShardConfiguration configuration) {
+        try {
+            configuration.shardInitializer(null, null, null);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private ResultActions performAsync(MockMvc mockMvc, RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        return mockMvc.perform(asyncDispatch(result));
+    }
+}
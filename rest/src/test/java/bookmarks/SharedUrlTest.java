@@ -0,0 +1,144 @@
+package bookmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+public class SharedUrlTest {
+
+    private static final String SHARED = "http://spring.io/guides";
+
+    private MockMvc mockMvc;
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Before
+    public void setup() throws Exception {
+        this.mockMvc = webAppContextSetup(this.webApplicationContext).build();
+        this.jdbcTemplate = new JdbcTemplate(this.dataSource);
+
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+    }
+
+    @Test
+    public void accountsShareOneRowPerUri() throws Exception {
+        for (String userName : Arrays.asList("jlong", "pwebb")) {
+            Account account = this.accountRepository.save(new Account(userName, "password"));
+            this.bookmarkRepository.save(new Bookmark(account, SHARED, "Guides for " + userName));
+        }
+
+        assertEquals(Integer.valueOf(1), this.jdbcTemplate.queryForObject(
+                "select count(*) from url where uri = ?", Integer.class, SHARED));
+
+        for (String userName : Arrays.asList("jlong", "pwebb")) {
+            performAsync(get("/" + userName + "/bookmarks"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$[0].uri", is(SHARED)))
+                    .andExpect(jsonPath("$[0].description", is("Guides for " + userName)));
+        }
+    }
+
+    @Test
+    public void loadedUrisAreInterned() {
+        Account first = this.accountRepository.save(new Account("jlong", "password"));
+        Account second = this.accountRepository.save(new Account("pwebb", "password"));
+        Long one = this.bookmarkRepository.save(new Bookmark(first, SHARED, "one")).getId();
+        Long two = this.bookmarkRepository.save(new Bookmark(second, SHARED, "two")).getId();
+
+        assertSame(this.bookmarkRepository.findViewById(one).getUri(),
+                this.bookmarkRepository.findViewById(two).getUri());
+    }
+
+    @Test
+    public void hashClashTakesTheNextId() throws Exception {
+        String uri = "http://example.com/clash/" + System.nanoTime();
+        long hash = Urls.hash(uri);
+        this.jdbcTemplate.update("insert into url (id, uri) values (?, ?)", hash, uri + "/taken");
+
+        try (Connection connection = this.dataSource.getConnection()) {
+            Map<String, Long> ids = Urls.store(connection, Collections.singleton(uri));
+            assertEquals(Long.valueOf(hash + 1), ids.get(uri));
+            assertEquals(ids, Urls.store(connection, Arrays.asList(uri, uri)));
+        }
+
+        Account account = this.accountRepository.save(new Account("jlong", "password"));
+        Long id = this.bookmarkRepository.save(new Bookmark(account, uri, "clash")).getId();
+        assertEquals(uri, this.bookmarkRepository.findViewById(id).getUri());
+        assertEquals(Long.valueOf(hash + 1), this.jdbcTemplate.queryForObject(
+                "select url_id from bookmark where id = ?", Long.class, id));
+    }
+
+    @Test
+    public void probingGivesUpAfterMaxProbes() throws Exception {
+        String uri = "http://example.com/crowded/" + System.nanoTime();
+        long hash = Urls.hash(uri);
+        for (int i = 0; i < Urls.MAX_PROBES; i++) {
+            this.jdbcTemplate.update("insert into url (id, uri) values (?, ?)", hash + i, uri + "/taken/" + i);
+        }
+
+        try (Connection connection = this.dataSource.getConnection()) {
+            Urls.store(connection, Collections.singleton(uri));
+            fail("expected SQLException");
+        } catch (SQLException expected) {
+        }
+    }
+
+    @Test(expected = InvalidBookmarkException.class)
+    public void overlongUrisAreRefused() throws Exception {
+        char[] path = new char[Url.MAX_URI_LENGTH];
+        Arrays.fill(path, 'a');
+        try (Connection connection = this.dataSource.getConnection()) {
+            Urls.store(connection, Collections.singleton("http://example.com/" + new String(path)));
+        }
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+}
@@ -0,0 +1,187 @@
+package bookmarks;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@ActiveProfiles("write-behind")
+public class WriteBehindTest {
+
+    private MockMvc mockMvc;
+
+    private String userName = "bdussault";
+
+    private HttpMessageConverter mappingJackson2HttpMessageConverter;
+
+    private Account account;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private BookmarkWriteBehind bookmarkWriteBehind;
+
+    @Autowired
+    private AccountCache accountCache;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    void setConverters(HttpMessageConverter<?>[] converters) {
+        this.mappingJackson2HttpMessageConverter = Arrays.asList(converters).stream().filter(
+                hmc -> hmc instanceof MappingJackson2HttpMessageConverter).findAny().get();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        this.mockMvc = webAppContextSetup(webApplicationContext).build();
+
+        this.bookmarkRepository.deleteAllInBatch();
+        this.accountRepository.deleteAllInBatch();
+
+        this.account = accountRepository.save(new Account(userName, "password"));
+        bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/1/" + userName, "A description"));
+        bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/2/" + userName, "A description"));
+    }
+
+    @Test
+    public void acceptedBeforeWrittenAndVisibleOnceDrained() throws Exception {
+        String location = performAsync(post("/" + userName + "/bookmarks")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(json(new Bookmark(this.account, "http://spring.io", "Spring news and information"))))
+                .andExpect(status().isAccepted())
+                .andReturn().getResponse().getHeader("Location");
+        Long id = Long.valueOf(location.substring(location.lastIndexOf('/') + 1));
+
+        performAsync(get("/" + userName + "/bookmarks"))
+                .andExpect(jsonPath("$", hasSize(2)));
+        Assert.assertEquals(1, this.bookmarkWriteBehind.getQueueDepth());
+
+        this.bookmarkWriteBehind.drain();
+
+        Assert.assertEquals(0, this.bookmarkWriteBehind.getQueueDepth());
+        performAsync(get("/" + userName + "/bookmarks"))
+                .andExpect(jsonPath("$", hasSize(3)))
+                .andExpect(jsonPath("$[2].id", is(id.intValue())))
+                .andExpect(jsonPath("$[2].uri", is("http://spring.io")));
+        performAsync(get(location))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.uri", endsWith("spring.io")));
+        performAsync(get("/" + userName + "/bookmarks/search").param("q", "spring"))
+                .andExpect(jsonPath("$", hasSize(1)));
+    }
+
+    @Test
+    public void unknownUserRejectedBeforeQueueing() throws Exception {
+        performAsync(post("/george/bookmarks")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(json(new Bookmark())))
+                .andExpect(status().isNotFound());
+        Assert.assertEquals(0, this.bookmarkWriteBehind.getQueueDepth());
+    }
+
+    @Test
+    public void unwritableBookmarksRejectedBeforeQueueing() throws Exception {
+        StringBuilder uri = new StringBuilder("http://bookmark.com/");
+        while (uri.length() <= Url.MAX_URI_LENGTH) {
+            uri.append("long/");
+        }
+        String tooLong = json(new Bookmark(this.account, uri.toString(), "Too long"));
+
+        // an uncached account is looked up on the database executor first
+        this.accountCache.invalidate(userName);
+        performAsync(post("/" + userName + "/bookmarks").contentType(MediaType.APPLICATION_JSON).content(tooLong))
+                .andExpect(status().isBadRequest());
+        this.accountCache.findByUsername(userName);
+        this.mockMvc.perform(post("/" + userName + "/bookmarks").contentType(MediaType.APPLICATION_JSON).content(tooLong))
+                .andExpect(status().isBadRequest());
+        Assert.assertEquals(0, this.bookmarkWriteBehind.getQueueDepth());
+    }
+
+    @Test
+    public void aFailingRowDoesNotTakeItsBatchWithIt() throws Exception {
+        Account gone = this.accountRepository.save(new Account("gone", "password"));
+        this.bookmarkWriteBehind.enqueue(new Bookmark(this.account, "http://spring.io/1", "Kept"));
+        this.bookmarkWriteBehind.enqueue(new Bookmark(gone, "http://spring.io/2", "Refused by the foreign key"));
+        this.bookmarkWriteBehind.enqueue(new Bookmark(this.account, "http://spring.io/3", "Kept"));
+        this.accountRepository.delete(gone);
+        long failed = this.bookmarkWriteBehind.getFailed();
+
+        this.bookmarkWriteBehind.drain();
+
+        Assert.assertEquals(failed + 1, this.bookmarkWriteBehind.getFailed());
+        performAsync(get("/" + userName + "/bookmarks"))
+                .andExpect(jsonPath("$", hasSize(4)))
+                .andExpect(jsonPath("$[2].uri", is("http://spring.io/1")))
+                .andExpect(jsonPath("$[3].uri", is("http://spring.io/3")));
+    }
+
+    @Test
+    public void aFailingListenerDoesNotStopTheFlusher() throws Exception {
+        BiConsumer<BookmarkChangeListener.Change, Bookmark> failing = (change, bookmark) -> {
+            throw new IllegalStateException("listener failure");
+        };
+        BookmarkChangeListener.register(failing);
+        try {
+            this.bookmarkWriteBehind.enqueue(new Bookmark(this.account, "http://spring.io/1", "Written"));
+            this.bookmarkWriteBehind.drain();
+            this.bookmarkWriteBehind.enqueue(new Bookmark(this.account, "http://spring.io/2", "Written"));
+            this.bookmarkWriteBehind.drain();
+        } finally {
+            BookmarkChangeListener.deregister(failing);
+        }
+
+        Assert.assertEquals(0, this.bookmarkWriteBehind.getQueueDepth());
+        Assert.assertEquals(4, this.bookmarkRepository.findViewsByAccountUsername(userName).size());
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = this.mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+
+    protected String json(Object o) throws IOException {
+        MockHttpOutputMessage mockHttpOutputMessage = new MockHttpOutputMessage();
+        this.mappingJackson2HttpMessageConverter.write(
+                o, MediaType.APPLICATION_JSON, mockHttpOutputMessage);
+        return mockHttpOutputMessage.getBodyAsString();
+    }
+}
@@ -1,11 +1,20 @@
 package bookmarks;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.coyote.http11.Http11NioProtocol;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.autoconfigure.MetricFilterAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.TraceWebFilterAutoConfiguration;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.MultipartAutoConfiguration;
+import org.springframework.boot.autoconfigure.websocket.WebSocketAutoConfiguration;
 import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletContainer;
 import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
 import org.springframework.boot.context.embedded.FilterRegistrationBean;
@@ -13,6 +22,7 @@ import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletCon
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.io.Resource;
 import org.springframework.hateoas.Link;
@@ -21,33 +31,58 @@ import org.springframework.hateoas.Resources;
 import org.springframework.hateoas.VndErrors;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.authentication.configurers.GlobalAuthenticationConfigurerAdapter;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.oauth2.config.annotation.configurers.ClientDetailsServiceConfigurer;
 import org.springframework.security.oauth2.config.annotation.web.configuration.AuthorizationServerConfigurerAdapter;
 import org.springframework.security.oauth2.config.annotation.web.configuration.EnableAuthorizationServer;
 import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
+import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
 import org.springframework.security.oauth2.config.annotation.web.configurers.AuthorizationServerEndpointsConfigurer;
+import org.springframework.security.oauth2.config.annotation.web.configurers.ResourceServerSecurityConfigurer;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.JwtTokenStore;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-
-import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
-import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+import java.util.stream.Stream;
 
 //
 // curl -X POST -vu android-bookmarks:123456 http://localhost:8080/oauth/token -H "Accept: application/json" -d "password=password&username=jlong&grant_type=password&scope=write&client_secret=123456&client_id=android-bookmarks"
@@ -55,7 +90,8 @@ import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
 
 @Configuration
 @ComponentScan
-@EnableAutoConfiguration
+@EnableAutoConfiguration(exclude = {MetricFilterAutoConfiguration.class, TraceWebFilterAutoConfiguration.class,
+        MultipartAutoConfiguration.class, WebSocketAutoConfiguration.class})
 public class Application {
 
     // CORS
@@ -116,13 +152,23 @@ public class Application {
     }
 
     @Bean
-    CommandLineRunner init(AccountRepository accountRepository, BookmarkRepository bookmarkRepository) {
-        return (evt) ->
-                Arrays.asList("jhoeller,dsyer,pwebb,ogierke,rwinch,mfisher,mpollack,jlong".split(",")).forEach(a -> {
-                    Account account = accountRepository.save(new Account(a, "password"));
-                    bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/1/" + a, "A description"));
-                    bookmarkRepository.save(new Bookmark(account, "http://bookmark.com/2/" + a, "A description"));
-                });
+    CommandLineRunner init(AccountRepository accountRepository, BookmarkRepository bookmarkRepository,
+                           @Value("${bookmarks.seed.enabled:true}") boolean seed) {
+        return (evt) -> {
+            if (!seed) {
+                return;
+            }
+            // two saves of many entities, so Hibernate batches the inserts
+            List<Account> accounts = accountRepository.save(
+                    Arrays.stream("jhoeller,dsyer,pwebb,ogierke,rwinch,mfisher,mpollack,jlong".split(","))
+                            .map(a -> new Account(a, "password"))
+                            .collect(Collectors.toList()));
+            bookmarkRepository.save(accounts.stream()
+                    .flatMap(account -> Stream.of(
+                            new Bookmark(account, "http://bookmark.com/1/" + account.getUsername(), "A description"),
+                            new Bookmark(account, "http://bookmark.com/2/" + account.getUsername(), "A description")))
+                    .collect(Collectors.toList()));
+        };
     }
 
     public static void main(String[] args) {
@@ -137,17 +183,155 @@ class WebSecurityConfiguration extends GlobalAuthenticationConfigurerAdapter {
     @Autowired
     AccountRepository accountRepository;
 
+    @Value("${bookmarks.user-cache.max-size:10000}")
+    int userCacheMaxSize;
+
+    @Value("${bookmarks.user-cache.ttl-seconds:300}")
+    long userCacheTtlSeconds;
+
     @Override
     public void init(AuthenticationManagerBuilder auth) throws Exception {
         auth.userDetailsService(userDetailsService());
     }
 
+    @Autowired
+    LatencyMetrics latencyMetrics;
+
     @Bean
-    UserDetailsService userDetailsService() {
-        return (username) ->
+    CachingUserDetailsService userDetailsService() {
+        CachingUserDetailsService userDetailsService = new CachingUserDetailsService((username) ->
                 accountRepository.findByUsername(username)
-                        .map(a -> new User(a.username, a.password, true, true, true, true, AuthorityUtils.createAuthorityList("USER", "write")))
-                        .orElseThrow(() -> new UsernameNotFoundException("could not find the user '" + username + "'"));
+                        .map(a -> new CachedUser(a.username, a.password, CachingUserDetailsService.AUTHORITIES))
+                        .orElseThrow(() -> new UsernameNotFoundException("could not find the user '" + username + "'")),
+                userCacheMaxSize, userCacheTtlSeconds);
+        latencyMetrics.gauge("userCache.hits", userDetailsService::getHits);
+        latencyMetrics.gauge("userCache.misses", userDetailsService::getMisses);
+        latencyMetrics.gauge("userCache.evictions", userDetailsService::getEvictions);
+        latencyMetrics.gauge("userCache.size", userDetailsService::getSize);
+        return userDetailsService;
+    }
+}
+
+class CachingUserDetailsService implements UserDetailsService, DisposableBean {
+
+    // every account has the same authorities, so they all share this one list
+    static final List<GrantedAuthority> AUTHORITIES =
+            Collections.unmodifiableList(AuthorityUtils.createAuthorityList("USER", "write"));
+
+    private final UserDetailsService delegate;
+
+    private final ExpiringCache<String, UserDetails> users;
+
+    private final Consumer<String> listener;
+
+    CachingUserDetailsService(UserDetailsService delegate, int maxSize, long ttlSeconds) {
+        this.delegate = delegate;
+        this.users = new ExpiringCache<>(maxSize, ttlSeconds, TimeUnit.SECONDS);
+        this.listener = this.users::invalidate;
+        AccountChangeListener.register(this.listener);
+    }
+
+    // every caller gets the cached instance, which the ProviderManager cannot erase
+    @Override
+    public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+        return this.users.get(username, u -> CachedUser.of(this.delegate.loadUserByUsername(u)));
+    }
+
+    public double getHitRatio() {
+        return this.users.getHitRatio();
+    }
+
+    public long getHits() {
+        return this.users.getHits();
+    }
+
+    public long getMisses() {
+        return this.users.getMisses();
+    }
+
+    public long getEvictions() {
+        return this.users.getEvictions();
+    }
+
+    public int getSize() {
+        return this.users.size();
+    }
+
+    @Override
+    public void destroy() {
+        AccountChangeListener.deregister(this.listener);
+    }
+}
+
+
+/**
+ * An immutable {@link UserDetails} that can be shared by every authentication
+ * of its user. Spring Security's {@link User} is a
+ * {@code CredentialsContainer}, so the {@code ProviderManager} would clear
+ * the cached password once the first authentication succeeded. This class
+ * also keeps the authority list it is given instead of copying it into a
+ * sorted set.
+ */
+final class CachedUser implements UserDetails {
+
+    private final String username;
+
+    private final String password;
+
+    private final Collection<? extends GrantedAuthority> authorities;
+
+    CachedUser(String username, String password, Collection<? extends GrantedAuthority> authorities) {
+        this.username = username;
+        this.password = password;
+        this.authorities = authorities;
+    }
+
+    static CachedUser of(UserDetails user) {
+        if (user instanceof CachedUser) {
+            return (CachedUser) user;
+        }
+        return new CachedUser(user.getUsername(), user.getPassword(),
+                Collections.unmodifiableList(new ArrayList<>(user.getAuthorities())));
+    }
+
+    @Override
+    public String getUsername() {
+        return this.username;
+    }
+
+    @Override
+    public String getPassword() {
+        return this.password;
+    }
+
+    @Override
+    public Collection<? extends GrantedAuthority> getAuthorities() {
+        return this.authorities;
+    }
+
+    @Override
+    public boolean isAccountNonExpired() {
+        return true;
+    }
+
+    @Override
+    public boolean isAccountNonLocked() {
+        return true;
+    }
+
+    @Override
+    public boolean isCredentialsNonExpired() {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return this.username;
     }
 }
 
@@ -160,12 +344,26 @@ class OAuth2Configuration extends AuthorizationServerConfigurerAdapter {
     String applicationName = "bookmarks";
 
     // This is required for password grants, which we specify below as one of the  {@literal authorizedGrantTypes()}.
+    // Lazy, so that it is built once WebSecurityConfiguration has registered the accounts and not while the
+    // token store is being wired, when Spring Boot would fall back to its default in-memory user.
     @Autowired
+    @Lazy
     AuthenticationManager authenticationManager;
 
+    @Autowired
+    @Qualifier("bookmarkTokenStore")
+    TokenStore tokenStore;
+
+    // only present with the "jwt" profile
+    @Autowired(required = false)
+    JwtAccessTokenConverter accessTokenConverter;
+
     @Override
     public void configure(AuthorizationServerEndpointsConfigurer endpoints) throws Exception {
-        endpoints.authenticationManager(authenticationManager);
+        endpoints.authenticationManager(authenticationManager).tokenStore(tokenStore);
+        if (accessTokenConverter != null) {
+            endpoints.tokenEnhancer(accessTokenConverter);
+        }
     }
 
     @Override
@@ -181,20 +379,187 @@ class OAuth2Configuration extends AuthorizationServerConfigurerAdapter {
     }
 }
 
+@Configuration
+class OAuth2ResourceServerConfiguration extends ResourceServerConfigurerAdapter {
+
+    @Autowired
+    @Qualifier("bookmarkTokenStore")
+    TokenStore tokenStore;
+
+    @Override
+    public void configure(ResourceServerSecurityConfigurer resources) throws Exception {
+        resources.resourceId("bookmarks").tokenStore(tokenStore);
+    }
+
+    // once any configurer is present the resource server no longer adds this rule itself
+    @Override
+    public void configure(HttpSecurity http) throws Exception {
+        http.authorizeRequests().anyRequest().authenticated();
+    }
+}
+
+// tokens are opaque keys into this node's memory. The store is not called tokenStore: @EnableAuthorizationServer
+// defines that bean itself from the configurers, so the configurers have to ask for this one by name
+@Configuration
+@Profile("!jwt")
+class InMemoryTokenConfiguration {
+
+    @Bean
+    TokenStore bookmarkTokenStore() {
+        return new InMemoryTokenStore();
+    }
+}
+
+// tokens are signed JWTs that carry the whole authentication, so any node holding
+// the key validates them with no lookup: --spring.profiles.active=jwt --jwt.signing-key=<shared secret>
+@Configuration
+@Profile("jwt")
+class JwtTokenConfiguration {
+
+    @Bean
+    JwtAccessTokenConverter accessTokenConverter(@Value("${jwt.signing-key}") String signingKey) {
+        JwtAccessTokenConverter converter = new JwtAccessTokenConverter();
+        converter.setSigningKey(signingKey);
+        return converter;
+    }
+
+    @Bean
+    TokenStore bookmarkTokenStore(JwtAccessTokenConverter accessTokenConverter) {
+        return new JwtTokenStore(accessTokenConverter);
+    }
+}
+
+// one token bucket per OAuth client and one per user in front of the bookmark endpoints
+@Configuration
+class RateLimitConfiguration extends WebMvcConfigurerAdapter {
+
+    @Value("${bookmarks.rate-limit.enabled:true}")
+    boolean enabled;
+
+    @Value("${bookmarks.rate-limit.client.per-second:200}")
+    double clientPerSecond;
+
+    @Value("${bookmarks.rate-limit.client.burst:400}")
+    int clientBurst;
+
+    @Value("${bookmarks.rate-limit.user.per-second:10}")
+    double userPerSecond;
+
+    @Value("${bookmarks.rate-limit.user.burst:20}")
+    int userBurst;
+
+    @Autowired
+    LatencyMetrics latencyMetrics;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (!enabled) {
+            return;
+        }
+        RateLimiter clients = new RateLimiter(clientPerSecond, clientBurst);
+        RateLimiter users = new RateLimiter(userPerSecond, userBurst);
+        latencyMetrics.gauge("rateLimit.clients.rejected", clients::getRejected);
+        latencyMetrics.gauge("rateLimit.clients.size", clients::size);
+        latencyMetrics.gauge("rateLimit.users.rejected", users::getRejected);
+        latencyMetrics.gauge("rateLimit.users.size", users::size);
+        registry.addInterceptor(new RateLimitInterceptor(clients, users)).addPathPatterns("/bookmarks", "/bookmarks/**");
+    }
+}
+
+/**
+ * Runs after Spring Security has authenticated the request. A request with an
+ * OAuth token takes a token from its client's bucket, then one from its
+ * user's bucket unless the token is client-only. Other authenticated requests
+ * only use the user's bucket. A request that is refused gets
+ * {@code 429 Too Many Requests} and a {@code Retry-After} in whole seconds. A
+ * refusal by the user bucket still uses up the client's token.
+ */
+class RateLimitInterceptor extends HandlerInterceptorAdapter {
+
+    private final RateLimiter clients;
+
+    private final RateLimiter users;
+
+    RateLimitInterceptor(RateLimiter clients, RateLimiter users) {
+        this.clients = clients;
+        this.users = users;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // a DeferredResult comes back through a second dispatch, which the first one has already paid for
+        if (WebAsyncUtils.getAsyncManager(request).hasConcurrentResult()) {
+            return true;
+        }
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null) {
+            return true;
+        }
+        long wait = 0;
+        boolean user = true;
+        if (authentication instanceof OAuth2Authentication) {
+            OAuth2Authentication oauth = (OAuth2Authentication) authentication;
+            wait = this.clients.tryAcquire(oauth.getOAuth2Request().getClientId());
+            user = !oauth.isClientOnly();
+        }
+        if (wait == 0 && user) {
+            wait = this.users.tryAcquire(authentication.getName());
+        }
+        if (wait == 0) {
+            return true;
+        }
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        // rounded up, so that a client retrying on time finds a token
+        response.setHeader("Retry-After", Long.toString(TimeUnit.NANOSECONDS.toSeconds(wait) + 1));
+        return false;
+    }
+}
+
+
+class BookmarkLinks {
+
+    private static final LinkTemplate BOOKMARKS = LinkTemplate.forController(BookmarkRestController.class);
+
+    private static final LinkTemplate BOOKMARK = LinkTemplate.forMethod(BookmarkRestController.class, "readBookmark");
+
+    private final Link bookmarks;
+
+    private final String baseUri;
+
+    BookmarkLinks(String baseUri) {
+        this.baseUri = baseUri;
+        this.bookmarks = new Link(baseUri + BOOKMARKS.expand(), "bookmarks");
+    }
+
+    static BookmarkLinks fromCurrentRequest() {
+        return new BookmarkLinks(ServletUriComponentsBuilder.fromCurrentServletMapping().build().toUriString());
+    }
+
+    String getBaseUri() {
+        return this.baseUri;
+    }
+
+    Link bookmarks() {
+        return this.bookmarks;
+    }
+
+    Link bookmark(Long bookmarkId) {
+        return new Link(this.baseUri + BOOKMARK.expand(bookmarkId));
+    }
+}
 
 class BookmarkResource extends ResourceSupport {
 
-    private final Bookmark bookmark;
+    private final BookmarkView bookmark;
 
-    public BookmarkResource(Bookmark bookmark) {
-        String username = bookmark.getAccount().getUsername();
+    public BookmarkResource(BookmarkView bookmark, BookmarkLinks links) {
         this.bookmark = bookmark;
-        this.add(new Link(bookmark.uri, "bookmark-uri"));
-        this.add(linkTo(BookmarkRestController.class, username).withRel("bookmarks"));
-        this.add(linkTo(methodOn(BookmarkRestController.class, username).readBookmark(null, bookmark.getId())).withSelfRel());
+        this.add(new Link(bookmark.getUri(), "bookmark-uri"));
+        this.add(links.bookmarks());
+        this.add(links.bookmark(bookmark.getId()));
     }
 
-    public Bookmark getBookmark() {
+    public BookmarkView getBookmark() {
         return bookmark;
     }
 }
@@ -203,60 +568,273 @@ class BookmarkResource extends ResourceSupport {
 @RequestMapping("/bookmarks")
 class BookmarkRestController {
 
+    private static final MediaType HAL_JSON = MediaType.valueOf("application/hal+json");
+
     private final BookmarkRepository bookmarkRepository;
 
-    private final AccountRepository accountRepository;
+    private final AccountCache accountCache;
+
+    private final BookmarkScroller bookmarkScroller;
+
+    private final BookmarkImporter bookmarkImporter;
+
+    private final ObjectMapper halObjectMapper;
+
+    private final AccountVersions accountVersions;
+
+    private final BookmarkIndex bookmarkIndex;
+
+    private final DatabaseExecutor databaseExecutor;
+
+    private final BookmarkWriteBehind bookmarkWriteBehind;
+
+    private final CompressedBodyCache compressedBodyCache;
+
+    private final BookmarkChangeFeed bookmarkChangeFeed;
+
+    private final LatencyMetrics.Timer linksTimer;
 
     @RequestMapping(method = RequestMethod.POST)
-    ResponseEntity<?> add(Principal principal, @RequestBody Bookmark input) {
+    DeferredResult<ResponseEntity<?>> add(Principal principal, @RequestBody Bookmark input) {
         String userId = principal.getName();
-        this.validateUser(userId);
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        if (this.bookmarkWriteBehind.isEnabled()) {
+            // queued on the request thread only when the account needs no lookup
+            Optional<Account> cached = this.accountCache.findCached(userId);
+            if (cached.isPresent()) {
+                return DatabaseExecutor.completed(this.enqueue(cached.get(), input, links));
+            }
+            return this.databaseExecutor.submit(() -> this.enqueue(this.validateUser(userId), input, links));
+        }
+        return this.databaseExecutor.submit(() -> {
+            Account account = this.validateUser(userId);
+            Bookmark bookmark = bookmarkRepository.save(new Bookmark(account, input.uri, input.description));
+
+            HttpHeaders httpHeaders = new HttpHeaders();
 
-        return accountRepository.findByUsername(userId)
-                .map(account -> {
-                            Bookmark bookmark = bookmarkRepository.save(new Bookmark(account, input.uri, input.description));
+            Link forOneBookmark = links.bookmark(bookmark.getId());
+            httpHeaders.setLocation(URI.create(forOneBookmark.getHref()));
 
-                            HttpHeaders httpHeaders = new HttpHeaders();
+            return new ResponseEntity<>(null, httpHeaders, HttpStatus.CREATED);
+        });
+    }
 
-                            Link forOneBookmark = new BookmarkResource(bookmark).getLink("self");
-                            httpHeaders.setLocation(URI.create(forOneBookmark.getHref()));
+    private ResponseEntity<?> enqueue(Account account, Bookmark input, BookmarkLinks links) {
+        Bookmark bookmark = this.bookmarkWriteBehind.enqueue(new Bookmark(account, input.uri, input.description));
 
-                            return new ResponseEntity<>(null, httpHeaders, HttpStatus.CREATED);
-                        }
-                ).get();
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setLocation(URI.create(links.bookmark(bookmark.getId()).getHref()));
+        return new ResponseEntity<>(null, httpHeaders, HttpStatus.ACCEPTED);
+    }
+
+    @RequestMapping(value = "/import", method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, BookmarkImporter.NDJSON_VALUE})
+    DeferredResult<ResponseEntity<?>> importBookmarks(Principal principal, InputStream body) throws IOException {
+        String userId = principal.getName();
+        // read here, so that no database thread waits on the client sending the body
+        List<Bookmark> bookmarks;
+        try (MappingIterator<Bookmark> rows = BookmarkImporter.read(this.halObjectMapper, body)) {
+            bookmarks = rows.readAll();
+        }
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            int imported = this.bookmarkImporter.importBookmarks(this.validateUser(userId), bookmarks);
+
+            HttpHeaders httpHeaders = new HttpHeaders();
+            httpHeaders.setLocation(URI.create(links.bookmarks().getHref()));
+            return new ResponseEntity<>(Collections.singletonMap("imported", imported), httpHeaders, HttpStatus.CREATED);
+        });
     }
 
     @RequestMapping(value = "/{bookmarkId}", method = RequestMethod.GET)
-    BookmarkResource readBookmark(Principal principal, @PathVariable Long bookmarkId) {
+    DeferredResult<ResponseEntity<BookmarkResource>> readBookmark(Principal principal, @PathVariable Long bookmarkId,
+                                                                  @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
         String userId = principal.getName();
-        this.validateUser(userId);
-        return new BookmarkResource(this.bookmarkRepository.findOne(bookmarkId));
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setETag(this.accountVersions.etag(userId));
+        boolean notModified = AccountVersions.matches(ifNoneMatch, httpHeaders.getETag());
+        if (notModified && this.isCached(userId)) {
+            return DatabaseExecutor.completed(new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED));
+        }
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            if (notModified) {
+                return new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED);
+            }
+            BookmarkResource bookmarkResource = new BookmarkResource(
+                    this.bookmarkRepository.findViewById(bookmarkId), links);
+            return new ResponseEntity<>(bookmarkResource, httpHeaders, HttpStatus.OK);
+        });
     }
 
 
     @RequestMapping(method = RequestMethod.GET)
-    Resources<BookmarkResource> readBookmarks(Principal principal) {
+    DeferredResult<ResponseEntity<?>> readBookmarks(Principal principal,
+                                                    @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                                    @RequestHeader(value = "Accept", required = false) String accept,
+                                                    @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding) {
         String userId = principal.getName();
-        this.validateUser(userId);
 
-        List<BookmarkResource> bookmarkResourceList = bookmarkRepository.findByAccountUsername(userId)
-                .stream()
-                .map(BookmarkResource::new)
-                .collect(Collectors.toList());
-        return new Resources<BookmarkResource>(bookmarkResourceList);
+        HttpHeaders httpHeaders = new HttpHeaders();
+        String etag = this.accountVersions.etag(userId);
+        boolean notModified = AccountVersions.matches(ifNoneMatch, etag);
+
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        String encoding = this.compressedBodyCache.negotiate(acceptEncoding);
+        boolean compressed = encoding != null && CompressedBodyCache.prefers(accept, HAL_JSON);
+        // a compressed body is a representation of its own, so it needs a tag of its own
+        httpHeaders.setETag(compressed ? AccountVersions.withCoding(etag, encoding) : etag);
+        httpHeaders.set("Vary", "Accept, Accept-Encoding");
+        if (this.isCached(userId)) {
+            if (notModified) {
+                return DatabaseExecutor.completed(new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED));
+            }
+            // the links embed the host the request came in on
+            ResponseEntity<?> cached = compressed
+                    ? this.compressedBodyCache.getIfPresent(userId, etag, links.getBaseUri(), encoding, httpHeaders) : null;
+            if (cached != null) {
+                return DatabaseExecutor.completed(cached);
+            }
+        }
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            if (notModified) {
+                return new ResponseEntity<>(httpHeaders, HttpStatus.NOT_MODIFIED);
+            }
+            if (compressed) {
+                return this.compressedBodyCache.compress(userId, etag, links.getBaseUri(), encoding, HAL_JSON, httpHeaders,
+                        out -> this.halObjectMapper.writeValue(out, new Resources<BookmarkResource>(this.toResources(
+                                this.bookmarkRepository.findViewsByAccountUsername(userId), links))));
+            }
+            List<BookmarkView> bookmarks = bookmarkRepository.findViewsByAccountUsername(userId);
+            List<BookmarkResource> bookmarkResourceList = this.toResources(bookmarks, links);
+            return new ResponseEntity<>(new Resources<BookmarkResource>(bookmarkResourceList), httpHeaders, HttpStatus.OK);
+        });
+    }
+
+    @RequestMapping(value = "/search", method = RequestMethod.GET)
+    DeferredResult<Resources<BookmarkResource>> searchBookmarks(Principal principal, @RequestParam String q,
+                                                                @RequestParam(defaultValue = "100") int limit) {
+        String userId = principal.getName();
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            List<BookmarkView> bookmarks = this.bookmarkIndex.search(userId, q, limit);
+            List<BookmarkResource> bookmarkResourceList = this.toResources(bookmarks, links);
+            return new Resources<BookmarkResource>(bookmarkResourceList);
+        });
+    }
+
+    @RequestMapping(method = RequestMethod.GET, params = "limit")
+    DeferredResult<Resources<BookmarkResource>> readBookmarkPage(Principal principal,
+                                                                 @RequestParam(required = false) Long after,
+                                                                 @RequestParam int limit) {
+        String userId = principal.getName();
+
+        int pageSize = BookmarkScroller.pageSize(limit);
+        BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+        ServletUriComponentsBuilder current = ServletUriComponentsBuilder.fromCurrentRequest();
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            List<BookmarkView> page = this.bookmarkScroller.page(userId, after, pageSize);
+            List<BookmarkResource> bookmarkResourceList = this.toResources(page, links);
+            if (page.size() < pageSize) {
+                return new Resources<BookmarkResource>(bookmarkResourceList);
+            }
+            Link next = new Link(current
+                    .replaceQueryParam("after", page.get(page.size() - 1).getId())
+                    .build()
+                    .toUriString(), Link.REL_NEXT);
+            return new Resources<BookmarkResource>(bookmarkResourceList, next);
+        });
+    }
+
+    @RequestMapping(method = RequestMethod.GET, params = "stream")
+    DeferredResult<View> streamBookmarks(Principal principal) {
+        String userId = principal.getName();
+        return this.afterLookup(userId, new StreamingView((request, response) -> {
+            response.setContentType("application/hal+json;charset=UTF-8");
+            BookmarkLinks links = BookmarkLinks.fromCurrentRequest();
+            try (JsonGenerator generator = this.halObjectMapper.getFactory().createGenerator(response.getOutputStream())) {
+                // a read that fails part way leaves the document open, so the client cannot take it for the whole list
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                generator.writeStartObject();
+                generator.writeObjectFieldStart("_embedded");
+                generator.writeArrayFieldStart("bookmarkResourceList");
+                this.bookmarkScroller.stream(userId, generator, bookmark -> new BookmarkResource(bookmark, links));
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+        }));
+    }
+
+    @RequestMapping(value = "/changes", method = RequestMethod.GET)
+    DeferredResult<View> streamChanges(Principal principal,
+                                       @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        String userId = principal.getName();
+        return this.afterLookup(userId, new StreamingView((request, response) ->
+                this.bookmarkChangeFeed.subscribe(userId, lastEventId, request, response)));
     }
 
     @Autowired
     BookmarkRestController(BookmarkRepository bookmarkRepository,
-                           AccountRepository accountRepository) {
+                           AccountCache accountCache,
+                           BookmarkScroller bookmarkScroller,
+                           BookmarkImporter bookmarkImporter,
+                           @Qualifier("_halObjectMapper") ObjectMapper halObjectMapper,
+                           AccountVersions accountVersions,
+                           BookmarkIndex bookmarkIndex,
+                           DatabaseExecutor databaseExecutor,
+                           BookmarkWriteBehind bookmarkWriteBehind,
+                           CompressedBodyCache compressedBodyCache,
+                           BookmarkChangeFeed bookmarkChangeFeed,
+                           LatencyMetrics latencyMetrics) {
         this.bookmarkRepository = bookmarkRepository;
-        this.accountRepository = accountRepository;
+        this.accountCache = accountCache;
+        this.bookmarkScroller = bookmarkScroller;
+        this.bookmarkImporter = bookmarkImporter;
+        this.halObjectMapper = halObjectMapper;
+        this.accountVersions = accountVersions;
+        this.bookmarkIndex = bookmarkIndex;
+        this.databaseExecutor = databaseExecutor;
+        this.bookmarkWriteBehind = bookmarkWriteBehind;
+        this.compressedBodyCache = compressedBodyCache;
+        this.bookmarkChangeFeed = bookmarkChangeFeed;
+        this.linksTimer = latencyMetrics.timer("links.toResources");
+    }
+
+    private List<BookmarkResource> toResources(List<BookmarkView> bookmarks, BookmarkLinks links) {
+        long start = System.nanoTime();
+        List<BookmarkResource> bookmarkResources = bookmarks.stream()
+                .map(bookmark -> new BookmarkResource(bookmark, links))
+                .collect(Collectors.toList());
+        this.linksTimer.recordSince(start);
+        return bookmarkResources;
     }
 
-    private void validateUser(String userId) {
-        this.accountRepository.findByUsername(userId)
+    // a cache miss waits for the database, so handlers that use the executor call this on it
+    private Account validateUser(String userId) {
+        return this.accountCache.findByUsername(userId)
                 .orElseThrow(() -> new UserNotFoundException(userId));
     }
+
+    // views write on the container thread once dispatched back to it, so only the lookup goes to the executor
+    private DeferredResult<View> afterLookup(String userId, View view) {
+        if (this.isCached(userId)) {
+            return DatabaseExecutor.completed(view);
+        }
+        return this.databaseExecutor.submit(() -> {
+            this.validateUser(userId);
+            return view;
+        });
+    }
+
+    // a cached account can be answered from memory on the request thread
+    private boolean isCached(String userId) {
+        return this.accountCache.findCached(userId).isPresent();
+    }
 }
 
 @ControllerAdvice
@@ -268,6 +846,20 @@ class BookmarkControllerAdvice {
     VndErrors userNotFoundExceptionHandler(UserNotFoundException ex) {
         return new VndErrors("error", ex.getMessage());
     }
+
+    @ResponseBody
+    @ExceptionHandler(DatabaseBusyException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    VndErrors databaseBusyExceptionHandler(DatabaseBusyException ex) {
+        return new VndErrors("error", ex.getMessage());
+    }
+
+    @ResponseBody
+    @ExceptionHandler(InvalidBookmarkException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    VndErrors invalidBookmarkExceptionHandler(InvalidBookmarkException ex) {
+        return new VndErrors("error", ex.getMessage());
+    }
 }
 
 
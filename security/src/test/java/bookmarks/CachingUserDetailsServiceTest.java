@@ -0,0 +1,129 @@
+package bookmarks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CachingUserDetailsServiceTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private CachingUserDetailsService userDetailsService;
+
+    private volatile String password = "password";
+
+    // runs in the middle of every load, after the password has been read
+    private volatile Runnable duringLoad = () -> {
+    };
+
+    @Before
+    public void setup() {
+        this.userDetailsService = new CachingUserDetailsService(username -> {
+            this.loads.incrementAndGet();
+            if (username.equals("nobody")) {
+                throw new UsernameNotFoundException(username);
+            }
+            String password = this.password;
+            this.duringLoad.run();
+            return new CachedUser(username, password, CachingUserDetailsService.AUTHORITIES);
+        }, 100, 300);
+    }
+
+    @After
+    public void destroy() {
+        this.userDetailsService.destroy();
+    }
+
+    @Test
+    public void repeatedLookupsShareOneInstance() {
+        UserDetails first = this.userDetailsService.loadUserByUsername("jlong");
+        UserDetails second = this.userDetailsService.loadUserByUsername("jlong");
+
+        assertSame(first, second);
+        assertSame(CachingUserDetailsService.AUTHORITIES, second.getAuthorities());
+        assertEquals(1, this.loads.get());
+        assertEquals(1, this.userDetailsService.getHits());
+        assertEquals(1, this.userDetailsService.getMisses());
+    }
+
+    @Test
+    public void accountWritesInvalidateTheirUser() {
+        UserDetails before = this.userDetailsService.loadUserByUsername("jlong");
+        this.userDetailsService.loadUserByUsername("pwebb");
+
+        new AccountChangeListener().accountChanged(new Account("jlong", "changed"));
+
+        assertEquals(1, this.userDetailsService.getSize());
+        UserDetails after = this.userDetailsService.loadUserByUsername("jlong");
+        assertEquals(3, this.loads.get());
+        assertEquals("jlong", after.getUsername());
+        assertNotSame(before, after);
+        this.userDetailsService.loadUserByUsername("pwebb");
+        assertEquals(3, this.loads.get());
+    }
+
+    @Test
+    public void loadsThatRaceAnInvalidationAreNotCached() {
+        // the password changes and commits while a login is still reading the old row
+        this.duringLoad = () -> {
+            this.password = "changed";
+            new AccountChangeListener().accountChanged(new Account("jlong", "changed"));
+        };
+        assertEquals("password", this.userDetailsService.loadUserByUsername("jlong").getPassword());
+        this.duringLoad = () -> {
+        };
+
+        assertEquals(0, this.userDetailsService.getSize());
+        assertEquals("changed", this.userDetailsService.loadUserByUsername("jlong").getPassword());
+        assertEquals("changed", this.userDetailsService.loadUserByUsername("jlong").getPassword());
+        assertEquals(2, this.loads.get());
+    }
+
+    @Test
+    public void destroyedCachesStopListening() {
+        this.userDetailsService.loadUserByUsername("jlong");
+        this.userDetailsService.destroy();
+
+        new AccountChangeListener().accountChanged(new Account("jlong", "changed"));
+
+        assertEquals(1, this.userDetailsService.getSize());
+    }
+
+    @Test
+    public void unknownUsersAreNotCached() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                this.userDetailsService.loadUserByUsername("nobody");
+                fail("expected UsernameNotFoundException");
+            } catch (UsernameNotFoundException expected) {
+            }
+        }
+        assertEquals(2, this.loads.get());
+    }
+
+    @Test
+    public void erasingCredentialsLeavesTheCachedPassword() {
+        DaoAuthenticationProvider provider = new DaoAuthenticationProvider();
+        provider.setUserDetailsService(this.userDetailsService);
+        ProviderManager authenticationManager = new ProviderManager(Collections.singletonList(provider));
+
+        for (int i = 0; i < 3; i++) {
+            authenticationManager.authenticate(new UsernamePasswordAuthenticationToken("jlong", "password"));
+        }
+        assertEquals("password", this.userDetailsService.loadUserByUsername("jlong").getPassword());
+        assertEquals(1, this.loads.get());
+    }
+}
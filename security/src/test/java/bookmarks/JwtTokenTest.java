@@ -0,0 +1,114 @@
+package bookmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.security.oauth2.provider.token.store.JwtTokenStore;
+import org.springframework.security.web.FilterChainProxy;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+/**
+ * Issues tokens through the password grant under the {@code jwt} profile,
+ * whose signing key comes from {@code application-jwt.properties}.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@ActiveProfiles("jwt")
+public class JwtTokenTest {
+
+    private MockMvc mockMvc;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private FilterChainProxy springSecurityFilterChain;
+
+    @Autowired
+    @Qualifier("bookmarkTokenStore")
+    private TokenStore tokenStore;
+
+    @Before
+    public void setup() {
+        this.mockMvc = webAppContextSetup(this.webApplicationContext)
+                .addFilters(this.springSecurityFilterChain)
+                .build();
+    }
+
+    @Test
+    public void issuedTokensAreCheckedWithoutAStore() throws Exception {
+        // a JwtTokenStore keeps nothing and only verifies the signature
+        assertTrue(this.tokenStore instanceof JwtTokenStore);
+        String token = this.passwordGrant("jlong");
+        assertEquals("jlong", this.claims(token).get("user_name"));
+
+        MvcResult result = this.mockMvc.perform(get("/bookmarks").header("Authorization", "Bearer " + token))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+        this.mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+    }
+
+    @Test
+    public void tamperedSignaturesAreRefused() throws Exception {
+        String token = this.passwordGrant("jlong");
+        char last = token.charAt(token.length() - 1);
+        String tampered = token.substring(0, token.length() - 1) + (last == 'A' ? 'B' : 'A');
+
+        this.mockMvc.perform(get("/bookmarks").header("Authorization", "Bearer " + tampered))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    public void tokensSignedWithAnotherKeyAreRefused() throws Exception {
+        String token = this.passwordGrant("jlong");
+        String forged = JwtHelper.encode(JwtHelper.decode(token).getClaims(), new MacSigner("another-signing-key"))
+                .getEncoded();
+
+        this.mockMvc.perform(get("/bookmarks").header("Authorization", "Bearer " + forged))
+                .andExpect(status().isUnauthorized());
+    }
+
+    private String passwordGrant(String username) throws Exception {
+        String client = Base64.getEncoder().encodeToString("android-bookmarks:123456".getBytes(StandardCharsets.UTF_8));
+        String body = this.mockMvc.perform(post("/oauth/token")
+                .header("Authorization", "Basic " + client)
+                .param("grant_type", "password")
+                .param("username", username)
+                .param("password", "password")
+                .param("scope", "write"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        return (String) new ObjectMapper().readValue(body, Map.class).get("access_token");
+    }
+
+    private Map<?, ?> claims(String token) throws Exception {
+        return new ObjectMapper().readValue(JwtHelper.decode(token).getClaims(), Map.class);
+    }
+}
@@ -0,0 +1,174 @@
+package bookmarks;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class RateLimitInterceptorTest {
+
+    // one token a minute, so none come back while a test runs
+    private static final double PER_SECOND = 1.0 / 60;
+
+    private MockHttpServletResponse response;
+
+    @After
+    public void destroy() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void refusedRequestsAreToldWhenToRetry() {
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(
+                new RateLimiter(PER_SECOND, 10), new RateLimiter(PER_SECOND, 1));
+        this.authenticate(new UsernamePasswordAuthenticationToken("jlong", "password"));
+
+        assertTrue(this.preHandle(interceptor));
+        assertNull(this.response.getHeader("Retry-After"));
+
+        assertFalse(this.preHandle(interceptor));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS.value(), this.response.getStatus());
+        long retryAfter = Long.parseLong(this.response.getHeader("Retry-After"));
+        assertTrue("Retry-After " + retryAfter, retryAfter == 60 || retryAfter == 61);
+    }
+
+    @Test
+    public void clientOnlyTokensOnlyUseTheClientBucket() {
+        RateLimiter clients = new RateLimiter(PER_SECOND, 2);
+        RateLimiter users = new RateLimiter(PER_SECOND, 1);
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(clients, users);
+        this.authenticate(this.oauth("android-bookmarks", null));
+
+        assertTrue(this.preHandle(interceptor));
+        assertTrue(this.preHandle(interceptor));
+        assertFalse(this.preHandle(interceptor));
+
+        assertEquals(1, clients.getRejected());
+        assertEquals(0, users.size());
+    }
+
+    @Test
+    public void userTokensUseBothBuckets() {
+        RateLimiter clients = new RateLimiter(PER_SECOND, 10);
+        RateLimiter users = new RateLimiter(PER_SECOND, 1);
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(clients, users);
+
+        this.authenticate(this.oauth("android-bookmarks", "jlong"));
+        assertTrue(this.preHandle(interceptor));
+        assertFalse(this.preHandle(interceptor));
+
+        // another user of the same client has a bucket of its own
+        this.authenticate(this.oauth("android-bookmarks", "pwebb"));
+        assertTrue(this.preHandle(interceptor));
+
+        assertEquals(0, clients.getRejected());
+        assertEquals(1, users.getRejected());
+        assertEquals(1, clients.size());
+        assertEquals(2, users.size());
+    }
+
+    @Test
+    public void userRefusalsStillSpendTheClientToken() {
+        RateLimiter clients = new RateLimiter(PER_SECOND, 3);
+        RateLimiter users = new RateLimiter(PER_SECOND, 1);
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(clients, users);
+
+        this.authenticate(this.oauth("android-bookmarks", "jlong"));
+        assertTrue(this.preHandle(interceptor));
+        assertFalse(this.preHandle(interceptor));
+
+        // the refused request above took the second of the client's three tokens
+        this.authenticate(this.oauth("android-bookmarks", null));
+        assertTrue(this.preHandle(interceptor));
+        assertFalse(this.preHandle(interceptor));
+        assertEquals(1, clients.getRejected());
+    }
+
+    @Test
+    public void anonymousRequestsAreNotLimited() {
+        RateLimiter clients = new RateLimiter(PER_SECOND, 1);
+        RateLimiter users = new RateLimiter(PER_SECOND, 1);
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(clients, users);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(this.preHandle(interceptor));
+        }
+        assertEquals(0, clients.size());
+        assertEquals(0, users.size());
+    }
+
+    @Test
+    public void asyncRequestsSpendOneToken() throws Exception {
+        RateLimiter clients = new RateLimiter(PER_SECOND, 1);
+        RateLimiter users = new RateLimiter(PER_SECOND, 1);
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(clients, users);
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(new DeferredController())
+                .addInterceptors(interceptor).build();
+        this.authenticate(this.oauth("android-bookmarks", "jlong"));
+
+        MvcResult result = mockMvc.perform(get("/deferred"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+
+        assertEquals(0, clients.getRejected());
+        assertEquals(0, users.getRejected());
+        // the one token each bucket holds went to the request above
+        assertFalse(this.preHandle(interceptor));
+        assertEquals(1, clients.getRejected());
+    }
+
+    private boolean preHandle(RateLimitInterceptor interceptor) {
+        this.response = new MockHttpServletResponse();
+        return interceptor.preHandle(new MockHttpServletRequest("GET", "/bookmarks"), this.response, null);
+    }
+
+    private void authenticate(Authentication authentication) {
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+    }
+
+    // a client-only token when username is null, as the client credentials grant issues
+    private OAuth2Authentication oauth(String clientId, String username) {
+        OAuth2Request request = new OAuth2Request(Collections.emptyMap(), clientId,
+                AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("write"),
+                null, null, null, null);
+        Authentication user = username == null ? null
+                : new UsernamePasswordAuthenticationToken(username, "N/A", AuthorityUtils.createAuthorityList("USER"));
+        return new OAuth2Authentication(request, user);
+    }
+
+    @RestController
+    static class DeferredController {
+
+        @RequestMapping("/deferred")
+        DeferredResult<String> deferred() {
+            DeferredResult<String> result = new DeferredResult<>();
+            result.setResult("done");
+            return result;
+        }
+    }
+}
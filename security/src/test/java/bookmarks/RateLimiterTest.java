@@ -0,0 +1,92 @@
+package bookmarks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void burstThenOneTokenPerInterval() {
+        RateLimiter rateLimiter = new RateLimiter(10, 3);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("jlong", now));
+        }
+        assertEquals(SECOND / 10, rateLimiter.tryAcquire("jlong", now));
+        assertEquals(SECOND / 20, rateLimiter.tryAcquire("jlong", now + SECOND / 20));
+
+        assertEquals(0, rateLimiter.tryAcquire("jlong", now + SECOND / 10));
+        assertTrue(rateLimiter.tryAcquire("jlong", now + SECOND / 10) > 0);
+        assertEquals(3, rateLimiter.getRejected());
+    }
+
+    @Test
+    public void keysHaveTheirOwnBuckets() {
+        RateLimiter rateLimiter = new RateLimiter(1, 1);
+        long now = System.nanoTime();
+
+        assertEquals(0, rateLimiter.tryAcquire("jlong", now));
+        assertTrue(rateLimiter.tryAcquire("jlong", now) > 0);
+        assertEquals(0, rateLimiter.tryAcquire("pwebb", now));
+    }
+
+    @Test
+    public void fullBucketsAreDropped() {
+        RateLimiter rateLimiter = new RateLimiter(10, 5, 10, TimeUnit.SECONDS);
+        long now = System.nanoTime();
+
+        rateLimiter.tryAcquire("jlong", now);
+        rateLimiter.tryAcquire("pwebb", now);
+        // android-bookmarks empties its bucket just before the next sweep is due
+        for (int i = 0; i < 5; i++) {
+            rateLimiter.tryAcquire("android-bookmarks", now + 10 * SECOND - SECOND / 10);
+        }
+        assertEquals(3, rateLimiter.size());
+
+        // jlong and pwebb refilled long ago, android-bookmarks is still four tokens short
+        rateLimiter.tryAcquire("mfisher", now + 10 * SECOND);
+        assertEquals(2, rateLimiter.size());
+    }
+
+    @Test
+    public void contendedBucketsHandOutExactlyTheBurst() throws Exception {
+        // one token a minute, so none come back while the threads run
+        RateLimiter rateLimiter = new RateLimiter(1.0 / 60, 1000);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Integer>> callers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                callers.add(() -> {
+                    int allowed = 0;
+                    for (int i = 0; i < 10000; i++) {
+                        if (rateLimiter.tryAcquire("android-bookmarks") == 0) {
+                            allowed++;
+                        }
+                    }
+                    return allowed;
+                });
+            }
+            int allowed = 0;
+            for (Future<Integer> result : threads.invokeAll(callers)) {
+                allowed += result.get();
+            }
+            assertEquals(1000, allowed);
+            assertEquals(80000 - 1000, rateLimiter.getRejected());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}